@@ -0,0 +1,21 @@
+package sockets.combiner;
+
+import sockets.model.Message;
+
+import java.util.Random;
+
+/**
+ * Test data shared by the benchmarks.
+ */
+final class Benchmarks {
+
+    private Benchmarks() {
+    }
+
+    /**
+     * @return message with a full precision amount between 0 and 1, like the ones producers send
+     */
+    static Message randomMessage(Random random, long timestamp) {
+        return new Message(timestamp, random.nextDouble());
+    }
+}
@@ -0,0 +1,189 @@
+package sockets.combiner;
+
+import com.fasterxml.jackson.dataformat.xml.XmlMapper;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import sockets.protocol.BinaryFrames;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Cost of the compressed transport per message: the producer deflating with a sync flush after every batch of records
+ * and the combiner inflating what arrives. The counters give the bytes before and after deflating, so their ratio is
+ * the bandwidth saved. Timestamps grow by small gaps and amounts are random full precision doubles, like the ones
+ * producers send, so most of what is saved is the repeated markup and the leading bytes of the timestamps.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"--enable-preview", "-Dlogback.configurationFile=logback-benchmarks.xml"})
+public class CompressionBenchmark {
+
+    private static final int MESSAGES_PER_INVOCATION = 1000;
+    // distinct invocations, so the 32 KiB window of deflate never sees the data repeat
+    private static final int INVOCATIONS = 64;
+
+    @Param({"xml", "binary"})
+    String format;
+
+    @Param({"1", "10", "100", "1000"})
+    int batchRecords;
+
+    @Param({"1", "6"})
+    int level;
+
+    private byte[] plain;
+    // offsets of the batches in plain, one more than there are batches
+    private int[] batchStarts;
+    private byte[] deflated;
+    // offsets of the invocations in the deflate stream of all batches, one more than there are invocations
+    private int[] deflatedStarts;
+    private byte[] output;
+    private Deflater deflater;
+    private Inflater inflater;
+    private int invocation;
+
+    /**
+     * Bytes in and out of the deflater, summed over an iteration.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Bytes {
+        public long rawBytes;
+        public long deflatedBytes;
+
+        @Setup(Level.Iteration)
+        public void clear() {
+            rawBytes = 0;
+            deflatedBytes = 0;
+        }
+    }
+
+    @Setup
+    public void encodeBatches() throws IOException {
+        var random = new Random(42);
+        var mapper = new XmlMapper();
+        var encoded = new ByteArrayOutputStream();
+        int batches = INVOCATIONS * MESSAGES_PER_INVOCATION / batchRecords;
+        batchStarts = new int[batches + 1];
+        long timestamp = 1_700_000_000_000L;
+        for (int batch = 0; batch < batches; batch++) {
+            batchStarts[batch] = encoded.size();
+            var frame = ByteBuffer.allocate(BinaryFrames.LENGTH_BYTES + batchRecords * BinaryFrames.RECORD_BYTES)
+                    .putInt(batchRecords * BinaryFrames.RECORD_BYTES);
+            for (int i = 0; i < batchRecords; i++) {
+                timestamp += 1 + random.nextInt(3);
+                var message = Benchmarks.randomMessage(random, timestamp);
+                if (format.equals("xml")) {
+                    encoded.write(mapper.writeValueAsBytes(message));
+                    encoded.write('\n');
+                } else {
+                    frame.putLong(message.getTimestampAsLong()).putDouble(message.getAmount());
+                }
+            }
+            if (format.equals("binary")) {
+                encoded.write(frame.array());
+            }
+        }
+        batchStarts[batches] = encoded.size();
+        plain = encoded.toByteArray();
+        // sync flushes of single records may make the stream longer than the records
+        output = new byte[2 * plain.length + 1024];
+        deflater = new Deflater(level);
+        inflater = new Inflater();
+
+        // the stream the combiner receives, sync flushed after every batch like a producer does
+        int batchesPerInvocation = MESSAGES_PER_INVOCATION / batchRecords;
+        deflatedStarts = new int[INVOCATIONS + 1];
+        int length = 0;
+        for (int i = 0; i < INVOCATIONS; i++) {
+            deflatedStarts[i] = length;
+            for (int batch = i * batchesPerInvocation; batch < (i + 1) * batchesPerInvocation; batch++) {
+                length += deflateBatch(batch, output, length);
+            }
+        }
+        deflatedStarts[INVOCATIONS] = length;
+        deflated = Arrays.copyOf(output, length);
+        deflater.reset();
+    }
+
+    @TearDown
+    public void end() {
+        deflater.end();
+        inflater.end();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES_PER_INVOCATION)
+    public int deflate(Bytes bytes) {
+        int current = nextInvocation();
+        if (current == 0) {
+            deflater.reset();
+        }
+        int batchesPerInvocation = MESSAGES_PER_INVOCATION / batchRecords;
+        int length = 0;
+        for (int batch = current * batchesPerInvocation; batch < (current + 1) * batchesPerInvocation; batch++) {
+            // the producer writes the deflated bytes out right away, so each batch starts at the same place
+            length += deflateBatch(batch, output, 0);
+        }
+        bytes.rawBytes += batchStarts[(current + 1) * batchesPerInvocation] - batchStarts[current * batchesPerInvocation];
+        bytes.deflatedBytes += length;
+        return length;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES_PER_INVOCATION)
+    public int inflate() throws DataFormatException {
+        int current = nextInvocation();
+        if (current == 0) {
+            inflater.reset();
+        }
+        inflater.setInput(deflated, deflatedStarts[current], deflatedStarts[current + 1] - deflatedStarts[current]);
+        int length = 0;
+        while (!inflater.needsInput()) {
+            length += inflater.inflate(output, 0, output.length);
+        }
+        return length;
+    }
+
+    /**
+     * @return number of deflated bytes written to target from offset on
+     */
+    private int deflateBatch(int batch, byte[] target, int offset) {
+        deflater.setInput(plain, batchStarts[batch], batchStarts[batch + 1] - batchStarts[batch]);
+        int length = 0;
+        do {
+            length += deflater.deflate(target, offset + length, target.length - offset - length, Deflater.SYNC_FLUSH);
+        } while (offset + length == target.length);
+        return length;
+    }
+
+    private int nextInvocation() {
+        int current = invocation;
+        invocation = (invocation + 1) % INVOCATIONS;
+        return current;
+    }
+}
@@ -0,0 +1,205 @@
+package sockets.combiner;
+
+import com.fasterxml.jackson.dataformat.xml.XmlMapper;
+import org.HdrHistogram.Histogram;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import sockets.protocol.BinaryFrames;
+import sockets.protocol.Handshake;
+import sockets.protocol.WireFormat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Combiner reading in-process producers over loopback and writing the merged messages into a file, so decoding,
+ * merging, encoding and the socket hand-over are measured together. Producers interleave their timestamps, every
+ * invocation combines {@link #MESSAGES} messages from freshly connected sockets.
+ * <p>
+ * {@link #combine(Latency)} reports messages per millisecond and, as secondary results, percentiles of the time each
+ * message took from being read off its socket until it was merged for emitting, as the combiner's metrics track it.
+ * Allocation rate is reported with the GC profiler, {@code -prof gc}.
+ */
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"--enable-preview", "-Dlogback.configurationFile=logback-benchmarks.xml"})
+public class EndToEndBenchmark {
+
+    private static final int MESSAGES = 1 << 18;
+    private static final int FRAME_RECORDS = 256;
+
+    @Param({"xml", "binary"})
+    String wireFormat;
+
+    @Param({"blocking", "selector"})
+    String ingestMode;
+
+    @Param({"4", "64"})
+    int producers;
+
+    @Param({"0", "8"})
+    int mergeFanIn;
+
+    private final List<byte[]> payloads = new ArrayList<>();
+    private final List<Thread> producerThreads = new ArrayList<>();
+    private WireFormat format;
+    private List<Socket> sockets;
+    private CombinerConfig config;
+    private Path outputFile;
+
+    @Setup
+    public void encodePayloads() throws IOException {
+        format = WireFormat.parse(wireFormat);
+        var mapper = new XmlMapper();
+        var random = new Random(42);
+        for (int producer = 0; producer < producers; producer++) {
+            var output = new ByteArrayOutputStream();
+            var frame = ByteBuffer.allocate(BinaryFrames.LENGTH_BYTES + FRAME_RECORDS * BinaryFrames.RECORD_BYTES);
+            frame.position(BinaryFrames.LENGTH_BYTES);
+            for (long timestamp = producer; timestamp < MESSAGES; timestamp += producers) {
+                var message = Benchmarks.randomMessage(random, timestamp);
+                if (format == WireFormat.BINARY) {
+                    if (frame.position() == frame.capacity()) {
+                        writeFrame(frame, output);
+                    }
+                    frame.putLong(message.getTimestampAsLong()).putDouble(message.getAmount());
+                } else {
+                    output.write(mapper.writeValueAsBytes(message));
+                    output.write('\n');
+                }
+            }
+            writeFrame(frame, output);
+            payloads.add(output.toByteArray());
+        }
+
+        outputFile = Files.createTempFile("combined", ".jsonl");
+        var properties = new Properties();
+        properties.setProperty("combiner.wire.format", wireFormat);
+        properties.setProperty("combiner.ingest.mode", ingestMode);
+        properties.setProperty("combiner.merge.fan.in", String.valueOf(mergeFanIn));
+        properties.setProperty("combiner.output.sinks", "file");
+        properties.setProperty("combiner.output.file", outputFile.toString());
+        // latency is tracked by the metrics, which are not logged
+        properties.setProperty("combiner.metrics.enabled", "true");
+        config = new CombinerConfig(properties);
+    }
+
+    @Setup(Level.Invocation)
+    public void connectProducers() throws IOException {
+        var loopback = InetAddress.getLoopbackAddress();
+        var opened = new ArrayList<Socket>();
+        for (var payload : payloads) {
+            var serverSocket = new ServerSocket(0, 1, loopback);
+            producerThreads.add(Thread.ofPlatform().name("producer-" + serverSocket.getLocalPort())
+                    .start(() -> produce(serverSocket, payload)));
+            var socket = SocketChannel.open().socket();
+            socket.connect(new InetSocketAddress(loopback, serverSocket.getLocalPort()));
+            opened.add(socket);
+        }
+        sockets = opened;
+    }
+
+    /**
+     * Ingest-to-emit latency of the messages merged in an iteration, the percentiles are updated after every
+     * invocation, so the ones of the whole iteration are reported.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Latency {
+        private final Histogram nanos = new Histogram(3);
+        public double p50Micros;
+        public double p99Micros;
+        public double p999Micros;
+        public double maxMicros;
+
+        @Setup(Level.Iteration)
+        public void clear() {
+            nanos.reset();
+            p50Micros = 0;
+            p99Micros = 0;
+            p999Micros = 0;
+            maxMicros = 0;
+        }
+
+        void add(Histogram run) {
+            nanos.add(run);
+            p50Micros = nanos.getValueAtPercentile(50) / 1000.0;
+            p99Micros = nanos.getValueAtPercentile(99) / 1000.0;
+            p999Micros = nanos.getValueAtPercentile(99.9) / 1000.0;
+            maxMicros = nanos.getMaxValue() / 1000.0;
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @OperationsPerInvocation(MESSAGES)
+    public void combine(Latency latency) {
+        var combiner = new Combiner(sockets, config);
+        combiner.readAndCombineMessageStreams();
+        latency.add(combiner.metrics().totalLatency());
+    }
+
+    @TearDown(Level.Invocation)
+    public void joinProducers() throws InterruptedException {
+        for (var thread : producerThreads) {
+            thread.join();
+        }
+        producerThreads.clear();
+    }
+
+    @TearDown
+    public void deleteOutput() throws IOException {
+        Files.deleteIfExists(outputFile);
+    }
+
+    private void produce(ServerSocket serverSocket, byte[] payload) {
+        try (serverSocket; var socket = serverSocket.accept()) {
+            if (format == WireFormat.BINARY) {
+                var handshake = new byte[Handshake.LENGTH];
+                new DataInputStream(socket.getInputStream()).readFully(handshake);
+                socket.getOutputStream().write(Handshake.encode(Handshake.decode(ByteBuffer.wrap(handshake))));
+            }
+            socket.getOutputStream().write(payload);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void writeFrame(ByteBuffer frame, ByteArrayOutputStream output) {
+        int payload = frame.position() - BinaryFrames.LENGTH_BYTES;
+        if (payload > 0) {
+            frame.putInt(0, payload);
+            output.write(frame.array(), 0, frame.position());
+        }
+        frame.position(BinaryFrames.LENGTH_BYTES);
+    }
+}
@@ -0,0 +1,75 @@
+package sockets.combiner;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import sockets.model.Message;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One merge step over heads of many streams in steady state. Timestamps interleave round robin, so every step takes
+ * the head of the next stream, which is then topped up again, keeping the same number of heads for every step.
+ * Messages are recycled like in the combiner, so {@code -prof gc} shows the merge step allocating nothing.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"--enable-preview", "-Dlogback.configurationFile=logback-benchmarks.xml"})
+public class MergeBenchmark {
+
+    private static final int MESSAGES_PER_STREAM = 4;
+
+    @Param({"2", "16", "256", "4096"})
+    int streams;
+
+    @Param({"tournament", "linear"})
+    String strategy;
+
+    private final Random random = new Random(42);
+    private final List<MessageStream> messageStreams = new ArrayList<>();
+    private final Message merged = new Message();
+    private MergeStrategy mergeStrategy;
+
+    @Setup
+    public void fillStreams() {
+        for (int i = 0; i < streams; i++) {
+            var messageStream = new MessageStream(MESSAGES_PER_STREAM);
+            for (int j = 0; j < MESSAGES_PER_STREAM; j++) {
+                messageStream.offer(Benchmarks.randomMessage(random, (long) j * streams + i));
+            }
+            messageStreams.add(messageStream);
+        }
+        var properties = new Properties();
+        properties.setProperty("combiner.merge.strategy", strategy);
+        mergeStrategy = new CombinerConfig(properties).createMergeStrategy(messageStreams);
+    }
+
+    @Benchmark
+    public Message mergeNext() {
+        // the benchmark thread is both reader and combiner of every stream, which is one thread for each side
+        mergeStrategy.mergeNextInto(merged);
+        long timestamp = merged.getTimestampAsLong();
+        var messageStream = messageStreams.get((int) (timestamp % streams));
+        // tops up with the message the merge recycled, like a reader decoding into it
+        var message = messageStream.obtain();
+        message.setTimestampAsLong(timestamp + (long) MESSAGES_PER_STREAM * streams);
+        message.setAmount(random.nextDouble());
+        messageStream.offer(message);
+        return merged;
+    }
+}
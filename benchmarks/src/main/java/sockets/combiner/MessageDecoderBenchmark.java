@@ -0,0 +1,73 @@
+package sockets.combiner;
+
+import com.fasterxml.jackson.dataformat.xml.XmlMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import sockets.model.Message;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding of one XML line as sent by producers, the hand written decoder against the Jackson mapping it replaced.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"--enable-preview", "-Dlogback.configurationFile=logback-benchmarks.xml"})
+public class MessageDecoderBenchmark {
+
+    private static final int LINES = 1024;
+
+    private final MessageDecoder decoder = new MessageDecoder();
+    private final XmlMapper mapper = new XmlMapper();
+    private final int[] lineStarts = new int[LINES];
+    private final int[] lineEnds = new int[LINES];
+    private byte[] lines;
+    private ByteBuffer buffer;
+    private int next;
+
+    @Setup
+    public void encodeLines() throws IOException {
+        var random = new Random(42);
+        var output = new ByteArrayOutputStream();
+        for (int i = 0; i < LINES; i++) {
+            lineStarts[i] = output.size();
+            output.write(mapper.writeValueAsBytes(Benchmarks.randomMessage(random, 1_700_000_000_000L + i)));
+            lineEnds[i] = output.size();
+            output.write('\n');
+        }
+        lines = output.toByteArray();
+        buffer = ByteBuffer.wrap(lines);
+    }
+
+    @Benchmark
+    public Message decoder() throws IOException {
+        int line = nextLine();
+        return decoder.decode(buffer, lineStarts[line], lineEnds[line]);
+    }
+
+    @Benchmark
+    public Message jackson() throws IOException {
+        int line = nextLine();
+        return mapper.readValue(lines, lineStarts[line], lineEnds[line] - lineStarts[line], Message.class);
+    }
+
+    private int nextLine() {
+        next = next + 1 & LINES - 1;
+        return next;
+    }
+}
@@ -0,0 +1,66 @@
+package sockets.combiner;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import sockets.model.Message;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding of one merged message into a JSON line, the reusable writer of the sinks against the Jackson mapping it
+ * replaced.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"--enable-preview", "-Dlogback.configurationFile=logback-benchmarks.xml"})
+public class OutputEncodingBenchmark {
+
+    private static final int MESSAGES = 1024;
+
+    private final Message[] messages = new Message[MESSAGES];
+    private final MessageJsonWriter writer = new MessageJsonWriter(256);
+    private final ObjectMapper mapper = new ObjectMapper();
+    private int next;
+
+    @Setup
+    public void createMessages() {
+        var random = new Random(42);
+        for (int i = 0; i < MESSAGES; i++) {
+            messages[i] = Benchmarks.randomMessage(random, 1_700_000_000_000L + i);
+        }
+        mapper.configure(SerializationFeature.WRAP_ROOT_VALUE, true);
+    }
+
+    @Benchmark
+    public int jsonWriter() {
+        writer.clear();
+        writer.write(nextMessage());
+        writer.newLine();
+        return writer.length();
+    }
+
+    @Benchmark
+    public byte[] jackson() throws JsonProcessingException {
+        return mapper.writeValueAsBytes(nextMessage());
+    }
+
+    private Message nextMessage() {
+        next = next + 1 & MESSAGES - 1;
+        return messages[next];
+    }
+}
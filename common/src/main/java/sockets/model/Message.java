@@ -1,31 +1,82 @@
 package sockets.model;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
 import com.fasterxml.jackson.annotation.JsonRootName;
 import com.fasterxml.jackson.dataformat.xml.annotation.JacksonXmlRootElement;
 
 import java.math.BigInteger;
+import java.util.Objects;
 
 @JsonRootName(value = "data")
 @JacksonXmlRootElement(localName = "data")
+@JsonPropertyOrder({"timestamp", "amount"})
 public class Message {
 
-    private BigInteger timestamp;
+    // timestamps fitting into 64 bits are kept as primitive, only wider ones fall back to BigInteger
+    private long timestamp;
+    private BigInteger wideTimestamp;
     private double amount;
 
     public Message() {
     }
 
-    public Message(BigInteger timestamp, double amount) {
+    public Message(long timestamp, double amount) {
         this.timestamp = timestamp;
         this.amount = amount;
     }
 
+    public Message(BigInteger timestamp, double amount) {
+        setTimestamp(timestamp);
+        this.amount = amount;
+    }
+
+    @JsonIgnore
     public BigInteger getTimestamp() {
-        return timestamp;
+        return wideTimestamp != null ? wideTimestamp : BigInteger.valueOf(timestamp);
     }
 
+    /**
+     * Keeps the timestamp as primitive if it fits into a long. Every message has a timestamp, a message without one
+     * could be neither ordered nor merged.
+     *
+     * @throws NullPointerException if the timestamp is null
+     */
+    @JsonIgnore
     public void setTimestamp(BigInteger timestamp) {
+        Objects.requireNonNull(timestamp, "Timestamp of a message cannot be null");
+        if (timestamp.bitLength() < Long.SIZE) {
+            this.timestamp = timestamp.longValue();
+            this.wideTimestamp = null;
+        } else {
+            this.wideTimestamp = timestamp;
+        }
+    }
+
+    /**
+     * @return timestamp as primitive, only meaningful if {@link #hasWideTimestamp()} is false
+     */
+    @JsonIgnore
+    public long getTimestampAsLong() {
+        return timestamp;
+    }
+
+    @JsonIgnore
+    public void setTimestampAsLong(long timestamp) {
         this.timestamp = timestamp;
+        this.wideTimestamp = null;
+    }
+
+    public boolean hasWideTimestamp() {
+        return wideTimestamp != null;
+    }
+
+    public int compareTimestampTo(Message other) {
+        if (wideTimestamp == null && other.wideTimestamp == null) {
+            return Long.compare(timestamp, other.timestamp);
+        }
+        return getTimestamp().compareTo(other.getTimestamp());
     }
 
     public double getAmount() {
@@ -36,10 +87,44 @@ public class Message {
         this.amount = amount;
     }
 
+    /**
+     * @return new message with the same timestamp and the given amount
+     */
+    public Message withAmount(double amount) {
+        var message = new Message(timestamp, amount);
+        message.wideTimestamp = wideTimestamp;
+        return message;
+    }
+
+    /**
+     * Overwrites timestamp and amount with those of the other message, so instances can be reused.
+     */
+    public void copyFrom(Message other) {
+        timestamp = other.timestamp;
+        wideTimestamp = other.wideTimestamp;
+        amount = other.amount;
+    }
+
+    @JsonProperty("timestamp")
+    private Number timestampForSerialization() {
+        return wideTimestamp != null ? wideTimestamp : (Number) timestamp;
+    }
+
+    @JsonProperty("timestamp")
+    private void parseTimestamp(String text) {
+        var value = text.trim();
+        // 18 decimal digits always fit into long, longer values are checked through BigInteger
+        if (value.length() <= 18) {
+            setTimestampAsLong(Long.parseLong(value));
+        } else {
+            setTimestamp(new BigInteger(value));
+        }
+    }
+
     @Override
     public String toString() {
         return "Message{" +
-                "timestamp=" + timestamp +
+                "timestamp=" + (wideTimestamp != null ? wideTimestamp : timestamp) +
                 ", amount=" + amount +
                 '}';
     }
@@ -0,0 +1,21 @@
+package sockets.protocol;
+
+/**
+ * Layout of the binary wire format. Messages are sent in frames, each starting with a 4 byte big endian length of its
+ * payload followed by that many bytes of records. A record is a 64 bit big endian timestamp and an IEEE 754 double
+ * amount, so a frame may batch any number of records up to {@link #MAX_FRAME_BYTES}. Timestamps wider than 64 bits
+ * cannot be sent in this format.
+ */
+public final class BinaryFrames {
+
+    public static final int LENGTH_BYTES = Integer.BYTES;
+    public static final int RECORD_BYTES = Long.BYTES + Double.BYTES;
+    public static final int MAX_FRAME_BYTES = 1 << 20;
+
+    private BinaryFrames() {
+    }
+
+    public static boolean isValidLength(int length) {
+        return length > 0 && length <= MAX_FRAME_BYTES && length % RECORD_BYTES == 0;
+    }
+}
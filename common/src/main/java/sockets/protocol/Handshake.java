@@ -0,0 +1,73 @@
+package sockets.protocol;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Negotiates the wire format of a connection. A combiner which wants anything but XML sends a handshake right after
+ * connecting, a producer supporting the format answers with the same handshake before the first message. Producers
+ * which know nothing about handshakes just send XML, which never starts with the magic, so the combiner stays
+ * compatible with them. The other way round a producer hearing no handshake from the combiner sends XML.
+ * <p>
+ * Compression is negotiated the same way: the combiner asks for it and everything after the answer is one deflate
+ * stream if the producer accepted. Peers not knowing about compression take such a request for an unknown format and
+ * fall back to uncompressed XML.
+ * <p>
+ * Layout: 4 bytes magic "SCMB", 1 byte protocol version, 1 byte {@link WireFormat#code()} whose highest bit is set
+ * for compression.
+ */
+public final class Handshake {
+
+    public static final int LENGTH = 6;
+    public static final byte VERSION = 1;
+    private static final int MAGIC = 'S' << 24 | 'C' << 16 | 'M' << 8 | 'B';
+    private static final byte COMPRESSED = (byte) 0x80;
+
+    private Handshake() {
+    }
+
+    /**
+     * Format and compression one side asks for or the other side accepted.
+     */
+    public record Options(WireFormat format, boolean compressed) {
+    }
+
+    public static byte[] encode(WireFormat format) {
+        return encode(format, false);
+    }
+
+    public static byte[] encode(WireFormat format, boolean compressed) {
+        return ByteBuffer.allocate(LENGTH)
+                .putInt(MAGIC)
+                .put(VERSION)
+                .put((byte) (format.code() | (compressed ? COMPRESSED : 0)))
+                .array();
+    }
+
+    /**
+     * Reads a handshake from the readable part of the buffer, which has to hold at least {@link #LENGTH} bytes.
+     *
+     * @return requested or accepted format, advancing the buffer past the handshake, or null without advancing the
+     * buffer if it does not start with a handshake of a known version and format
+     */
+    public static WireFormat decode(ByteBuffer buffer) {
+        var options = decodeOptions(buffer);
+        return options == null ? null : options.format();
+    }
+
+    /**
+     * Like {@link #decode(ByteBuffer)}, for sides which support compression.
+     */
+    public static Options decodeOptions(ByteBuffer buffer) {
+        int start = buffer.position();
+        if (buffer.getInt(start) != MAGIC || buffer.get(start + 4) != VERSION) {
+            return null;
+        }
+        byte code = buffer.get(start + 5);
+        var format = WireFormat.ofCode((byte) (code & ~COMPRESSED));
+        if (format == null) {
+            return null;
+        }
+        buffer.position(start + LENGTH);
+        return new Options(format, (code & COMPRESSED) != 0);
+    }
+}
@@ -0,0 +1,40 @@
+package sockets.protocol;
+
+/**
+ * Encoding of messages on the wire between producer and combiner. XML is what producers always sent, one document
+ * per line, and stays the default. BINARY sends length prefixed frames of fixed size records, see {@link BinaryFrames}.
+ */
+public enum WireFormat {
+    XML((byte) 0),
+    BINARY((byte) 1);
+
+    private final byte code;
+
+    WireFormat(byte code) {
+        this.code = code;
+    }
+
+    public byte code() {
+        return code;
+    }
+
+    /**
+     * @return format with the given code, null for unknown codes
+     */
+    public static WireFormat ofCode(byte code) {
+        for (WireFormat format : values()) {
+            if (format.code == code) {
+                return format;
+            }
+        }
+        return null;
+    }
+
+    public static WireFormat parse(String name) {
+        return switch (name.trim()) {
+            case "xml" -> XML;
+            case "binary" -> BINARY;
+            default -> throw new IllegalArgumentException("Unknown wire format " + name);
+        };
+    }
+}
@@ -0,0 +1,64 @@
+package sockets.combiner;
+
+import sockets.model.Message;
+import sockets.protocol.BinaryFrames;
+import sockets.protocol.WireFormat;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Frames the binary wire format, see {@link BinaryFrames}. Records are decoded one by one as soon as they arrive, a
+ * frame does not have to be complete, so batching on the producer side adds no latency here.
+ */
+class BinaryFramer extends RecordFramer {
+
+    private int recordsLeftInFrame;
+    private long decodedCount;
+
+    BinaryFramer(MessageStream messageStream) {
+        super(messageStream);
+    }
+
+    @Override
+    WireFormat wireFormat() {
+        return WireFormat.BINARY;
+    }
+
+    @Override
+    boolean decodeNext(ByteBuffer buffer, Message target) throws ProtocolException {
+        if (recordsLeftInFrame == 0) {
+            if (buffer.remaining() < BinaryFrames.LENGTH_BYTES) {
+                return false;
+            }
+            int length = buffer.getInt(buffer.position());
+            if (!BinaryFrames.isValidLength(length)) {
+                throw new ProtocolException("Invalid binary frame length " + length);
+            }
+            buffer.position(buffer.position() + BinaryFrames.LENGTH_BYTES);
+            recordsLeftInFrame = length / BinaryFrames.RECORD_BYTES;
+        }
+        if (buffer.remaining() < BinaryFrames.RECORD_BYTES) {
+            return false;
+        }
+        recordsLeftInFrame--;
+        decodedCount++;
+        target.setTimestampAsLong(buffer.getLong());
+        target.setAmount(buffer.getDouble());
+        return true;
+    }
+
+    @Override
+    void discardPartialRecord() {
+        recordsLeftInFrame = 0;
+    }
+
+    @Override
+    String throughputSummary(long elapsedNanos) {
+        var elapsedMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(elapsedNanos));
+        return "decoded " + decodedCount + " binary messages (" + decodedCount * BinaryFrames.RECORD_BYTES +
+                " bytes of records) in " + elapsedMillis + " ms, " + decodedCount * 1000 / elapsedMillis +
+                " messages/s, skipped " + skippedDuplicates() + " duplicates after reconnecting or restarting" + reorderSummary();
+    }
+}
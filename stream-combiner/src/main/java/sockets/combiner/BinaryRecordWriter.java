@@ -0,0 +1,25 @@
+package sockets.combiner;
+
+import sockets.model.Message;
+import sockets.protocol.BinaryFrames;
+
+/**
+ * Writes every message as a binary frame of one record, see {@link BinaryFrames}, so frames never have to be patched
+ * once a record is handed over. Not thread safe.
+ */
+class BinaryRecordWriter extends MessageEncoder {
+
+    BinaryRecordWriter(int initialCapacity) {
+        super(initialCapacity);
+    }
+
+    @Override
+    void writeRecord(Message message) {
+        if (message.hasWideTimestamp()) {
+            throw new IllegalArgumentException("Timestamp of " + message + " does not fit into the binary wire format");
+        }
+        writeBinary(BinaryFrames.RECORD_BYTES);
+        writeBinary(message.getTimestampAsLong());
+        writeBinary(Double.doubleToRawLongBits(message.getAmount()));
+    }
+}
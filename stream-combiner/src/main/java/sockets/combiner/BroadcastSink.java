@@ -0,0 +1,505 @@
+package sockets.combiner;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import sockets.model.Message;
+import sockets.protocol.Handshake;
+import sockets.protocol.WireFormat;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serves the merged output to any number of subscribers connecting to a TCP port, as JSON lines or in the wire format
+ * of stream producers, so another combiner can take it as an upstream. Each message is encoded once into a shared
+ * ring of bytes; a broadcast thread sends every subscriber the part of the ring it has not
+ * received yet with one gathering write, straight from the ring, so subscribers cost neither encoding nor copying.
+ * <p>
+ * Positions are absolute byte counts. The combiner publishes what it encoded on flush or once a batch is full, the
+ * broadcast thread releases bytes all subscribers received. The combiner never overwrites unreleased bytes: if the
+ * ring is full it waits, and subscribers holding the space are handled by the {@link SlowConsumerPolicy}. New
+ * subscribers start with the next published message, for a format negotiated by handshake once they sent theirs.
+ */
+class BroadcastSink implements OutputSink {
+
+    private static final Logger log = LoggerFactory.getLogger(BroadcastSink.class);
+    // how long closing waits for subscribers to receive what was published
+    private static final long CLOSE_TIMEOUT_MILLIS = 5000;
+    private static final byte[] GAP_PREFIX = "{\"gap\":{\"droppedBytes\":".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] GAP_SUFFIX = "}}\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private final ByteBuffer ring;
+    private final int capacity;
+    private final int batchBytes;
+    private final SlowConsumerPolicy policy;
+    private final WaitStrategy spaceWaitStrategy;
+    private final MessageEncoder encoder;
+    private final WireFormat handshakeFormat;
+    private final Thread broadcastThread;
+
+    // combiner side
+    private long written;
+    private volatile long published;
+    // position released has to reach for the combiner to continue, -1 while it is not waiting
+    private volatile long neededRelease = -1;
+    private volatile boolean closing;
+
+    // broadcast side
+    private final List<Subscriber> subscribers = new ArrayList<>();
+    private final List<Subscriber> handshakingSubscribers = new ArrayList<>();
+    private final ByteBuffer discardBuffer = ByteBuffer.allocate(256);
+    private volatile long released;
+    private volatile int subscriberCount;
+    private volatile IOException failure;
+    private long acceptedCount;
+    private long disconnectedCount;
+    private long gapCount;
+
+    private BroadcastSink(ServerSocketChannel serverChannel, MessageEncoder encoder, WireFormat handshakeFormat,
+                          int ringBytes, int batchBytes, SlowConsumerPolicy policy, WaitStrategy spaceWaitStrategy)
+            throws IOException {
+        this.serverChannel = serverChannel;
+        this.encoder = encoder;
+        this.handshakeFormat = handshakeFormat;
+        this.selector = Selector.open();
+        this.ring = ByteBuffer.allocateDirect(ringBytes);
+        this.capacity = ringBytes;
+        this.batchBytes = Math.min(batchBytes, ringBytes / 2);
+        this.policy = policy;
+        this.spaceWaitStrategy = spaceWaitStrategy;
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        broadcastThread = Thread.ofPlatform().name("broadcast").daemon().start(this::run);
+    }
+
+    /**
+     * Serves JSON lines, where dropped output of slow subscribers can be marked by gap lines.
+     *
+     * @param ringBytes  output kept for subscribers, one of them may be that far behind before it counts as slow
+     * @param batchBytes encoded bytes published to the subscribers together if the combiner does not flush earlier
+     */
+    static BroadcastSink open(InetSocketAddress address, int ringBytes, int batchBytes, SlowConsumerPolicy policy,
+                              WaitStrategy spaceWaitStrategy) throws IOException {
+        return open(address, new MessageJsonWriter(128), null, ringBytes, batchBytes, policy, spaceWaitStrategy);
+    }
+
+    /**
+     * Serves the wire format of stream producers. Readers of it know nothing about gaps, so slow subscribers can only
+     * be disconnected or waited for.
+     */
+    static BroadcastSink openAsProducer(InetSocketAddress address, WireFormat format, int ringBytes, int batchBytes,
+                                        SlowConsumerPolicy policy, WaitStrategy spaceWaitStrategy) throws IOException {
+        if (policy == SlowConsumerPolicy.DROP) {
+            throw new IllegalArgumentException("Slow consumer policy " + policy + " cannot be used with " + format);
+        }
+        return switch (format) {
+            case XML -> open(address, new MessageXmlWriter(128), null, ringBytes, batchBytes, policy, spaceWaitStrategy);
+            case BINARY -> open(address, new BinaryRecordWriter(32), WireFormat.BINARY, ringBytes, batchBytes, policy,
+                    spaceWaitStrategy);
+        };
+    }
+
+    private static BroadcastSink open(InetSocketAddress address, MessageEncoder encoder, WireFormat handshakeFormat,
+                                      int ringBytes, int batchBytes, SlowConsumerPolicy policy,
+                                      WaitStrategy spaceWaitStrategy) throws IOException {
+        var serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.bind(address);
+            var sink = new BroadcastSink(serverChannel, encoder, handshakeFormat, ringBytes, batchBytes, policy,
+                    spaceWaitStrategy);
+            log.info("Broadcasting merged messages as " + encoder.getClass().getSimpleName() + " on " +
+                    serverChannel.getLocalAddress() + " through a ring of " + ringBytes +
+                    " bytes, slow subscribers are handled with policy " + policy);
+            return sink;
+        } catch (IOException e) {
+            serverChannel.close();
+            throw e;
+        }
+    }
+
+    int localPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    int subscriberCount() {
+        return subscriberCount;
+    }
+
+    /**
+     * Blocks until the given number of subscribers is connected, so they do not miss the start of the output.
+     */
+    void awaitSubscribers(int count) throws IOException {
+        if (subscriberCount < count) {
+            log.info("Waiting for " + count + " subscribers on port " + localPort());
+        }
+        try {
+            while (subscriberCount < count) {
+                if (failure != null) {
+                    throw new IOException("Broadcast stopped", failure);
+                }
+                Thread.sleep(10);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for subscribers", e);
+        }
+    }
+
+    @Override
+    public void emit(Message message) throws IOException {
+        encoder.clear();
+        encoder.writeRecord(message);
+        int length = encoder.length();
+        if (length > capacity) {
+            throw new IllegalArgumentException("Message " + message + " does not fit into the broadcast ring");
+        }
+        if (written + length - released > capacity) {
+            publish();
+            awaitSpace(written + length - capacity);
+        }
+        int index = (int) (written % capacity);
+        int headLength = Math.min(length, capacity - index);
+        encoder.copyTo(0, ring, index, headLength);
+        if (headLength < length) {
+            encoder.copyTo(headLength, ring, 0, length - headLength);
+        }
+        written += length;
+        if (written - published >= batchBytes) {
+            publish();
+        }
+    }
+
+    @Override
+    public void flush() {
+        publish();
+    }
+
+    @Override
+    public void close() throws IOException {
+        publish();
+        closing = true;
+        selector.wakeup();
+        try {
+            broadcastThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        log.info("Broadcast " + published + " bytes to " + acceptedCount + " subscribers, disconnected " +
+                disconnectedCount + " and sent " + gapCount + " gaps to slow ones");
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void publish() {
+        if (published != written) {
+            published = written;
+            selector.wakeup();
+        }
+    }
+
+    private void awaitSpace(long position) throws IOException {
+        neededRelease = position;
+        selector.wakeup();
+        try {
+            while (released < position) {
+                var observedSignalCount = spaceWaitStrategy.signalCount();
+                if (failure != null) {
+                    throw new IOException("Broadcast stopped", failure);
+                }
+                if (released >= position) {
+                    break;
+                }
+                spaceWaitStrategy.await(observedSignalCount);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for subscribers", e);
+        } finally {
+            neededRelease = -1;
+        }
+    }
+
+    private void run() {
+        try (selector; serverChannel) {
+            long closeDeadline = Long.MAX_VALUE;
+            while (true) {
+                if (closing) {
+                    if (closeDeadline == Long.MAX_VALUE) {
+                        closeDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CLOSE_TIMEOUT_MILLIS);
+                    }
+                    if (released == published || System.nanoTime() > closeDeadline) {
+                        break;
+                    }
+                    selector.select(1);
+                } else {
+                    selector.select();
+                }
+                for (var key : selector.selectedKeys()) {
+                    if (key.isValid() && key.isAcceptable()) {
+                        accept();
+                    } else if (key.isValid() && key.isReadable()) {
+                        var subscriber = (Subscriber) key.attachment();
+                        if (subscriber.ready) {
+                            discardInput(subscriber);
+                        } else {
+                            readHandshake(subscriber);
+                        }
+                    }
+                }
+                selector.selectedKeys().clear();
+                sendAll();
+            }
+        } catch (IOException | RuntimeException e) {
+            log.error("Broadcast failed due to " + e.getMessage(), e);
+            failure = e instanceof IOException io ? io : new IOException(e);
+        } finally {
+            for (var subscriber : subscribers) {
+                closeQuietly(subscriber);
+            }
+            for (var subscriber : handshakingSubscribers) {
+                closeQuietly(subscriber);
+            }
+            released = Long.MAX_VALUE;
+            spaceWaitStrategy.signal();
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            var subscriber = new Subscriber(channel, ring, published);
+            acceptedCount++;
+            // input is read even if there is no handshake, unread input would turn closing into a reset
+            subscriber.key = channel.register(selector, SelectionKey.OP_READ, subscriber);
+            if (handshakeFormat == null) {
+                subscriber.ready = true;
+                subscribers.add(subscriber);
+                subscriberCount = subscribers.size();
+                log.info("Subscriber " + channel.getRemoteAddress() + " connected");
+            } else {
+                // the gap line buffer takes the handshake first
+                subscriber.views[0].clear().limit(Handshake.LENGTH);
+                handshakingSubscribers.add(subscriber);
+            }
+        }
+    }
+
+    /**
+     * Subscribers of a format negotiated by handshake are served once they asked for that format, the answer goes
+     * before the first message.
+     */
+    private void readHandshake(Subscriber subscriber) {
+        var address = subscriber.channel.socket().getRemoteSocketAddress();
+        var handshake = subscriber.views[0];
+        try {
+            if (subscriber.channel.read(handshake) == -1) {
+                throw new IOException("end of stream");
+            }
+            if (handshake.hasRemaining()) {
+                return;
+            }
+        } catch (IOException e) {
+            log.info("Subscriber " + address + " disconnected during the handshake due to " + e.getMessage());
+            closeQuietly(subscriber);
+            handshakingSubscribers.remove(subscriber);
+            return;
+        }
+        handshakingSubscribers.remove(subscriber);
+        var requestedFormat = Handshake.decode(handshake.flip());
+        if (requestedFormat != handshakeFormat) {
+            log.warn("Subscriber " + address + " asked for " + requestedFormat + " instead of " + handshakeFormat +
+                    ", disconnecting it");
+            closeQuietly(subscriber);
+            return;
+        }
+        handshake.clear().put(Handshake.encode(handshakeFormat)).flip();
+        subscriber.sent = published;
+        subscriber.ready = true;
+        subscribers.add(subscriber);
+        subscriberCount = subscribers.size();
+        log.info("Subscriber " + address + " connected, sending " + handshakeFormat);
+    }
+
+    /**
+     * Subscribers have nothing to say after the handshake, anything they send is dropped. Subscribers which closed
+     * their end are removed right away instead of on the next failing write.
+     */
+    private void discardInput(Subscriber subscriber) {
+        try {
+            int read;
+            do {
+                read = subscriber.channel.read(discardBuffer.clear());
+            } while (read > 0);
+            if (read == -1) {
+                throw new IOException("end of stream");
+            }
+        } catch (IOException e) {
+            log.info("Subscriber " + subscriber.channel.socket().getRemoteSocketAddress() + " disconnected due to " +
+                    e.getMessage());
+            closeQuietly(subscriber);
+            subscribers.remove(subscriber);
+            subscriberCount = subscribers.size();
+        }
+    }
+
+    private void sendAll() {
+        long published = this.published;
+        long oldest = sendToSubscribers(published);
+        long needed = neededRelease;
+        if (needed != -1 && oldest < needed && policy != SlowConsumerPolicy.BLOCK) {
+            for (var iterator = subscribers.iterator(); iterator.hasNext(); ) {
+                var subscriber = iterator.next();
+                if (subscriber.sent >= needed) {
+                    continue;
+                }
+                if (policy == SlowConsumerPolicy.DISCONNECT) {
+                    log.warn("Disconnecting slow subscriber " + subscriber.channel.socket().getRemoteSocketAddress() +
+                            ", it is " + (published - subscriber.sent) + " bytes behind");
+                    closeQuietly(subscriber);
+                    iterator.remove();
+                    disconnectedCount++;
+                } else {
+                    subscriber.skipTo(published, capacity);
+                    gapCount++;
+                }
+            }
+            subscriberCount = subscribers.size();
+            oldest = sendToSubscribers(published);
+        }
+        released = oldest;
+        spaceWaitStrategy.signal();
+    }
+
+    /**
+     * @return position of the subscriber furthest behind, the published one if all received everything
+     */
+    private long sendToSubscribers(long published) {
+        long oldest = published;
+        for (var iterator = subscribers.iterator(); iterator.hasNext(); ) {
+            var subscriber = iterator.next();
+            try {
+                subscriber.send(published, capacity);
+                oldest = Math.min(oldest, subscriber.sent);
+            } catch (IOException e) {
+                log.info("Subscriber " + subscriber.channel.socket().getRemoteSocketAddress() + " disconnected due to " +
+                        e.getMessage());
+                closeQuietly(subscriber);
+                iterator.remove();
+                subscriberCount = subscribers.size();
+            }
+        }
+        return oldest;
+    }
+
+    private void closeQuietly(Subscriber subscriber) {
+        try {
+            subscriber.channel.close();
+        } catch (IOException e) {
+            log.warn("Failed to close subscriber " + subscriber.channel + " due to " + e.getMessage());
+        }
+    }
+
+    private static class Subscriber {
+        private static final int GAP_LINE_BYTES = GAP_PREFIX.length + 20 + GAP_SUFFIX.length;
+
+        private final SocketChannel channel;
+        // rest of a cut record and gap line, then the ring up to its end, then the ring from its start
+        private final ByteBuffer[] views = new ByteBuffer[3];
+        private SelectionKey key;
+        private boolean ready;
+        private long sent;
+        // a write stopped within a record, the ring bytes up to its line break belong to it
+        private boolean midRecord;
+        // bytes skipped since the last gap line was started
+        private long droppedUnreported;
+
+        private Subscriber(SocketChannel channel, ByteBuffer ring, long sent) {
+            this.channel = channel;
+            this.sent = sent;
+            views[0] = ByteBuffer.allocate(GAP_LINE_BYTES).flip();
+            views[1] = ring.duplicate();
+            views[2] = ring.duplicate();
+        }
+
+        void send(long published, int capacity) throws IOException {
+            var gap = views[0];
+            if (!gap.hasRemaining() && droppedUnreported > 0) {
+                gap.clear().put(GAP_PREFIX).put(String.valueOf(droppedUnreported).getBytes(StandardCharsets.US_ASCII))
+                        .put(GAP_SUFFIX).flip();
+                droppedUnreported = 0;
+            }
+            if (gap.hasRemaining() && droppedUnreported > 0) {
+                // the ring bytes go after the next gap line, which waits for the current one to be sent
+                channel.write(gap);
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+            long unsent = published - sent;
+            if (unsent == 0 && !gap.hasRemaining()) {
+                return;
+            }
+            int start = (int) (sent % capacity);
+            int headLength = (int) Math.min(unsent, capacity - start);
+            views[1].clear().limit(start + headLength).position(start);
+            views[2].clear().limit((int) unsent - headLength);
+            int gapRemaining = gap.remaining();
+            long bytes = channel.write(views);
+            long ringBytes = bytes - (gapRemaining - gap.remaining());
+            if (ringBytes > 0) {
+                sent += ringBytes;
+                midRecord = views[1].get((int) ((sent - 1) % capacity)) != '\n';
+            }
+            boolean pending = sent < published || gap.hasRemaining();
+            // without pending bytes the next publish wakes the broadcast thread anyway
+            key.interestOps(pending ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        }
+
+        /**
+         * Drops the bytes not sent yet, a gap line reporting them is sent before the next ones. A record cut by a
+         * partial write is finished first, its rest is copied out of the ring, so the gap line starts a line of its own
+         * and the ring can be released right away.
+         */
+        void skipTo(long published, int capacity) {
+            long recordEnd = sent;
+            if (midRecord) {
+                // published ends with a complete record, so there is a line break before it
+                while (views[1].get((int) (recordEnd % capacity)) != '\n') {
+                    recordEnd++;
+                }
+                recordEnd++;
+            }
+            droppedUnreported += published - recordEnd;
+            if (!views[0].hasRemaining()) {
+                // a pending gap line means the ring is sent up to a record boundary, nothing is cut then
+                int restLength = (int) (recordEnd - sent);
+                if (views[0].capacity() < restLength + GAP_LINE_BYTES) {
+                    views[0] = ByteBuffer.allocate(restLength + GAP_LINE_BYTES);
+                }
+                var rest = views[0].clear();
+                for (long position = sent; position < recordEnd; position++) {
+                    rest.put(views[1].get((int) (position % capacity)));
+                }
+                rest.put(GAP_PREFIX).put(String.valueOf(droppedUnreported).getBytes(StandardCharsets.US_ASCII))
+                        .put(GAP_SUFFIX).flip();
+                droppedUnreported = 0;
+            }
+            sent = published;
+            midRecord = false;
+        }
+    }
+}
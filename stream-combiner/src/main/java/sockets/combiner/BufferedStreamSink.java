@@ -0,0 +1,61 @@
+package sockets.combiner;
+
+import sockets.model.Message;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes merged messages as JSON lines to an output stream, collecting them in one reusable buffer and writing it out
+ * in a single call once it holds at least batchBytes or the combiner flushes.
+ */
+class BufferedStreamSink implements OutputSink {
+
+    private final OutputStream output;
+    private final int batchBytes;
+    private final boolean closeOutput;
+    private final MessageJsonWriter writer;
+
+    /**
+     * @param closeOutput false for streams owned by someone else, like {@link System#out}
+     */
+    BufferedStreamSink(OutputStream output, int batchBytes, boolean closeOutput) {
+        this.output = output;
+        this.batchBytes = batchBytes;
+        this.closeOutput = closeOutput;
+        writer = new MessageJsonWriter(batchBytes + 128);
+    }
+
+    @Override
+    public void emit(Message message) throws IOException {
+        writer.write(message);
+        writer.newLine();
+        if (writer.length() >= batchBytes) {
+            writeBatch();
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        writeBatch();
+        output.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            if (closeOutput) {
+                output.close();
+            }
+        }
+    }
+
+    private void writeBatch() throws IOException {
+        if (writer.length() > 0) {
+            writer.writeTo(output);
+            writer.clear();
+        }
+    }
+}
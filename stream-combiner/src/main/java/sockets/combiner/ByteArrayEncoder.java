@@ -0,0 +1,123 @@
+package sockets.combiner;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reusable byte array with the primitives encoders write records with, text in ASCII and binary in big endian.
+ * Not thread safe.
+ */
+abstract class ByteArrayEncoder {
+
+    // long has at most 19 digits and a sign
+    private static final int MAX_LONG_LENGTH = 20;
+
+    private final DoubleToAscii doubleToAscii = new DoubleToAscii();
+    private byte[] bytes;
+    private int length;
+
+    ByteArrayEncoder(int initialCapacity) {
+        bytes = new byte[Math.max(64, initialCapacity)];
+    }
+
+    int length() {
+        return length;
+    }
+
+    void clear() {
+        length = 0;
+    }
+
+    void writeTo(OutputStream output) throws IOException {
+        output.write(bytes, 0, length);
+    }
+
+    /**
+     * Copies count bytes starting at from to the target at index, leaving positions of the target as they are.
+     */
+    void copyTo(int from, ByteBuffer target, int index, int count) {
+        target.put(index, bytes, from, count);
+    }
+
+    @Override
+    public String toString() {
+        return new String(bytes, 0, length, StandardCharsets.US_ASCII);
+    }
+
+    void writeByte(byte value) {
+        ensureCapacity(1);
+        bytes[length++] = value;
+    }
+
+    void writeDecimal(long value) {
+        if (value == Long.MIN_VALUE) {
+            writeAscii(Long.toString(value));
+            return;
+        }
+        ensureCapacity(MAX_LONG_LENGTH);
+        if (value < 0) {
+            bytes[length++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for (long bound = 10; digits < 19 && value >= bound; bound *= 10) {
+            digits++;
+        }
+        for (int i = length + digits - 1; i >= length; i--) {
+            bytes[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        length += digits;
+    }
+
+    /**
+     * Same text as {@link Double#toString(double)}, finite values without allocating it.
+     */
+    void writeDouble(double value) {
+        if (!Double.isFinite(value)) {
+            writeAscii(Double.toString(value));
+            return;
+        }
+        ensureCapacity(DoubleToAscii.MAX_LENGTH);
+        length = doubleToAscii.write(value, bytes, length);
+    }
+
+    void writeAscii(String text) {
+        ensureCapacity(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            bytes[length++] = (byte) text.charAt(i);
+        }
+    }
+
+    void writeBytes(byte[] source) {
+        ensureCapacity(source.length);
+        System.arraycopy(source, 0, bytes, length, source.length);
+        length += source.length;
+    }
+
+    /**
+     * Big endian, like {@link ByteBuffer} by default.
+     */
+    void writeBinary(long value) {
+        ensureCapacity(Long.BYTES);
+        for (int shift = Long.SIZE - Byte.SIZE; shift >= 0; shift -= Byte.SIZE) {
+            bytes[length++] = (byte) (value >>> shift);
+        }
+    }
+
+    void writeBinary(int value) {
+        ensureCapacity(Integer.BYTES);
+        for (int shift = Integer.SIZE - Byte.SIZE; shift >= 0; shift -= Byte.SIZE) {
+            bytes[length++] = (byte) (value >>> shift);
+        }
+    }
+
+    private void ensureCapacity(int additional) {
+        if (length + additional > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(2 * bytes.length, length + additional));
+        }
+    }
+}
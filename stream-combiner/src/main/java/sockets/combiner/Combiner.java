@@ -1,116 +1,392 @@
 package sockets.combiner;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.SerializationFeature;
-import com.fasterxml.jackson.dataformat.xml.XmlMapper;
-import org.apache.commons.lang3.tuple.Pair;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import sockets.model.Message;
+import sockets.protocol.Handshake;
+import sockets.protocol.WireFormat;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
 import java.net.Socket;
-import java.util.Comparator;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.StructuredTaskScope;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
 
 public class Combiner {
-    private final XmlMapper xmlMapper = new XmlMapper();
-    private final ObjectMapper objectMapper = new ObjectMapper();
     private static final Logger log = LoggerFactory.getLogger(Combiner.class);
+    private static final int READ_BUFFER_SIZE = 8192;
 
     private final List<Socket> openedSockets;
     private final ConcurrentHashMap<Integer, MessageStream> portToItsMessageStream;
+    private final MergeTopology mergeTopology;
+    private final MergeStrategy mergeStrategy;
+    private final WaitStrategy waitStrategy;
+    private final ConnectionManager connectionManager;
+    private final CombinerMetrics metrics;
+    private final CombinerConfig config;
+    // last message emitted before a restart according to the journal, upstream messages up to it are skipped
+    private Message lastEmittedBeforeRestart;
 
     Combiner(List<Socket> openedSockets) {
+        this(openedSockets, CombinerConfig.defaults());
+    }
+
+    Combiner(List<Socket> openedSockets, CombinerConfig config) {
         this.openedSockets = openedSockets;
         portToItsMessageStream = new ConcurrentHashMap<>();
-        openedSockets.forEach(it ->
-                portToItsMessageStream.put(
-                        it.getPort(),
-                        new MessageStream(new AtomicBoolean(true), new ConcurrentLinkedQueue<>()))
-        );
-        objectMapper.configure(SerializationFeature.WRAP_ROOT_VALUE, true);
+        metrics = config.createMetrics();
+        openedSockets.forEach(it -> {
+            var name = String.valueOf(it.getPort());
+            portToItsMessageStream.put(
+                    it.getPort(),
+                    new MessageStream(config.queueCapacity(), metrics.newStream(name), config.createSpillQueue(name)));
+        });
+        mergeTopology = MergeTopology.build(List.copyOf(portToItsMessageStream.values()), config.mergeFanIn(), config,
+                metrics);
+        mergeStrategy = config.createMergeStrategy(mergeTopology.finalStreams());
+        waitStrategy = config.createWaitStrategy();
+        mergeTopology.finalStreams().forEach(it -> it.consumedWith(waitStrategy));
+        connectionManager = config.createConnectionManager();
+        this.config = config;
+    }
+
+    CombinerMetrics metrics() {
+        return metrics;
     }
 
     public void readAndCombineMessageStreams() {
-        try (var scope = new StructuredTaskScope.ShutdownOnSuccess<>()) {
-            openedSockets.forEach(it ->
-                    scope.fork(() -> {
-                        readFromSocket(it);
-                        return null;
-                    }));
+        metrics.start();
+        // readers end on their own once their sockets are drained, so none of them may shut down the scope
+        try (metrics; var journal = config.openJournal(); var outputSink = config.createOutputSink();
+             var scope = new StructuredTaskScope<>()) {
+            if (journal != null) {
+                lastEmittedBeforeRestart = journal.newestRecovered();
+                replayJournal(outputSink);
+            }
+            if (config.isSelectorIngest()) {
+                createSelectorEventLoops().forEach(it ->
+                        scope.fork(() -> {
+                            it.run();
+                            return null;
+                        }));
+            } else {
+                openedSockets.forEach(it ->
+                        scope.fork(() -> {
+                            readFromSocket(it);
+                            return null;
+                        }));
+            }
 
+            if (mergeTopology.hasWorkers()) {
+                scope.fork(() -> {
+                    mergeTopology.run(config.mergeWorkerThreadFactory());
+                    return null;
+                });
+            }
             scope.fork(() -> {
-                combineStreams();
+                // journaled first, a message sent downstream is never missing from the journal
+                combineStreams(journal == null ? outputSink : new CompositeSink(List.of(journal, outputSink)));
                 return null;
             });
 
             scope.join();
-        } catch (InterruptedException e) {
+        } catch (InterruptedException | IOException e) {
             log.error("Issue during combining streams due to " + e.getMessage(), e);
+        } finally {
+            portToItsMessageStream.values().forEach(MessageStream::closeSpillQueue);
         }
     }
 
+    private List<SelectorEventLoop> createSelectorEventLoops() throws IOException {
+        if (config.captureDirectory() != null) {
+            throw new IllegalArgumentException("Streams are only captured with combiner.ingest.mode = blocking");
+        }
+        List<SelectorEventLoop> eventLoops = new ArrayList<>();
+        for (int i = 0; i < Math.min(config.selectorThreads(), openedSockets.size()); i++) {
+            eventLoops.add(new SelectorEventLoop(config.createBufferPool(), connectionManager, config.wireFormat(),
+                    config.wireCompression()));
+        }
+        for (int i = 0; i < openedSockets.size(); i++) {
+            var socket = openedSockets.get(i);
+            if (socket.getChannel() == null) {
+                throw new IllegalArgumentException("Socket " + socket + " is not backed by a channel, it cannot be read by a selector");
+            }
+            eventLoops.get(i % eventLoops.size()).register(socket.getChannel(), portToItsMessageStream.get(socket.getPort()),
+                    lastEmittedBeforeRestart, config.createReorderBuffer());
+        }
+        return eventLoops;
+    }
+
     private void readFromSocket(Socket socket) {
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                Message value = xmlMapper.readValue(line, Message.class);
-                portToItsMessageStream.get(socket.getPort()).messageQueue().add(value);
+        var messageStream = portToItsMessageStream.get(socket.getPort());
+        RecordFramer framer = new LineFramer(messageStream);
+        framer.resumeAfterRestart(lastEmittedBeforeRestart);
+        framer.reorderWith(config.createReorderBuffer());
+        var spaceWaitStrategy = config.createSpaceWaitStrategy();
+        messageStream.onSpaceAvailable(spaceWaitStrategy::signal);
+        var address = (InetSocketAddress) socket.getRemoteSocketAddress();
+        var startNanos = System.nanoTime();
+        StreamCapture capture = null;
+        try {
+            var captureDirectory = config.captureDirectory();
+            if (captureDirectory != null) {
+                capture = StreamCapture.create(captureDirectory, socket.getPort(), handshakeRequest());
+            }
+            while (true) {
+                try {
+                    var buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+                    var input = capture == null ? socket.getInputStream() : capture.record(socket.getInputStream());
+                    var options = negotiate(socket, input, buffer);
+                    framer = framer.withWireFormat(options.format());
+                    if (options.compressed()) {
+                        readUntilEndOfDeflatedStream(socket, input, buffer, framer, spaceWaitStrategy);
+                    } else {
+                        readUntilEndOfStream(input, buffer, framer, spaceWaitStrategy);
+                    }
+                    drainHeldRecords(framer, spaceWaitStrategy);
+                    log.info("Socket " + socket + " reached end of stream, will stop processing stream from that socket");
+                    break;
+                } catch (JsonProcessingException | ProtocolException e) {
+                    // malformed record would be sent again after reconnecting
+                    throw e;
+                } catch (IOException e) {
+                    // a replayed capture has no producer to reconnect to, its address only names the stream
+                    if (!connectionManager.reconnects() || socket instanceof ReplaySocket) {
+                        throw e;
+                    }
+                    log.warn("Failed to read from socket " + socket + " due to " + e.getMessage() + ", reconnecting");
+                    closeQuietly(socket);
+                    if (capture != null) {
+                        // a replay is one connection, what the next one sends again would be merged twice
+                        capture.close();
+                        capture = null;
+                    }
+                    // stream stays active, so the merge keeps waiting for it as long as the watermark settings allow
+                    framer.resumeAfterReconnect();
+                    socket = connectionManager.reconnect(address);
+                    log.info("Reconnected to socket " + socket);
+                }
             }
         } catch (IOException e) {
-            portToItsMessageStream.get(socket.getPort())
-                    .isActive().set(false);
             log.error("Failed to read from socket " + socket + " due to " + e.getMessage() +
                     ", will stop processing stream from that socket", e);
+            // the stream ends here as well, records held for reordering are still merged
+            try {
+                drainHeldRecords(framer, spaceWaitStrategy);
+            } catch (IOException | InterruptedException drainFailure) {
+                e.addSuppressed(drainFailure);
+            }
             throw new RuntimeException(e);
+        } catch (InterruptedException e) {
+            log.error("Failed to read from socket " + socket + " due to " + e.getMessage() +
+                    ", will stop processing stream from that socket", e);
+            throw new RuntimeException(e);
+        } finally {
+            closeQuietly(socket);
+            if (capture != null) {
+                closeQuietly(capture);
+            }
+            messageStream.isActive().set(false);
+            messageStream.signalConsumer();
+            log.info("Socket " + socket + " " + framer.throughputSummary(System.nanoTime() - startNanos) +
+                    ", queue was full " + messageStream.fullCount() + " times");
         }
     }
 
-    private void combineStreams() throws JsonProcessingException {
-        while (true) {
-            var countOfActiveOrOnesWithNonEmptyQueue = portToItsMessageStream.values()
-                    .stream()
-                    .filter(it -> it.isActive().get() || !it.messageQueue().isEmpty())
-                    .count();
-            if (countOfActiveOrOnesWithNonEmptyQueue == 0) {
-                log.info("There are no active message streams anymore and all messages are processed.");
+    /**
+     * Asks the producer for the configured wire format and compression, producers which do not answer with a handshake
+     * send plain XML. Bytes read after the handshake are left in the buffer.
+     */
+    private Handshake.Options negotiate(Socket socket, InputStream input, ByteBuffer buffer) throws IOException {
+        var plainXml = new Handshake.Options(WireFormat.XML, false);
+        var request = handshakeRequest();
+        if (request.length == 0) {
+            return plainXml;
+        }
+        socket.getOutputStream().write(request);
+        while (buffer.position() < Handshake.LENGTH) {
+            int read = input.read(buffer.array(), buffer.position(), buffer.remaining());
+            if (read == -1) {
                 break;
             }
-            var pairsOfPortAndHeadOfQueue = portToItsMessageStream.entrySet()
-                    .stream()
-                    .map(it -> Pair.of(it.getKey(), it.getValue().messageQueue().peek()))
-                    .filter(it -> it.getRight() != null)
-                    .toList();
+            buffer.position(buffer.position() + read);
+        }
+        buffer.flip();
+        var accepted = buffer.remaining() >= Handshake.LENGTH ? Handshake.decodeOptions(buffer) : null;
+        buffer.compact();
+        if (accepted == null) {
+            log.info("Socket " + socket + " did not answer the handshake, reading it as XML");
+            return plainXml;
+        }
+        if (config.wireCompression() && !accepted.compressed()) {
+            log.info("Socket " + socket + " refused compression, reading it uncompressed");
+        }
+        return accepted;
+    }
 
-            combineHeadsOfQueues(pairsOfPortAndHeadOfQueue, countOfActiveOrOnesWithNonEmptyQueue);
+    /**
+     * @return handshake asking producers for the configured wire format and compression, empty for plain XML which
+     * needs none
+     */
+    private byte[] handshakeRequest() {
+        var format = config.wireFormat();
+        if (format == WireFormat.XML && !config.wireCompression()) {
+            return new byte[0];
         }
+        return Handshake.encode(format, config.wireCompression());
     }
 
-    private void combineHeadsOfQueues(List<Pair<Integer, Message>> pairsOfPortAndHeadOfQueue, long countOfActiveOrOnesWithNonEmptyQueue) throws JsonProcessingException {
-        if (!pairsOfPortAndHeadOfQueue.isEmpty() && pairsOfPortAndHeadOfQueue.size() == countOfActiveOrOnesWithNonEmptyQueue) {
-            var minTimestamp = pairsOfPortAndHeadOfQueue.stream()
-                    .min(Comparator.comparing(it -> it.getRight().getTimestamp()))
-                    .get().getRight().getTimestamp();
-            // find all messages with min timestamp
-            var pairsWithMinimums = pairsOfPortAndHeadOfQueue.stream()
-                    .filter(it -> it.getRight().getTimestamp().equals(minTimestamp))
-                    .toList();
-            // remove from the queue
-            pairsWithMinimums.forEach(it -> portToItsMessageStream.get(it.getLeft()).messageQueue().poll());
-
-            var mergedAmounts = pairsWithMinimums.stream()
-                    .map(it -> it.getRight().getAmount())
-                    .reduce(0.0, Double::sum);
-
-            log.info(objectMapper.writeValueAsString(new Message(minTimestamp, mergedAmounts)));
+    /**
+     * Inflates the rest of the stream, starting with the bytes read along with the handshake.
+     *
+     * @param buffer in write mode, holding what was read after the handshake
+     */
+    private void readUntilEndOfDeflatedStream(Socket socket, InputStream input, ByteBuffer buffer, RecordFramer framer,
+                                              WaitStrategy spaceWaitStrategy) throws IOException, InterruptedException {
+        var inflater = new Inflater();
+        var deflated = new SequenceInputStream(new ByteArrayInputStream(buffer.array(), 0, buffer.position()), input);
+        try {
+            readUntilEndOfStream(new InflaterInputStream(deflated, inflater, READ_BUFFER_SIZE),
+                    ByteBuffer.allocate(READ_BUFFER_SIZE), framer, spaceWaitStrategy);
+        } catch (EOFException e) {
+            // the producer went away without finishing the stream, like an uncompressed one ending mid-line
+            log.warn("Socket " + socket + " ended its deflate stream unfinished");
+        } catch (ZipException e) {
+            throw new ProtocolException("Socket " + socket + " sent a corrupt deflate stream: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * @param buffer in write mode, may already hold bytes read during the handshake
+     */
+    private void readUntilEndOfStream(InputStream input, ByteBuffer buffer, RecordFramer framer,
+                                      WaitStrategy spaceWaitStrategy) throws IOException, InterruptedException {
+        buffer.flip();
+        while (true) {
+            decodeAvailable(buffer, framer, spaceWaitStrategy);
+            buffer.compact();
+            if (!buffer.hasRemaining()) {
+                // single line does not fit, keep what was read so far in a bigger buffer
+                buffer = ByteBuffer.allocate(2 * buffer.capacity()).put(buffer.flip());
+            }
+            int read = input.read(buffer.array(), buffer.position(), buffer.remaining());
+            if (read == -1) {
+                return;
+            }
+            buffer.position(buffer.position() + read).flip();
+        }
+    }
+
+    /**
+     * Queues the records held for reordering once the stream ended, waiting while the queue of the stream is full.
+     */
+    private void drainHeldRecords(RecordFramer framer, WaitStrategy spaceWaitStrategy)
+            throws IOException, InterruptedException {
+        framer.endOfStream();
+        decodeAvailable(ByteBuffer.allocate(0), framer, spaceWaitStrategy);
+    }
+
+    /**
+     * Decodes complete records in the readable part of the buffer, waiting while the queue of the stream is full.
+     */
+    private void decodeAvailable(ByteBuffer buffer, RecordFramer framer, WaitStrategy spaceWaitStrategy)
+            throws IOException, InterruptedException {
+        var consumerWaitStrategy = framer.messageStream().consumerWaitStrategy();
+        while (true) {
+            var observedSpaceSignalCount = spaceWaitStrategy.signalCount();
+            if (framer.decodeRecords(buffer)) {
+                consumerWaitStrategy.signal();
+            }
+            if (!framer.isStalled()) {
+                return;
+            }
+            // queue is full, not reading the socket lets TCP push back on the producer
+            spaceWaitStrategy.await(observedSpaceSignalCount);
+        }
+    }
+
+    private void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            log.warn("Failed to close " + closeable + " due to " + e.getMessage());
+        }
+    }
+
+    /**
+     * Sends journaled messages after combiner.journal.replay.after to the output sinks, so downstream readers get what
+     * they missed before new messages are merged.
+     */
+    private void replayJournal(OutputSink outputSink) throws IOException {
+        var replayAfter = config.journalReplayAfter();
+        if (replayAfter != null) {
+            long replayed = OutputJournal.replay(config.journalDirectory(), replayAfter, outputSink);
+            log.info("Replayed " + replayed + " journaled messages after " + replayAfter.getTimestamp());
+        }
+    }
+
+    private void combineStreams(OutputSink outputSink) throws IOException, InterruptedException {
+        var latePolicy = config.latePolicy();
+        // both are reused for every merged message, sinks encode a message before emit returns
+        var mergedMessage = new Message();
+        var lastEmitted = new Message();
+        boolean anyEmitted = lastEmittedBeforeRestart != null;
+        if (anyEmitted) {
+            lastEmitted.copyFrom(lastEmittedBeforeRestart);
+        }
+        boolean unflushed = false;
+        while (true) {
+            // read before merging, so a signal arriving during the merge attempt prevents waiting
+            var observedSignalCount = waitStrategy.signalCount();
+            if (mergeStrategy.mergeNextInto(mergedMessage)) {
+                metrics.merged(mergeStrategy.mergedHeadCount());
+                // equal timestamps are not late, a stream may send several records for one timestamp
+                if (!anyEmitted || mergedMessage.compareTimestampTo(lastEmitted) >= 0) {
+                    outputSink.emit(mergedMessage);
+                    lastEmitted.copyFrom(mergedMessage);
+                    anyEmitted = true;
+                    unflushed = true;
+                } else {
+                    metrics.late();
+                    log.debug("Late message " + mergedMessage + ", last emitted was " + lastEmitted);
+                    if (latePolicy == LatePolicy.CORRECTION) {
+                        outputSink.emit(mergedMessage);
+                        unflushed = true;
+                    }
+                }
+            } else if (mergeStrategy.isExhausted()) {
+                outputSink.flush();
+                if (metrics.getLateMessages() > 0) {
+                    log.warn(metrics.getLateMessages() + " late messages were handled with policy " + latePolicy);
+                }
+                log.info("There are no active message streams anymore and all messages are processed.");
+                break;
+            } else {
+                // nothing to merge for now, so it is the cheapest moment to publish the batch
+                if (unflushed) {
+                    outputSink.flush();
+                    unflushed = false;
+                }
+                var blockingStream = mergeStrategy.blockingStream();
+                long waitStartNanos = System.nanoTime();
+                waitStrategy.await(observedSignalCount);
+                metrics.mergeWaited(blockingStream, System.nanoTime() - waitStartNanos);
+            }
         }
     }
 }
@@ -0,0 +1,345 @@
+package sockets.combiner;
+
+import sockets.model.Message;
+import sockets.protocol.WireFormat;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Typed access to combiner settings from application.properties, falling back to defaults for missing ones.
+ */
+class CombinerConfig {
+
+    private final Properties properties;
+
+    CombinerConfig(Properties properties) {
+        this.properties = properties;
+    }
+
+    static CombinerConfig defaults() {
+        return new CombinerConfig(new Properties());
+    }
+
+    MergeStrategy createMergeStrategy(List<MessageStream> messageStreams) {
+        var name = stringProperty("combiner.merge.strategy", "tournament");
+        return switch (name) {
+            case "tournament" -> new TournamentTreeMergeStrategy(messageStreams,
+                    longProperty("combiner.watermark.max.wait.millis", -1));
+            case "linear" -> new LinearScanMergeStrategy(messageStreams);
+            default -> throw new IllegalArgumentException("Unknown merge strategy " + name);
+        };
+    }
+
+    /**
+     * @return how many streams one thread merges at most, 0 to merge all of them on the combining thread
+     */
+    int mergeFanIn() {
+        return intProperty("combiner.merge.fan.in", 0);
+    }
+
+    ThreadFactory mergeWorkerThreadFactory() {
+        var kind = stringProperty("combiner.merge.worker.threads", "platform");
+        return switch (kind) {
+            case "platform" -> Thread.ofPlatform().name("merge-worker-", 0).factory();
+            case "virtual" -> Thread.ofVirtual().name("merge-worker-", 0).factory();
+            default -> throw new IllegalArgumentException("Unknown merge worker threads " + kind);
+        };
+    }
+
+    LatePolicy latePolicy() {
+        var name = stringProperty("combiner.watermark.late.policy", "drop");
+        return switch (name) {
+            case "drop" -> LatePolicy.DROP;
+            case "correction" -> LatePolicy.CORRECTION;
+            default -> throw new IllegalArgumentException("Unknown late policy " + name);
+        };
+    }
+
+    WaitStrategy createWaitStrategy() {
+        return new SpinThenParkWaitStrategy(
+                intProperty("combiner.wait.spin.iterations", 100),
+                intProperty("combiner.wait.yield.iterations", 10),
+                longProperty("combiner.wait.park.max.millis", 100));
+    }
+
+    /**
+     * Readers waiting for space in a full queue of their stream mostly park, there is no point in spinning when the
+     * combiner is the bottleneck. Parking is bounded, so a missed notification only delays the reader.
+     */
+    WaitStrategy createSpaceWaitStrategy() {
+        return new SpinThenParkWaitStrategy(0, 1, 1);
+    }
+
+    int queueCapacity() {
+        return intProperty("combiner.stream.queue.capacity", 4096);
+    }
+
+    /**
+     * Without combiner.stream.spill.dir readers of a full queue wait, leaving the backlog in the socket buffers.
+     *
+     * @return overflow of the stream of the given name, null if spilling is not configured
+     */
+    SpillQueue createSpillQueue(String name) {
+        var directory = stringProperty("combiner.stream.spill.dir", "");
+        if (directory.isEmpty()) {
+            return null;
+        }
+        return new SpillQueue(Path.of(directory), name, intProperty("combiner.stream.spill.segment.bytes", 16 << 20));
+    }
+
+    /**
+     * Streams are taken to be ordered unless combiner.stream.reorder is records or timestamps, then records are sorted
+     * within combiner.stream.reorder.bound records or timestamps behind the newest one.
+     *
+     * @return reorder buffer of one stream, null if streams are not reordered
+     */
+    ReorderBuffer createReorderBuffer() {
+        var mode = stringProperty("combiner.stream.reorder", "none");
+        return switch (mode) {
+            case "none" -> null;
+            case "records" -> ReorderBuffer.ofRecords(intProperty("combiner.stream.reorder.bound", 16));
+            case "timestamps" -> ReorderBuffer.ofTimestampDistance(longProperty("combiner.stream.reorder.bound", 16));
+            default -> throw new IllegalArgumentException("Unknown reorder mode " + mode);
+        };
+    }
+
+    /**
+     * Without configuration every connect is attempted once and a dropped connection ends its stream.
+     */
+    ConnectionManager createConnectionManager() {
+        return new ConnectionManager(
+                intProperty("combiner.reconnect.max.retries", 0),
+                longProperty("combiner.reconnect.backoff.initial.millis", 100),
+                longProperty("combiner.reconnect.backoff.max.millis", 5000),
+                intProperty("combiner.connect.timeout.millis", 3000));
+    }
+
+    CombinerMetrics createMetrics() {
+        return new CombinerMetrics(
+                booleanProperty("combiner.metrics.enabled", true),
+                longProperty("combiner.metrics.period.millis", 1000),
+                booleanProperty("combiner.metrics.log", false));
+    }
+
+    /**
+     * @return journal of merged messages in combiner.journal.dir, null if it is not configured
+     */
+    OutputJournal openJournal() throws IOException {
+        var directory = journalDirectory();
+        if (directory == null) {
+            return null;
+        }
+        return OutputJournal.open(directory,
+                intProperty("combiner.journal.segment.bytes", 64 << 20),
+                longProperty("combiner.journal.sync.millis", 1000),
+                intProperty("combiner.journal.retained.segments", 16));
+    }
+
+    Path journalDirectory() {
+        var directory = stringProperty("combiner.journal.dir", "");
+        return directory.isEmpty() ? null : Path.of(directory);
+    }
+
+    /**
+     * @return timestamp after which journaled messages are replayed to the output sinks before combining, null not to
+     * replay
+     */
+    Message journalReplayAfter() {
+        var timestamp = stringProperty("combiner.journal.replay.after", "");
+        return timestamp.isEmpty() ? null : new Message(new BigInteger(timestamp), 0);
+    }
+
+    /**
+     * @return directory raw streams of producers are captured to with their arrival times, null not to capture them
+     */
+    Path captureDirectory() {
+        var directory = stringProperty("combiner.capture.dir", "");
+        return directory.isEmpty() ? null : Path.of(directory);
+    }
+
+    /**
+     * Replays the captures in combiner.replay.dir instead of connecting to producers, at combiner.replay.speed:
+     * original, max or a factor of the original speed. Captures cannot be written to the directory they are replayed
+     * from.
+     *
+     * @return sockets replaying the captures, null if replay is not configured
+     */
+    List<Socket> openReplaySockets() throws IOException {
+        var directory = stringProperty("combiner.replay.dir", "");
+        if (directory.isEmpty()) {
+            return null;
+        }
+        var captureDirectory = captureDirectory();
+        if (captureDirectory != null &&
+                captureDirectory.toAbsolutePath().normalize().equals(Path.of(directory).toAbsolutePath().normalize())) {
+            throw new IllegalArgumentException("combiner.capture.dir " + captureDirectory +
+                    " is combiner.replay.dir, replaying would overwrite the captures it reads");
+        }
+        var speed = stringProperty("combiner.replay.speed", "original");
+        return ReplaySocket.openAll(Path.of(directory), switch (speed) {
+            case "original" -> 1.0;
+            case "max" -> Double.POSITIVE_INFINITY;
+            default -> Double.parseDouble(speed);
+        });
+    }
+
+    WireFormat wireFormat() {
+        return WireFormat.parse(stringProperty("combiner.wire.format", "xml"));
+    }
+
+    /**
+     * @return whether producers are asked to deflate their streams, those refusing it send them uncompressed
+     */
+    boolean wireCompression() {
+        var compression = stringProperty("combiner.wire.compression", "none");
+        return switch (compression) {
+            case "none" -> false;
+            case "deflate" -> true;
+            default -> throw new IllegalArgumentException("Unknown compression " + compression);
+        };
+    }
+
+    boolean isSelectorIngest() {
+        var mode = stringProperty("combiner.ingest.mode", "blocking");
+        return switch (mode) {
+            case "blocking" -> false;
+            case "selector" -> true;
+            default -> throw new IllegalArgumentException("Unknown ingest mode " + mode);
+        };
+    }
+
+    int selectorThreads() {
+        return intProperty("combiner.ingest.selector.threads", 1);
+    }
+
+    DirectBufferPool createBufferPool() {
+        return new DirectBufferPool(
+                intProperty("combiner.ingest.buffer.size", 8192),
+                intProperty("combiner.ingest.buffer.pool.size", 1024));
+    }
+
+    /**
+     * Creates the sinks listed in combiner.output.sinks, comma separated out of logger, stdout, file, socket,
+     * broadcast, producer and windows.
+     */
+    OutputSink createOutputSink() throws IOException {
+        var batchBytes = intProperty("combiner.output.batch.bytes", 65536);
+        List<OutputSink> sinks = new ArrayList<>();
+        try {
+            for (var name : stringProperty("combiner.output.sinks", "logger").split(",")) {
+                sinks.add(switch (name.trim()) {
+                    case "logger" -> new LoggerSink();
+                    case "stdout" -> new BufferedStreamSink(System.out, batchBytes, false);
+                    case "file" -> new BufferedStreamSink(
+                            openOutputFile(stringProperty("combiner.output.file", "combined.jsonl")), batchBytes, true);
+                    case "socket" -> SocketSink.connect(outputSocketAddress(), batchBytes);
+                    case "broadcast" -> BroadcastSink.open(
+                            new InetSocketAddress(intProperty("combiner.output.broadcast.port", 12500)),
+                            intProperty("combiner.output.broadcast.ring.bytes", 16 << 20), batchBytes,
+                            slowConsumerPolicy("combiner.output.broadcast.slow.policy", "disconnect"),
+                            createSpaceWaitStrategy());
+                    case "producer" -> openProducerSink(batchBytes);
+                    case "windows" -> openWindowSink(batchBytes);
+                    default -> throw new IllegalArgumentException("Unknown output sink " + name);
+                });
+            }
+        } catch (IOException | RuntimeException e) {
+            new CompositeSink(sinks).close();
+            throw e;
+        }
+        return sinks.size() == 1 ? sinks.get(0) : new CompositeSink(sinks);
+    }
+
+    /**
+     * Serves the merged output like a stream producer, for a combiner further down a tree of combiners. Combining
+     * starts only once the expected downstream combiners connected, so each of them gets the whole stream.
+     */
+    private BroadcastSink openProducerSink(int batchBytes) throws IOException {
+        var sink = BroadcastSink.openAsProducer(
+                new InetSocketAddress(intProperty("combiner.output.producer.port", 12600)),
+                WireFormat.parse(stringProperty("combiner.output.producer.format", "xml")),
+                intProperty("combiner.output.producer.ring.bytes", 16 << 20), batchBytes,
+                slowConsumerPolicy("combiner.output.producer.slow.policy", "block"),
+                createSpaceWaitStrategy());
+        try {
+            sink.awaitSubscribers(intProperty("combiner.output.producer.subscribers", 1));
+        } catch (IOException | RuntimeException e) {
+            sink.close();
+            throw e;
+        }
+        return sink;
+    }
+
+    /**
+     * Aggregates the windows listed in combiner.output.windows, comma separated sizes in timestamps for tumbling
+     * windows or size/slide for sliding ones, e.g. 1000,60000/1000.
+     */
+    private WindowAggregationSink openWindowSink(int batchBytes) throws IOException {
+        var windows = stringProperty("combiner.output.windows", "1000,60000").split(",");
+        var sink = new WindowAggregationSink(
+                openOutputFile(stringProperty("combiner.output.windows.file", "windows.jsonl")), batchBytes);
+        try {
+            for (var window : windows) {
+                var sizeAndSlide = window.trim().split("/");
+                long size = Long.parseLong(sizeAndSlide[0].trim());
+                sink.window(size, sizeAndSlide.length > 1 ? Long.parseLong(sizeAndSlide[1].trim()) : size);
+            }
+        } catch (RuntimeException e) {
+            sink.close();
+            throw e;
+        }
+        return sink;
+    }
+
+    private SlowConsumerPolicy slowConsumerPolicy(String key, String defaultValue) {
+        var name = stringProperty(key, defaultValue);
+        return switch (name) {
+            case "disconnect" -> SlowConsumerPolicy.DISCONNECT;
+            case "drop" -> SlowConsumerPolicy.DROP;
+            case "block" -> SlowConsumerPolicy.BLOCK;
+            default -> throw new IllegalArgumentException("Unknown slow consumer policy " + name);
+        };
+    }
+
+    private OutputStream openOutputFile(String file) throws IOException {
+        var path = Path.of(file);
+        return Files.newOutputStream(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    private InetSocketAddress outputSocketAddress() {
+        var hostAndPort = stringProperty("combiner.output.socket", "127.0.0.1:12400").split(":");
+        return new InetSocketAddress(hostAndPort[0], Integer.parseInt(hostAndPort[1]));
+    }
+
+    private String stringProperty(String key, String defaultValue) {
+        var value = properties.getProperty(key);
+        return value == null ? defaultValue : value.trim();
+    }
+
+    private int intProperty(String key, int defaultValue) {
+        var value = properties.getProperty(key);
+        return value == null ? defaultValue : Integer.parseInt(value.trim());
+    }
+
+    private long longProperty(String key, long defaultValue) {
+        var value = properties.getProperty(key);
+        return value == null ? defaultValue : Long.parseLong(value.trim());
+    }
+
+    private boolean booleanProperty(String key, boolean defaultValue) {
+        var value = properties.getProperty(key);
+        return value == null ? defaultValue : Boolean.parseBoolean(value.trim());
+    }
+}
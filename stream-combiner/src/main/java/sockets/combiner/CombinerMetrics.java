@@ -0,0 +1,286 @@
+package sockets.combiner;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.SingleWriterRecorder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.Closeable;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Instrumentation of one combining run. Hot paths only bump striped counters or record into single writer
+ * recorders of the combining thread, neither takes a lock. A metrics thread turns them into rates, lags and
+ * histograms of the last period, publishes them through JMX and optionally logs them.
+ * Disabled metrics still count, but neither track latency nor publish anything.
+ */
+class CombinerMetrics implements CombinerMetricsMBean, Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(CombinerMetrics.class);
+    private static final String DOMAIN = "sockets.combiner";
+    // tells apart the MBeans of combiners running in the same JVM, like chained ones
+    private static final AtomicInteger instances = new AtomicInteger();
+
+    private final boolean enabled;
+    private final int instance = instances.incrementAndGet();
+    private final long periodMillis;
+    private final boolean logPeriodically;
+    private final SingleWriterRecorder latencyRecorder;
+    // one per consuming thread, latencyRecorder is the one of the combining thread
+    private final List<SingleWriterRecorder> latencyRecorders = new ArrayList<>();
+    private final SingleWriterRecorder fanInRecorder;
+    private final LongAdder merged = new LongAdder();
+    private final LongAdder late = new LongAdder();
+    private final LongAdder mergeWaitNanos = new LongAdder();
+    private final List<StreamMetrics> streams = new ArrayList<>();
+    private final List<ObjectName> registeredNames = new ArrayList<>();
+    private final Histogram totalLatency = new Histogram(3);
+    private ScheduledExecutorService scheduler;
+
+    private volatile Histogram latency = new Histogram(3);
+    private volatile Histogram fanIn = new Histogram(2);
+    private volatile double mergesPerSecond;
+    private volatile String slowestStream;
+    private long lastMerged;
+    private long lastRefreshNanos = System.nanoTime();
+
+    /**
+     * @param periodMillis how often rates and histograms are refreshed
+     * @param logPeriodically whether to log the metrics after every refresh
+     */
+    CombinerMetrics(boolean enabled, long periodMillis, boolean logPeriodically) {
+        this.enabled = enabled;
+        this.periodMillis = periodMillis;
+        this.logPeriodically = logPeriodically;
+        latencyRecorder = enabled ? new SingleWriterRecorder(3) : null;
+        fanInRecorder = enabled ? new SingleWriterRecorder(2) : null;
+        if (enabled) {
+            latencyRecorders.add(latencyRecorder);
+        }
+    }
+
+    /**
+     * Streams are created before {@link #start()}.
+     */
+    StreamMetrics newStream(String name) {
+        var metrics = new StreamMetrics(name, latencyRecorder);
+        streams.add(metrics);
+        return metrics;
+    }
+
+    /**
+     * Created before {@link #start()}.
+     *
+     * @return latency recorder for streams consumed by another thread than the combining one, null if disabled
+     */
+    SingleWriterRecorder newLatencyRecorder() {
+        if (!enabled) {
+            return null;
+        }
+        var recorder = new SingleWriterRecorder(3);
+        latencyRecorders.add(recorder);
+        return recorder;
+    }
+
+    /**
+     * Combiner side only.
+     */
+    void merged(int mergedHeads) {
+        merged.increment();
+        if (fanInRecorder != null) {
+            fanInRecorder.recordValue(mergedHeads);
+        }
+    }
+
+    /**
+     * Combiner side only, for a merged message older than the last emitted one.
+     */
+    void late() {
+        late.increment();
+    }
+
+    /**
+     * Combiner side only.
+     *
+     * @param blockingStream stream the combiner waited for, null if it waited for any
+     */
+    void mergeWaited(MessageStream blockingStream, long nanos) {
+        mergeWaitNanos.add(nanos);
+        if (blockingStream != null) {
+            blockingStream.metrics().mergeBlocked(nanos);
+        }
+    }
+
+    void start() {
+        if (!enabled) {
+            return;
+        }
+        register(DOMAIN + ":type=Combiner,instance=" + instance, this);
+        streams.forEach(it -> register(DOMAIN + ":type=Stream,instance=" + instance + ",name=" + it.name(), it));
+        scheduler = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().name("metrics").daemon().factory());
+        scheduler.scheduleAtFixedRate(this::refreshAndLog, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Refreshes the metrics a last time, logs the summary of the run and unpublishes them.
+     */
+    @Override
+    public void close() {
+        if (!enabled) {
+            return;
+        }
+        scheduler.shutdownNow();
+        try {
+            scheduler.awaitTermination(periodMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        refresh();
+        log.info("Merged " + getMessagesMerged() + " messages, " + getLateMessages() + " of them late, latency from ingest to emit p50 " +
+                Math.round(micros(totalLatency, 50)) + " us, p99 " + Math.round(micros(totalLatency, 99)) + " us, p99.9 " +
+                Math.round(micros(totalLatency, 99.9)) + " us, max " + Math.round(micros(totalLatency, 100)) + " us, waited " +
+                getMergeWaitMillis() + " ms for streams, slowest stream " + Objects.toString(slowestStream, "none"));
+        var server = ManagementFactory.getPlatformMBeanServer();
+        for (var name : registeredNames) {
+            try {
+                server.unregisterMBean(name);
+            } catch (JMException e) {
+                log.warn("Failed to unregister " + name + " due to " + e.getMessage());
+            }
+        }
+    }
+
+    private void register(String name, Object mbean) {
+        try {
+            var objectName = new ObjectName(name);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(mbean, objectName);
+            registeredNames.add(objectName);
+        } catch (JMException e) {
+            log.warn("Failed to register " + name + " due to " + e.getMessage());
+        }
+    }
+
+    private void refreshAndLog() {
+        refresh();
+        if (logPeriodically) {
+            log.info("Merging " + Math.round(mergesPerSecond) + " messages/s, mean fan-in " +
+                    Math.round(getMeanFanIn() * 100) / 100.0 + ", latency from ingest to emit p50 " +
+                    Math.round(getLatencyP50Micros()) + " us, p99 " + Math.round(getLatencyP99Micros()) + " us, max " +
+                    Math.round(getLatencyMaxMicros()) + " us, slowest stream " + Objects.toString(slowestStream, "none"));
+        }
+    }
+
+    /**
+     * Metrics thread only, or after it stopped.
+     */
+    private void refresh() {
+        long now = System.nanoTime();
+        long elapsedNanos = Math.max(1, now - lastRefreshNanos);
+        lastRefreshNanos = now;
+
+        long total = merged.sum();
+        mergesPerSecond = (total - lastMerged) * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+        lastMerged = total;
+        var intervalLatency = new Histogram(3);
+        latencyRecorders.forEach(it -> intervalLatency.add(it.getIntervalHistogram()));
+        totalLatency.add(intervalLatency);
+        latency = intervalLatency;
+        fanIn = fanInRecorder.getIntervalHistogram();
+
+        long newestTimestamp = streams.stream()
+                .mapToLong(StreamMetrics::newestTimestamp)
+                .max()
+                .orElse(StreamMetrics.NO_TIMESTAMP);
+        streams.forEach(it -> it.refresh(elapsedNanos, newestTimestamp));
+        slowestStream = streams.stream()
+                .filter(it -> it.getMergeBlockedMillis() > 0)
+                .max(Comparator.comparingLong(StreamMetrics::getMergeBlockedMillis))
+                .map(StreamMetrics::toString)
+                .orElse(null);
+    }
+
+    /**
+     * @return value of the instance key in the names of the MBeans of this combiner
+     */
+    int instance() {
+        return instance;
+    }
+
+    /**
+     * @return nanoseconds from ingest to emit of every message merged in the run, complete once closed
+     */
+    Histogram totalLatency() {
+        return totalLatency.copy();
+    }
+
+    @Override
+    public long getMessagesMerged() {
+        return merged.sum();
+    }
+
+    @Override
+    public long getLateMessages() {
+        return late.sum();
+    }
+
+    @Override
+    public double getMergesPerSecond() {
+        return mergesPerSecond;
+    }
+
+    @Override
+    public double getMeanFanIn() {
+        var histogram = fanIn;
+        return histogram.getTotalCount() == 0 ? 0 : histogram.getMean();
+    }
+
+    @Override
+    public long getMaxFanIn() {
+        return fanIn.getMaxValue();
+    }
+
+    @Override
+    public double getLatencyP50Micros() {
+        return micros(latency, 50);
+    }
+
+    @Override
+    public double getLatencyP99Micros() {
+        return micros(latency, 99);
+    }
+
+    @Override
+    public double getLatencyP999Micros() {
+        return micros(latency, 99.9);
+    }
+
+    @Override
+    public double getLatencyMaxMicros() {
+        return micros(latency, 100);
+    }
+
+    @Override
+    public long getMergeWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(mergeWaitNanos.sum());
+    }
+
+    @Override
+    public String getSlowestStream() {
+        return slowestStream;
+    }
+
+    private static double micros(Histogram nanos, double percentile) {
+        return nanos.getValueAtPercentile(percentile) / 1000.0;
+    }
+}
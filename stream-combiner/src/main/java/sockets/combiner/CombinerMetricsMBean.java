@@ -0,0 +1,47 @@
+package sockets.combiner;
+
+/**
+ * Metrics of the whole pipeline published through JMX as {@code sockets.combiner:type=Combiner,instance=<n>}, numbering
+ * the combiners of the JVM from 1. Rates, fan-in and latencies cover the last {@code combiner.metrics.period.millis},
+ * counters the whole run.
+ */
+public interface CombinerMetricsMBean {
+
+    long getMessagesMerged();
+
+    /**
+     * @return merged messages older than the last emitted one, dropped or emitted as corrections by
+     * combiner.watermark.late.policy
+     */
+    long getLateMessages();
+
+    double getMergesPerSecond();
+
+    /**
+     * @return mean number of streams sharing the timestamp of a merged message
+     */
+    double getMeanFanIn();
+
+    long getMaxFanIn();
+
+    /**
+     * @return percentiles of the time from reading a message off its socket until it is merged for emitting
+     */
+    double getLatencyP50Micros();
+
+    double getLatencyP99Micros();
+
+    double getLatencyP999Micros();
+
+    double getLatencyMaxMicros();
+
+    /**
+     * @return how long the combiner waited for messages in total
+     */
+    long getMergeWaitMillis();
+
+    /**
+     * @return stream the combiner waited for the longest while heads of the others were ready, null if none
+     */
+    String getSlowestStream();
+}
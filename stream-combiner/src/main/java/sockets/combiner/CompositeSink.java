@@ -0,0 +1,51 @@
+package sockets.combiner;
+
+import sockets.model.Message;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Emits every merged message to each of the configured sinks in order.
+ */
+class CompositeSink implements OutputSink {
+
+    private final List<OutputSink> sinks;
+
+    CompositeSink(List<OutputSink> sinks) {
+        this.sinks = List.copyOf(sinks);
+    }
+
+    @Override
+    public void emit(Message message) throws IOException {
+        for (var sink : sinks) {
+            sink.emit(message);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        for (var sink : sinks) {
+            sink.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (var sink : sinks) {
+            try {
+                sink.close();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package sockets.combiner;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Connects to producers with a connect timeout and retries failed attempts with exponential backoff. Half of every
+ * backoff is random, so combiners which lost their producers at the same moment do not reconnect in lockstep.
+ * Used for the initial connect as well as for reconnecting after a dropped connection.
+ */
+class ConnectionManager {
+
+    private static final Logger log = LoggerFactory.getLogger(ConnectionManager.class);
+    static final int RETRY_FOREVER = -1;
+
+    private final int maxRetries;
+    private final long initialBackoffMillis;
+    private final long maxBackoffMillis;
+    private final int connectTimeoutMillis;
+
+    /**
+     * @param maxRetries attempts after a failed connect or a dropped connection, {@link #RETRY_FOREVER} to never give up
+     */
+    ConnectionManager(int maxRetries, long initialBackoffMillis, long maxBackoffMillis, int connectTimeoutMillis) {
+        this.maxRetries = maxRetries;
+        this.initialBackoffMillis = Math.max(1, initialBackoffMillis);
+        this.maxBackoffMillis = Math.max(this.initialBackoffMillis, maxBackoffMillis);
+        this.connectTimeoutMillis = connectTimeoutMillis;
+    }
+
+    /**
+     * Connects blocking, sleeping between the attempts. The socket is opened through a channel, so it can be read
+     * either blocking or by a selector.
+     *
+     * @throws IOException of the last attempt once all attempts failed
+     */
+    Socket connect(InetSocketAddress address) throws IOException, InterruptedException {
+        return connect(address, 0);
+    }
+
+    /**
+     * Like {@link #connect(InetSocketAddress)} after a dropped connection, every attempt counts as a retry.
+     * Only to be called if {@link #reconnects()}.
+     */
+    Socket reconnect(InetSocketAddress address) throws IOException, InterruptedException {
+        return connect(address, 1);
+    }
+
+    boolean reconnects() {
+        return maxRetries != 0;
+    }
+
+    /**
+     * @param retries retries used so far
+     */
+    boolean canRetry(int retries) {
+        return maxRetries == RETRY_FOREVER || retries < maxRetries;
+    }
+
+    private Socket connect(InetSocketAddress address, int retries) throws IOException, InterruptedException {
+        while (true) {
+            log.info("Attempting to connect to socket " + address + (retries > 0 ? ", retry " + retries : ""));
+            var channel = SocketChannel.open();
+            try {
+                channel.socket().connect(address, connectTimeoutMillis);
+                return channel.socket();
+            } catch (IOException e) {
+                channel.close();
+                if (!canRetry(retries)) {
+                    throw e;
+                }
+                retries++;
+                var backoffMillis = backoffMillis(retries);
+                log.warn("Connect to " + address + " failed due to " + e.getMessage() + ", retrying in " + backoffMillis + " ms");
+                Thread.sleep(backoffMillis);
+            }
+        }
+    }
+
+    /**
+     * @return random delay between half and all of the exponential backoff before the given retry
+     */
+    long backoffMillis(int retry) {
+        var exponentialMillis = Math.min(maxBackoffMillis, initialBackoffMillis << Math.min(Math.max(retry, 1) - 1, 30));
+        return exponentialMillis / 2 + ThreadLocalRandom.current().nextLong(exponentialMillis / 2 + 1);
+    }
+
+    int connectTimeoutMillis() {
+        return connectTimeoutMillis;
+    }
+}
@@ -0,0 +1,114 @@
+package sockets.combiner;
+
+import java.math.BigInteger;
+
+/**
+ * Correctly rounded conversion of a decimal significand and power of ten into double without going through a String.
+ * Uses the exact Clinger fast path when possible and the Eisel-Lemire algorithm otherwise; the rare inputs these
+ * cannot decide return NaN and have to be parsed by {@link Double#parseDouble(String)}.
+ */
+final class DecimalToDouble {
+
+    private static final double[] EXACT_POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    private static final long MAX_EXACT_SIGNIFICAND = 1L << 53;
+
+    private static final int MIN_EXPONENT = -348;
+    private static final int MAX_EXPONENT = 347;
+    // 128-bit truncated approximations of powers of ten, normalized to have the highest bit set
+    private static final long[] POWERS_HIGH = new long[MAX_EXPONENT - MIN_EXPONENT + 1];
+    private static final long[] POWERS_LOW = new long[MAX_EXPONENT - MIN_EXPONENT + 1];
+
+    static {
+        for (int exponent = MIN_EXPONENT; exponent <= MAX_EXPONENT; exponent++) {
+            BigInteger approximation;
+            if (exponent >= 0) {
+                var power = BigInteger.TEN.pow(exponent);
+                int shift = power.bitLength() - 128;
+                approximation = shift > 0 ? power.shiftRight(shift) : power.shiftLeft(-shift);
+            } else {
+                var power = BigInteger.TEN.pow(-exponent);
+                approximation = BigInteger.ONE.shiftLeft(power.bitLength() + 127).divide(power);
+            }
+            POWERS_HIGH[exponent - MIN_EXPONENT] = approximation.shiftRight(64).longValue();
+            POWERS_LOW[exponent - MIN_EXPONENT] = approximation.longValue();
+        }
+    }
+
+    private DecimalToDouble() {
+    }
+
+    /**
+     * @param significand unsigned decimal significand of at most 19 digits
+     * @param exponent    power of ten to multiply the significand with
+     * @return the closest double or NaN if it could not be decided here
+     */
+    static double toDouble(long significand, int exponent, boolean negative) {
+        if (significand == 0) {
+            return negative ? -0.0 : 0.0;
+        }
+        if (significand > 0 && significand <= MAX_EXACT_SIGNIFICAND && exponent >= -22 && exponent <= 22) {
+            // both operands are exact, so the single rounding of multiplication or division is the correct one
+            double value = exponent >= 0
+                    ? (double) significand * EXACT_POWERS_OF_TEN[exponent]
+                    : (double) significand / EXACT_POWERS_OF_TEN[-exponent];
+            return negative ? -value : value;
+        }
+        return eiselLemire(significand, exponent, negative);
+    }
+
+    private static double eiselLemire(long significand, int exponent, boolean negative) {
+        if (exponent < MIN_EXPONENT || exponent > MAX_EXPONENT) {
+            return Double.NaN;
+        }
+        int leadingZeros = Long.numberOfLeadingZeros(significand);
+        long normalized = significand << leadingZeros;
+        long binaryExponent = ((217706 * exponent) >> 16) + 64 + 1023 - leadingZeros;
+
+        int index = exponent - MIN_EXPONENT;
+        long high = Math.unsignedMultiplyHigh(normalized, POWERS_HIGH[index]);
+        long low = normalized * POWERS_HIGH[index];
+        if ((high & 0x1FF) == 0x1FF && Long.compareUnsigned(low + normalized, normalized) < 0) {
+            // truncated product is too close to a rounding boundary, widen it with the lower half of the power
+            long widerHigh = Math.unsignedMultiplyHigh(normalized, POWERS_LOW[index]);
+            long widerLow = normalized * POWERS_LOW[index];
+            long mergedHigh = high;
+            long mergedLow = low + widerHigh;
+            if (Long.compareUnsigned(mergedLow, low) < 0) {
+                mergedHigh++;
+            }
+            if ((mergedHigh & 0x1FF) == 0x1FF && mergedLow + 1 == 0
+                    && Long.compareUnsigned(widerLow + normalized, normalized) < 0) {
+                return Double.NaN;
+            }
+            high = mergedHigh;
+            low = mergedLow;
+        }
+
+        long mostSignificantBit = high >>> 63;
+        long mantissa = high >>> (mostSignificantBit + 9);
+        binaryExponent -= 1 ^ mostSignificantBit;
+
+        if (low == 0 && (high & 0x1FF) == 0 && (mantissa & 3) == 1) {
+            // exactly half way between two doubles, rounding to even needs the exact value
+            return Double.NaN;
+        }
+        mantissa += mantissa & 1;
+        mantissa >>>= 1;
+        if (mantissa >>> 53 > 0) {
+            mantissa >>>= 1;
+            binaryExponent++;
+        }
+        if (binaryExponent <= 0 || binaryExponent >= 0x7FF) {
+            // subnormal or infinite results are left to the JDK
+            return Double.NaN;
+        }
+        long bits = binaryExponent << 52 | mantissa & 0x000FFFFFFFFFFFFFL;
+        if (negative) {
+            bits |= Long.MIN_VALUE;
+        }
+        return Double.longBitsToDouble(bits);
+    }
+}
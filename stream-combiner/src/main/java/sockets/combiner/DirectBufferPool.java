@@ -0,0 +1,36 @@
+package sockets.combiner;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Recycles direct buffers of one size, so connections only hold a buffer while they have a partial record.
+ * Not thread safe, owned by a single event loop.
+ */
+class DirectBufferPool {
+
+    private final ArrayDeque<ByteBuffer> freeBuffers = new ArrayDeque<>();
+    private final int bufferSize;
+    private final int maxPooledBuffers;
+
+    DirectBufferPool(int bufferSize, int maxPooledBuffers) {
+        this.bufferSize = bufferSize;
+        this.maxPooledBuffers = maxPooledBuffers;
+    }
+
+    ByteBuffer acquire() {
+        var buffer = freeBuffers.poll();
+        return buffer != null ? buffer : ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    void release(ByteBuffer buffer) {
+        // grown buffers of a different size are left to the garbage collector
+        if (buffer.capacity() == bufferSize && freeBuffers.size() < maxPooledBuffers) {
+            freeBuffers.push(buffer.clear());
+        }
+    }
+
+    int bufferSize() {
+        return bufferSize;
+    }
+}
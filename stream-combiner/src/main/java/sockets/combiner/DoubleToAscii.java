@@ -0,0 +1,294 @@
+package sockets.combiner;
+
+import java.math.BigInteger;
+
+/**
+ * Writes doubles as ASCII straight into a byte array, producing exactly the text of {@link Double#toString(double)}
+ * without allocating it. Like the JDK it finds the shortest decimal rounding to the double with the Schubfach
+ * algorithm (R. Giulietti, "The Schubfach way to render doubles") and lays it out in plain notation between 10^-3
+ * and 10^7 and in computerized scientific notation otherwise. Not thread safe, each encoder owns its instance.
+ */
+final class DoubleToAscii {
+
+    // "-" + 17 digits + "." + "E-" + 3 exponent digits
+    static final int MAX_LENGTH = 24;
+
+    private static final int PRECISION = 53;
+    private static final int MIN_EXPONENT = -1074;
+    private static final long MIN_SIGNIFICAND = 1L << (PRECISION - 1);
+    private static final long SIGNIFICAND_MASK = MIN_SIGNIFICAND - 1;
+    private static final int BIASED_EXPONENT_MASK = 0x7ff;
+    // subnormal significands below it have too few digits to be decided, they are scaled by 10 first
+    private static final long TINY_SIGNIFICAND = 3;
+    private static final int DIGITS = 17;
+
+    private static final long MASK_63 = (1L << 63) - 1;
+    private static final int MASK_28 = (1 << 28) - 1;
+
+    private static final int MIN_POWER = -324;
+    private static final int MAX_POWER = 292;
+    // g = floor(10^-k 2^-r) + 1 with r chosen so that 2^125 <= g < 2^126, split into its high and low 63 bits
+    private static final long[] G_HIGH = new long[MAX_POWER - MIN_POWER + 1];
+    private static final long[] G_LOW = new long[MAX_POWER - MIN_POWER + 1];
+    private static final long[] POWERS_OF_TEN = new long[DIGITS + 1];
+
+    static {
+        for (int k = MIN_POWER; k <= MAX_POWER; k++) {
+            int r = flog2pow10(-k) - 125;
+            BigInteger beta;
+            if (k <= 0) {
+                var power = BigInteger.TEN.pow(-k);
+                beta = r >= 0 ? power.shiftRight(r) : power.shiftLeft(-r);
+            } else {
+                beta = BigInteger.ONE.shiftLeft(-r).divide(BigInteger.TEN.pow(k));
+            }
+            var g = beta.add(BigInteger.ONE);
+            G_HIGH[k - MIN_POWER] = g.shiftRight(63).longValue();
+            G_LOW[k - MIN_POWER] = g.longValue() & MASK_63;
+        }
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = 10 * POWERS_OF_TEN[i - 1];
+        }
+    }
+
+    private byte[] bytes;
+    // last written index
+    private int index;
+
+    /**
+     * @param value  finite double, NaN and infinities are left to {@link Double#toString(double)}
+     * @param target has to have room for {@link #MAX_LENGTH} bytes from offset on
+     * @return index after the last written byte
+     */
+    int write(double value, byte[] target, int offset) {
+        bytes = target;
+        index = offset - 1;
+        long bits = Double.doubleToRawLongBits(value);
+        long fraction = bits & SIGNIFICAND_MASK;
+        int biasedExponent = (int) (bits >>> (PRECISION - 1)) & BIASED_EXPONENT_MASK;
+        if (biasedExponent == BIASED_EXPONENT_MASK) {
+            throw new IllegalArgumentException("Not a finite double " + value);
+        }
+        if (bits < 0) {
+            append('-');
+        }
+        if (biasedExponent != 0) {
+            int minusQ = -MIN_EXPONENT + 1 - biasedExponent;
+            long c = MIN_SIGNIFICAND | fraction;
+            // integers below 2^53 are their own shortest decimal
+            if (0 < minusQ && minusQ < PRECISION) {
+                long f = c >> minusQ;
+                if (f << minusQ == c) {
+                    toChars(f, 0);
+                    return index + 1;
+                }
+            }
+            toDecimal(-minusQ, c, 0);
+        } else if (fraction != 0) {
+            if (fraction < TINY_SIGNIFICAND) {
+                toDecimal(MIN_EXPONENT, 10 * fraction, -1);
+            } else {
+                toDecimal(MIN_EXPONENT, fraction, 0);
+            }
+        } else {
+            append('0');
+            append('.');
+            append('0');
+        }
+        return index + 1;
+    }
+
+    /**
+     * Finds the shortest decimal in the rounding interval of c 2^q, the closest one if there are two of that length.
+     */
+    private void toDecimal(int q, long c, int dk) {
+        int out = (int) c & 1;
+        long cb = c << 2;
+        long cbr = cb + 2;
+        long cbl;
+        int k;
+        // the interval is asymmetric at powers of two, the lower neighbour is closer
+        if (c != MIN_SIGNIFICAND | q == MIN_EXPONENT) {
+            cbl = cb - 2;
+            k = flog10pow2(q);
+        } else {
+            cbl = cb - 1;
+            k = flog10threeQuartersPow2(q);
+        }
+        int h = q + flog2pow10(-k) + 2;
+        long g1 = G_HIGH[k - MIN_POWER];
+        long g0 = G_LOW[k - MIN_POWER];
+        long vb = roundToOdd(g1, g0, cb << h);
+        long vbl = roundToOdd(g1, g0, cbl << h);
+        long vbr = roundToOdd(g1, g0, cbr << h);
+
+        long s = vb >> 2;
+        if (s >= 100) {
+            // one digit less, if exactly one of the two neighbouring multiples of ten is in the interval
+            long sp10 = 10 * Math.multiplyHigh(s, 115_292_150_460_684_698L << 4);
+            long tp10 = sp10 + 10;
+            boolean upin = vbl + out <= sp10 << 2;
+            boolean wpin = (tp10 << 2) + out <= vbr;
+            if (upin != wpin) {
+                toChars(upin ? sp10 : tp10, k);
+                return;
+            }
+        }
+        long t = s + 1;
+        boolean uin = vbl + out <= s << 2;
+        boolean win = (t << 2) + out <= vbr;
+        if (uin != win) {
+            toChars(uin ? s : t, k + dk);
+            return;
+        }
+        long cmp = vb - (s + t << 1);
+        toChars(cmp < 0 || cmp == 0 && (s & 1) == 0 ? s : t, k + dk);
+    }
+
+    /**
+     * @return floor(g cp 2^-127) with the lowest bit set if the result is not exact
+     */
+    private static long roundToOdd(long g1, long g0, long cp) {
+        long x1 = Math.multiplyHigh(g0, cp);
+        long y0 = g1 * cp;
+        long y1 = Math.multiplyHigh(g1, cp);
+        long z = (y0 >>> 1) + x1;
+        long vbp = y1 + (z >>> 63);
+        return vbp | (z & MASK_63) + MASK_63 >>> 63;
+    }
+
+    /**
+     * Writes f 10^e.
+     */
+    private void toChars(long f, int e) {
+        int length = flog10pow2(Long.SIZE - Long.numberOfLeadingZeros(f));
+        if (f >= POWERS_OF_TEN[length]) {
+            length++;
+        }
+        // normalized to 17 digits, so the value is 0.f 10^e
+        f *= POWERS_OF_TEN[DIGITS - length];
+        e += length;
+        // the most significant digit, the next 8 and the last 8, each extracted with int arithmetic
+        long hm = Math.multiplyHigh(f, 193_428_131_138_340_668L) >>> 20;
+        int l = (int) (f - 100_000_000 * hm);
+        int h = (int) (hm * 1_441_151_881L >>> 57);
+        int m = (int) (hm - 100_000_000 * h);
+        if (0 < e && e <= 7) {
+            plainWithoutLeadingZeros(h, m, l, e);
+        } else if (-3 < e && e <= 0) {
+            plainWithLeadingZeros(h, m, l, e);
+        } else {
+            scientific(h, m, l, e);
+        }
+    }
+
+    private void plainWithoutLeadingZeros(int h, int m, int l, int e) {
+        appendDigit(h);
+        int y = y(m);
+        int i = 1;
+        for (; i < e; i++) {
+            int t = 10 * y;
+            appendDigit(t >>> 28);
+            y = t & MASK_28;
+        }
+        append('.');
+        for (; i <= 8; i++) {
+            int t = 10 * y;
+            appendDigit(t >>> 28);
+            y = t & MASK_28;
+        }
+        lowDigits(l);
+    }
+
+    private void plainWithLeadingZeros(int h, int m, int l, int e) {
+        appendDigit(0);
+        append('.');
+        for (; e < 0; e++) {
+            appendDigit(0);
+        }
+        appendDigit(h);
+        append8Digits(m);
+        lowDigits(l);
+    }
+
+    private void scientific(int h, int m, int l, int e) {
+        appendDigit(h);
+        append('.');
+        append8Digits(m);
+        lowDigits(l);
+        exponent(e - 1);
+    }
+
+    private void append8Digits(int m) {
+        int y = y(m);
+        for (int i = 0; i < 8; i++) {
+            int t = 10 * y;
+            appendDigit(t >>> 28);
+            y = t & MASK_28;
+        }
+    }
+
+    private void lowDigits(int l) {
+        if (l != 0) {
+            append8Digits(l);
+        }
+        // at least one digit stays after the point
+        while (bytes[index] == '0') {
+            index--;
+        }
+        if (bytes[index] == '.') {
+            index++;
+        }
+    }
+
+    /**
+     * @return floor((a + 1) 2^28 / 10^8) - 1, whose successive multiplications by 10 yield the digits of a in the
+     * upper bits
+     */
+    private static int y(int a) {
+        return (int) (Math.multiplyHigh((long) (a + 1) << 28, 193_428_131_138_340_668L) >>> 20) - 1;
+    }
+
+    private void exponent(int e) {
+        append('E');
+        if (e < 0) {
+            append('-');
+            e = -e;
+        }
+        if (e < 10) {
+            appendDigit(e);
+            return;
+        }
+        int d;
+        if (e >= 100) {
+            d = e * 1_311 >>> 17;
+            appendDigit(d);
+            e -= 100 * d;
+        }
+        d = e * 103 >>> 10;
+        appendDigit(d);
+        appendDigit(e - 10 * d);
+    }
+
+    private void append(char c) {
+        bytes[++index] = (byte) c;
+    }
+
+    private void appendDigit(int digit) {
+        bytes[++index] = (byte) ('0' + digit);
+    }
+
+    // floor(e log10(2)), floor(e log10(3/4 2)) and floor(e log2(10)) for the exponent ranges of doubles
+    private static int flog10pow2(int e) {
+        return (int) (e * 661_971_961_083L >> 41);
+    }
+
+    private static int flog10threeQuartersPow2(int e) {
+        return (int) (e * 661_971_961_083L + -274_743_187_321L >> 41);
+    }
+
+    private static int flog2pow10(int e) {
+        return (int) (e * 913_124_641_741L >> 38);
+    }
+}
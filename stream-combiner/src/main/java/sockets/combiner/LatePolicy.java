@@ -0,0 +1,16 @@
+package sockets.combiner;
+
+/**
+ * What the combiner does with merged messages older than the last emitted one. They appear when a stream comes
+ * back after merging went on without it, see combiner.watermark.max.wait.millis. Late messages are counted either way, see {@link CombinerMetricsMBean#getLateMessages()}.
+ */
+enum LatePolicy {
+    /**
+     * Late messages are not emitted, the output stays ordered by timestamp.
+     */
+    DROP,
+    /**
+     * Late messages are emitted out of order, so the consumer can correct totals it already has for their timestamps.
+     */
+    CORRECTION
+}
@@ -0,0 +1,49 @@
+package sockets.combiner;
+
+import sockets.model.Message;
+import sockets.protocol.WireFormat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Frames newline terminated XML records, the format every producer sends unless asked for another one.
+ */
+class LineFramer extends RecordFramer {
+
+    private final MessageDecoder decoder = new MessageDecoder();
+
+    LineFramer(MessageStream messageStream) {
+        super(messageStream);
+    }
+
+    @Override
+    WireFormat wireFormat() {
+        return WireFormat.XML;
+    }
+
+    @Override
+    boolean decodeNext(ByteBuffer buffer, Message target) throws IOException {
+        for (int i = buffer.position(); i < buffer.limit(); i++) {
+            if (buffer.get(i) == '\n') {
+                int lineStart = buffer.position();
+                buffer.position(i + 1);
+                if (i > lineStart) {
+                    decoder.decodeInto(buffer, lineStart, i, target);
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    @Override
+    String throughputSummary(long elapsedNanos) {
+        var elapsedMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(elapsedNanos));
+        return "decoded " + decoder.decodedCount() + " messages (" + decoder.fallbackCount() + " via Jackson fallback, " +
+                decoder.decodedBytes() + " bytes) in " + elapsedMillis + " ms, " +
+                decoder.decodedCount() * 1000 / elapsedMillis + " messages/s, skipped " + skippedDuplicates() +
+                " duplicates after reconnecting or restarting" + reorderSummary();
+    }
+}
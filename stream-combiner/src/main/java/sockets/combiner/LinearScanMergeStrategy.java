@@ -0,0 +1,91 @@
+package sockets.combiner;
+
+import sockets.model.Message;
+
+import java.util.List;
+
+/**
+ * Reference implementation scanning heads of all streams on every merge, O(N) per merged message.
+ */
+class LinearScanMergeStrategy implements MergeStrategy {
+
+    private final List<MessageStream> messageStreams;
+    // indexes of the streams whose heads share the minimal timestamp, valid up to mergedHeadCount
+    private final int[] minimalStreams;
+    private boolean exhausted;
+    private int mergedHeadCount;
+
+    LinearScanMergeStrategy(List<MessageStream> messageStreams) {
+        this.messageStreams = messageStreams;
+        this.minimalStreams = new int[messageStreams.size()];
+    }
+
+    @Override
+    public boolean mergeNextInto(Message target) {
+        int activeOrNonEmptyCount = 0;
+        int headCount = 0;
+        Message minimalHead = null;
+        int minimalCount = 0;
+        for (int i = 0; i < messageStreams.size(); i++) {
+            var messageStream = messageStreams.get(i);
+            // activity is checked before the head, a stream is deactivated only after its last message is queued
+            boolean active = messageStream.isActive().get();
+            var head = messageStream.peek();
+            if (!active && head == null) {
+                continue;
+            }
+            activeOrNonEmptyCount++;
+            if (head == null) {
+                continue;
+            }
+            headCount++;
+            int comparison = minimalHead == null ? -1 : head.compareTimestampTo(minimalHead);
+            if (comparison < 0) {
+                minimalHead = head;
+                minimalCount = 0;
+            }
+            if (comparison <= 0) {
+                minimalStreams[minimalCount++] = i;
+            }
+        }
+        exhausted = activeOrNonEmptyCount == 0;
+        if (headCount == 0 || headCount != activeOrNonEmptyCount) {
+            return false;
+        }
+        target.copyFrom(minimalHead);
+        double mergedAmounts = 0.0;
+        for (int i = 0; i < minimalCount; i++) {
+            var messageStream = messageStreams.get(minimalStreams[i]);
+            var head = messageStream.poll();
+            mergedAmounts += head.getAmount();
+            messageStream.recycle(head);
+        }
+        mergedHeadCount = minimalCount;
+        target.setAmount(mergedAmounts);
+        return true;
+    }
+
+    @Override
+    public boolean isExhausted() {
+        return exhausted;
+    }
+
+    @Override
+    public int mergedHeadCount() {
+        return mergedHeadCount;
+    }
+
+    @Override
+    public MessageStream blockingStream() {
+        MessageStream blocking = null;
+        boolean anyHead = false;
+        for (var messageStream : messageStreams) {
+            if (!messageStream.isEmpty()) {
+                anyHead = true;
+            } else if (blocking == null && messageStream.isActive().get()) {
+                blocking = messageStream;
+            }
+        }
+        return anyHead ? blocking : null;
+    }
+}
@@ -0,0 +1,31 @@
+package sockets.combiner;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import sockets.model.Message;
+
+/**
+ * Logs every merged message as JSON through the combiner logger, as the combiner always did. Convenient, but each
+ * message costs a String and a logging event, prefer {@link BufferedStreamSink} for throughput.
+ */
+class LoggerSink implements OutputSink {
+
+    private static final Logger log = LoggerFactory.getLogger(Combiner.class);
+
+    private final MessageJsonWriter writer = new MessageJsonWriter(128);
+
+    @Override
+    public void emit(Message message) {
+        writer.clear();
+        writer.write(message);
+        log.info(writer.toString());
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -4,6 +4,7 @@ import org.apache.commons.lang3.tuple.Pair;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.Socket;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Properties;
@@ -11,16 +12,29 @@ import java.util.Properties;
 public class Main {
 
     public static void main(String[] args) {
-        List<Pair<String, Integer>> hostsAndPorts = Arrays.stream(((String) readProperties().get("sockets.to.connect")).split(";"))
+        var properties = readProperties();
+        List<Pair<String, Integer>> hostsAndPorts = Arrays.stream(((String) properties.get("sockets.to.connect")).split(";"))
                 .map(it -> {
                     var splitHostAndPort = it.split(":");
                     return Pair.of(splitHostAndPort[0], Integer.valueOf(splitHostAndPort[1]));
                 }).toList();
-        var openedSockets = new SocketConnector().connect(hostsAndPorts);
-        Combiner combiner = new Combiner(openedSockets);
+        var config = new CombinerConfig(properties);
+        var openedSockets = openReplaySockets(config);
+        if (openedSockets == null) {
+            openedSockets = new SocketConnector(config.createConnectionManager()).connect(hostsAndPorts);
+        }
+        Combiner combiner = new Combiner(openedSockets, config);
         combiner.readAndCombineMessageStreams();
     }
 
+    private static List<Socket> openReplaySockets(CombinerConfig config) {
+        try {
+            return config.openReplaySockets();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     private static Properties readProperties() {
         try (InputStream input = Main.class.getClassLoader().getResourceAsStream("application.properties")) {
             Properties prop = new Properties();
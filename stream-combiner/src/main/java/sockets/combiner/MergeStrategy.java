@@ -0,0 +1,46 @@
+package sockets.combiner;
+
+import sockets.model.Message;
+
+/**
+ * Merges heads of message streams in timestamp order. Implementations are used from a single combining thread only.
+ */
+interface MergeStrategy {
+
+    /**
+     * Removes all heads sharing the minimal timestamp from their streams and sums their amounts. Removed heads are
+     * recycled to their streams, see {@link MessageStream#recycle(Message)}.
+     *
+     * @param target receives timestamp and sum of the merged heads, so merging allocates nothing
+     * @return false if nothing can be merged yet (some active stream has no head) or at all
+     */
+    boolean mergeNextInto(Message target);
+
+    /**
+     * Like {@link #mergeNextInto(Message)}, into a new message.
+     *
+     * @return merged message or null if nothing can be merged yet (some active stream has no head) or at all
+     */
+    default Message mergeNext() {
+        var message = new Message();
+        return mergeNextInto(message) ? message : null;
+    }
+
+    /**
+     * @return true if all streams are inactive and drained, meaningful after {@link #mergeNextInto(Message)} merged nothing
+     */
+    boolean isExhausted();
+
+    /**
+     * @return how many heads were merged into the message last merged
+     */
+    int mergedHeadCount();
+
+    /**
+     * Meant for metrics only, it may cost a scan over all streams.
+     *
+     * @return stream without a head which kept the last {@link #mergeNextInto(Message)} from merging heads of the others, null
+     * if none did or there were no heads
+     */
+    MessageStream blockingStream();
+}
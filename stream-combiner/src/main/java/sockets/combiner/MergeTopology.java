@@ -0,0 +1,93 @@
+package sockets.combiner;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.StructuredTaskScope;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Splits merging of many streams into levels, so it is not bound to the single combining thread. Each level cuts its
+ * streams into consecutive groups of at most fanIn streams, merged in parallel by {@link MergeWorker}s into one
+ * intermediate stream each, until at most fanIn streams are left for the combining thread.
+ * <p>
+ * Order and merging of equal timestamps are the same as with a single level, but their amounts are summed per group
+ * first, so the sum is associated differently and may differ in the last bits.
+ */
+class MergeTopology {
+
+    private static final Logger log = LoggerFactory.getLogger(MergeTopology.class);
+
+    private final List<MergeWorker> workers;
+    private final List<MessageStream> finalStreams;
+
+    private MergeTopology(List<MergeWorker> workers, List<MessageStream> finalStreams) {
+        this.workers = workers;
+        this.finalStreams = finalStreams;
+    }
+
+    /**
+     * @param fanIn at most that many streams are merged by one thread, less than 2 merges all on the combining thread
+     */
+    static MergeTopology build(List<MessageStream> messageStreams, int fanIn, CombinerConfig config,
+                               CombinerMetrics metrics) {
+        List<MergeWorker> workers = new ArrayList<>();
+        var levelStreams = messageStreams;
+        int level = 0;
+        while (fanIn >= 2 && levelStreams.size() > fanIn) {
+            List<MessageStream> nextLevelStreams = new ArrayList<>();
+            for (int start = 0; start < levelStreams.size(); start += fanIn) {
+                var group = levelStreams.subList(start, Math.min(start + fanIn, levelStreams.size()));
+                if (group.size() == 1) {
+                    nextLevelStreams.add(group.get(0));
+                    continue;
+                }
+                var waitStrategy = config.createWaitStrategy();
+                var latencyRecorder = metrics.newLatencyRecorder();
+                group.forEach(it -> {
+                    it.consumedWith(waitStrategy);
+                    it.metrics().recordLatencyWith(latencyRecorder);
+                });
+                var worker = new MergeWorker(config.createMergeStrategy(group), waitStrategy,
+                        new MessageStream(config.queueCapacity()), config.createSpaceWaitStrategy());
+                workers.add(worker);
+                nextLevelStreams.add(worker.output());
+            }
+            levelStreams = nextLevelStreams;
+            level++;
+        }
+        if (level > 0) {
+            log.info("Merging " + messageStreams.size() + " streams in " + (level + 1) + " levels by " + workers.size() +
+                    " workers and the combining thread");
+        }
+        return new MergeTopology(workers, levelStreams);
+    }
+
+    /**
+     * @return streams left for the combining thread
+     */
+    List<MessageStream> finalStreams() {
+        return finalStreams;
+    }
+
+    boolean hasWorkers() {
+        return !workers.isEmpty();
+    }
+
+    /**
+     * Runs all workers until their groups are exhausted.
+     */
+    void run(ThreadFactory threadFactory) throws InterruptedException {
+        // workers end on their own once their inputs are drained, so none of them may shut down the scope
+        try (var scope = new StructuredTaskScope<>("merge", threadFactory)) {
+            workers.forEach(it ->
+                    scope.fork(() -> {
+                        it.run();
+                        return null;
+                    }));
+            scope.join();
+        }
+    }
+}
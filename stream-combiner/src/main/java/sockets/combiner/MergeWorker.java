@@ -0,0 +1,96 @@
+package sockets.combiner;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import sockets.model.Message;
+
+/**
+ * Merges one group of streams on its own thread into an intermediate stream, in timestamp order and with amounts of
+ * equal timestamps already summed, so the next level merges it like any other stream. It is the reader of its output:
+ * it waits for space when the output is full and signals the consumer of the output.
+ */
+class MergeWorker {
+
+    private static final Logger log = LoggerFactory.getLogger(MergeWorker.class);
+
+    // the consumer is signalled at least that often while merging goes on, and whenever the worker is about to wait
+    private static final int SIGNAL_BATCH = 64;
+
+    private final MergeStrategy mergeStrategy;
+    private final WaitStrategy waitStrategy;
+    private final MessageStream output;
+    private final WaitStrategy spaceWaitStrategy;
+    private int unsignalled;
+    // taken from the messages the consumer of the output recycled, kept until something is merged into it
+    private Message mergedMessage;
+
+    /**
+     * @param waitStrategy the inputs are consumed with
+     */
+    MergeWorker(MergeStrategy mergeStrategy, WaitStrategy waitStrategy, MessageStream output,
+                WaitStrategy spaceWaitStrategy) {
+        this.mergeStrategy = mergeStrategy;
+        this.waitStrategy = waitStrategy;
+        this.output = output;
+        this.spaceWaitStrategy = spaceWaitStrategy;
+        output.onSpaceAvailable(spaceWaitStrategy::signal);
+    }
+
+    MessageStream output() {
+        return output;
+    }
+
+    void run() throws InterruptedException {
+        try {
+            while (true) {
+                // read before merging, so a signal arriving during the merge attempt prevents waiting
+                var observedSignalCount = waitStrategy.signalCount();
+                if (mergedMessage == null) {
+                    mergedMessage = output.obtain();
+                }
+                if (mergeStrategy.mergeNextInto(mergedMessage)) {
+                    emit(mergedMessage);
+                    mergedMessage = null;
+                } else if (mergeStrategy.isExhausted()) {
+                    return;
+                } else {
+                    signalConsumer();
+                    var blockingStream = mergeStrategy.blockingStream();
+                    long waitStartNanos = System.nanoTime();
+                    waitStrategy.await(observedSignalCount);
+                    if (blockingStream != null) {
+                        blockingStream.metrics().mergeBlocked(System.nanoTime() - waitStartNanos);
+                    }
+                }
+            }
+        } catch (RuntimeException e) {
+            log.error("Merge worker failed due to " + e.getMessage() + ", will stop merging its streams", e);
+            throw e;
+        } finally {
+            output.isActive().set(false);
+            output.signalConsumer();
+        }
+    }
+
+    private void emit(Message message) throws InterruptedException {
+        while (true) {
+            var observedSpaceSignalCount = spaceWaitStrategy.signalCount();
+            if (output.offer(message)) {
+                break;
+            }
+            // the consumer has to drain the output first, it must not wait for a signal not sent yet
+            signalConsumer();
+            spaceWaitStrategy.await(observedSpaceSignalCount);
+        }
+        if (++unsignalled >= SIGNAL_BATCH) {
+            signalConsumer();
+        }
+    }
+
+    private void signalConsumer() {
+        if (unsignalled > 0) {
+            unsignalled = 0;
+            output.signalConsumer();
+        }
+    }
+}
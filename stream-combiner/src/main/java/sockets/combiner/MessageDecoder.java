@@ -0,0 +1,214 @@
+package sockets.combiner;
+
+import com.fasterxml.jackson.dataformat.xml.XmlMapper;
+import sockets.model.Message;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Decodes one {@code <data><timestamp>..</timestamp><amount>..</amount></data>} record straight from bytes,
+ * which is the exact shape written by stream producers. Records of any other shape are handed over to Jackson.
+ * Not thread safe, each reader owns its decoder.
+ */
+class MessageDecoder {
+
+    private static final byte[] RECORD_START = ascii("<data><timestamp>");
+    private static final byte[] TIMESTAMP_END_AMOUNT_START = ascii("</timestamp><amount>");
+    private static final byte[] RECORD_END = ascii("</amount></data>");
+
+    // longer values may not fit into long and are parsed through BigInteger
+    private static final int MAX_LONG_DIGITS = 18;
+    private static final int MAX_SIGNIFICANT_DIGITS = 19;
+    private static final int MAX_EXPONENT_DIGITS = 4;
+
+    private final XmlMapper xmlMapper = new XmlMapper();
+    private byte[] scratch = new byte[128];
+
+    // position of the scanner inside the currently decoded record
+    private int position;
+
+    private long decodedCount;
+    private long fallbackCount;
+    private long decodedBytes;
+
+    /**
+     * Decodes record from bytes between start (inclusive) and end (exclusive) indexes of the buffer,
+     * position and limit of the buffer are left untouched.
+     */
+    Message decode(ByteBuffer buffer, int start, int end) throws IOException {
+        var message = new Message();
+        decodeInto(buffer, start, end, message);
+        return message;
+    }
+
+    /**
+     * Like {@link #decode(ByteBuffer, int, int)}, overwriting the given message instead of allocating one, unless
+     * the record has to be handed over to Jackson.
+     */
+    void decodeInto(ByteBuffer buffer, int start, int end, Message message) throws IOException {
+        decodedCount++;
+        decodedBytes += end - start;
+        if (!decodeKnownShape(buffer, start, end, message)) {
+            fallbackCount++;
+            message.copyFrom(xmlMapper.readValue(copy(buffer, start, end), 0, end - start, Message.class));
+        }
+    }
+
+    long decodedCount() {
+        return decodedCount;
+    }
+
+    long fallbackCount() {
+        return fallbackCount;
+    }
+
+    long decodedBytes() {
+        return decodedBytes;
+    }
+
+    private boolean decodeKnownShape(ByteBuffer buffer, int start, int end, Message message) {
+        position = start;
+        skipWhitespace(buffer, end);
+        if (!expect(buffer, end, RECORD_START) || !decodeTimestamp(buffer, end, message)
+                || !expect(buffer, end, TIMESTAMP_END_AMOUNT_START) || !decodeAmount(buffer, end, message)
+                || !expect(buffer, end, RECORD_END)) {
+            return false;
+        }
+        skipWhitespace(buffer, end);
+        return position == end;
+    }
+
+    private boolean decodeTimestamp(ByteBuffer buffer, int end, Message message) {
+        int start = position;
+        boolean negative = position < end && buffer.get(position) == '-';
+        if (negative) {
+            position++;
+        }
+        int digitsStart = position;
+        long value = 0;
+        while (position < end && isDigit(buffer.get(position))) {
+            value = value * 10 + (buffer.get(position) - '0');
+            position++;
+        }
+        int digits = position - digitsStart;
+        if (digits == 0) {
+            return false;
+        }
+        if (digits <= MAX_LONG_DIGITS) {
+            message.setTimestampAsLong(negative ? -value : value);
+        } else {
+            message.setTimestamp(new BigInteger(new String(copy(buffer, start, position), 0, position - start, StandardCharsets.US_ASCII)));
+        }
+        return true;
+    }
+
+    private boolean decodeAmount(ByteBuffer buffer, int end, Message message) {
+        int start = position;
+        boolean negative = position < end && buffer.get(position) == '-';
+        if (negative) {
+            position++;
+        }
+        long significand = 0;
+        int significantDigits = 0;
+        int exponent = 0;
+        boolean anyDigit = false;
+        boolean fraction = false;
+        for (; position < end; position++) {
+            byte current = buffer.get(position);
+            if (isDigit(current)) {
+                anyDigit = true;
+                if (significantDigits == 0 && current == '0') {
+                    // leading zeros carry no precision
+                } else if (significantDigits < MAX_SIGNIFICANT_DIGITS) {
+                    significand = significand * 10 + (current - '0');
+                    significantDigits++;
+                } else {
+                    return decodeAmountWithJdk(buffer, start, end, message);
+                }
+                if (fraction) {
+                    exponent--;
+                }
+            } else if (current == '.' && !fraction) {
+                fraction = true;
+            } else {
+                break;
+            }
+        }
+        if (!anyDigit) {
+            return false;
+        }
+        if (position < end && (buffer.get(position) == 'E' || buffer.get(position) == 'e')) {
+            position++;
+            boolean negativeExponent = position < end && buffer.get(position) == '-';
+            if (negativeExponent || position < end && buffer.get(position) == '+') {
+                position++;
+            }
+            int exponentStart = position;
+            int explicitExponent = 0;
+            while (position < end && isDigit(buffer.get(position))) {
+                explicitExponent = explicitExponent * 10 + (buffer.get(position) - '0');
+                position++;
+            }
+            if (position == exponentStart || position - exponentStart > MAX_EXPONENT_DIGITS) {
+                return false;
+            }
+            exponent += negativeExponent ? -explicitExponent : explicitExponent;
+        }
+        double amount = DecimalToDouble.toDouble(significand, exponent, negative);
+        if (Double.isNaN(amount)) {
+            return decodeAmountWithJdk(buffer, start, end, message);
+        }
+        message.setAmount(amount);
+        return true;
+    }
+
+    private boolean decodeAmountWithJdk(ByteBuffer buffer, int start, int end, Message message) {
+        position = start;
+        while (position < end && buffer.get(position) != '<') {
+            position++;
+        }
+        try {
+            message.setAmount(Double.parseDouble(new String(copy(buffer, start, position), 0, position - start, StandardCharsets.US_ASCII)));
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private boolean expect(ByteBuffer buffer, int end, byte[] expected) {
+        if (end - position < expected.length) {
+            return false;
+        }
+        for (byte it : expected) {
+            if (buffer.get(position++) != it) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void skipWhitespace(ByteBuffer buffer, int end) {
+        while (position < end && buffer.get(position) <= ' ') {
+            position++;
+        }
+    }
+
+    private byte[] copy(ByteBuffer buffer, int start, int end) {
+        if (scratch.length < end - start) {
+            scratch = new byte[Math.max(end - start, 2 * scratch.length)];
+        }
+        buffer.get(start, scratch, 0, end - start);
+        return scratch;
+    }
+
+    private static boolean isDigit(byte value) {
+        return value >= '0' && value <= '9';
+    }
+
+    private static byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,19 @@
+package sockets.combiner;
+
+import sockets.model.Message;
+
+/**
+ * Encodes messages straight into a reusable byte array, one complete record of a wire format at a time, so sinks can
+ * hand the bytes over without going through Jackson. Not thread safe.
+ */
+abstract class MessageEncoder extends ByteArrayEncoder {
+
+    MessageEncoder(int initialCapacity) {
+        super(initialCapacity);
+    }
+
+    /**
+     * Appends the message as one record a reader of the format can take without any other context.
+     */
+    abstract void writeRecord(Message message);
+}
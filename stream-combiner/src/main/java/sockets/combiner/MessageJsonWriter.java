@@ -0,0 +1,56 @@
+package sockets.combiner;
+
+import sockets.model.Message;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes messages as JSON straight into a reusable byte array, producing the same text as Jackson with
+ * WRAP_ROOT_VALUE, e.g. {"data":{"timestamp":10,"amount":56.067}}. Not thread safe.
+ */
+class MessageJsonWriter extends MessageEncoder {
+
+    private static final byte[] TIMESTAMP_PREFIX = "{\"data\":{\"timestamp\":".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] AMOUNT_PREFIX = ",\"amount\":".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] SUFFIX = "}}".getBytes(StandardCharsets.US_ASCII);
+
+    MessageJsonWriter(int initialCapacity) {
+        super(initialCapacity);
+    }
+
+    void write(Message message) {
+        writeBytes(TIMESTAMP_PREFIX);
+        if (message.hasWideTimestamp()) {
+            writeAscii(message.getTimestamp().toString());
+        } else {
+            writeDecimal(message.getTimestampAsLong());
+        }
+        writeBytes(AMOUNT_PREFIX);
+        writeAmount(message.getAmount());
+        writeBytes(SUFFIX);
+    }
+
+    void newLine() {
+        writeByte((byte) '\n');
+    }
+
+    /**
+     * JSON line.
+     */
+    @Override
+    void writeRecord(Message message) {
+        write(message);
+        newLine();
+    }
+
+    private void writeAmount(double value) {
+        if (Double.isFinite(value)) {
+            writeDouble(value);
+        } else {
+            // Jackson quotes non numeric values by default
+            writeByte((byte) '"');
+            writeDouble(value);
+            writeByte((byte) '"');
+        }
+    }
+}
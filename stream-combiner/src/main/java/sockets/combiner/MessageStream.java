@@ -2,9 +2,225 @@ package sockets.combiner;
 
 import sockets.model.Message;
 
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
 
-record MessageStream(AtomicBoolean isActive, ConcurrentLinkedQueue<Message> messageQueue) {
+/**
+ * Messages of one upstream in a bounded queue, filled by exactly one reader and drained by exactly one combiner.
+ * When the queue is full the reader has to stop reading its socket, so the backpressure reaches the producer
+ * through TCP. Combiner notifies the reader once the queue is drained down to half of its capacity; the notification
+ * is not fenced against the reader's flag, so readers re-check a full queue periodically in case it was missed.
+ * If the metrics track latency, every message is stamped with the time it was read, recorded once it is merged.
+ * <p>
+ * With a spill queue the reader never has to stop: once the queue is full, messages are appended to the spill queue
+ * until the combiner read all of them back, and only then go to the in-memory queue again. The combiner reads the
+ * spill queue only while the in-memory queue is empty, which keeps the order.
+ * <p>
+ * Messages are recycled: the combiner hands every message it consumed back through a second queue, and the reader
+ * decodes into those instead of allocating new ones, so in steady state the stream allocates nothing.
+ */
+class MessageStream {
 
+    private final AtomicBoolean isActive = new AtomicBoolean(true);
+    private final SpscRingBuffer<Message> messageQueue;
+    // consumed messages on their way back from the combiner to the reader
+    private final SpscRingBuffer<Message> recycledMessages;
+    private final StreamMetrics metrics;
+    private final SpillQueue spillQueue;
+    // reader side, whether new messages have to be appended to the spill queue to stay behind the spilled ones
+    private boolean spilling;
+
+    private volatile boolean readerWaitingForSpace;
+    private volatile Runnable spaceListener = () -> {
+    };
+    private WaitStrategy consumerWaitStrategy;
+    private volatile long fullCount;
+
+    MessageStream(int capacity) {
+        this(capacity, StreamMetrics.untracked());
+    }
+
+    MessageStream(int capacity, StreamMetrics metrics) {
+        this(capacity, metrics, null);
+    }
+
+    /**
+     * @param spillQueue overflow for messages not fitting into the queue, null to push back on the reader instead
+     */
+    MessageStream(int capacity, StreamMetrics metrics, SpillQueue spillQueue) {
+        messageQueue = new SpscRingBuffer<>(capacity, metrics.tracksLatency());
+        recycledMessages = new SpscRingBuffer<>(capacity);
+        this.metrics = metrics;
+        this.spillQueue = spillQueue;
+        metrics.attach(this);
+    }
+
+    AtomicBoolean isActive() {
+        return isActive;
+    }
+
+    StreamMetrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * Reader side only.
+     *
+     * @return false if the queue is full, the space listener is notified once there is room again
+     */
+    boolean offer(Message message) {
+        return offer(message, metrics.tracksLatency() ? System.nanoTime() : 0);
+    }
+
+    /**
+     * Reader side only.
+     *
+     * @param ingestNanos when the message was read, for the latency metrics
+     * @return false if the queue is full, the space listener is notified once there is room again
+     */
+    boolean offer(Message message, long ingestNanos) {
+        if (spillQueue != null) {
+            return offerOrSpill(message, ingestNanos);
+        }
+        if (messageQueue.offer(message, ingestNanos)) {
+            return true;
+        }
+        readerWaitingForSpace = true;
+        // combiner may have drained the queue before seeing the flag
+        if (messageQueue.offer(message, ingestNanos)) {
+            readerWaitingForSpace = false;
+            return true;
+        }
+        fullCount++;
+        return false;
+    }
+
+    private boolean offerOrSpill(Message message, long ingestNanos) {
+        if (spilling && spillQueue.isDrained()) {
+            spilling = false;
+        }
+        if (spilling || !messageQueue.offer(message, ingestNanos)) {
+            spilling = true;
+            spillQueue.append(message, ingestNanos);
+        }
+        return true;
+    }
+
+    /**
+     * Reader side only.
+     *
+     * @return message the combiner is done with, or a new one if none was handed back yet
+     */
+    Message obtain() {
+        var message = recycledMessages.poll();
+        return message != null ? message : new Message();
+    }
+
+    /**
+     * Combiner side only, hands a consumed message back to the reader. The combiner must not touch it afterwards,
+     * the reader may already be decoding into it.
+     */
+    void recycle(Message message) {
+        // a full pool just leaves the message to the garbage collector
+        recycledMessages.offer(message);
+    }
+
+    /**
+     * Sets how the consuming thread waits for messages, to be called before the reader starts.
+     */
+    void consumedWith(WaitStrategy waitStrategy) {
+        this.consumerWaitStrategy = waitStrategy;
+    }
+
+    WaitStrategy consumerWaitStrategy() {
+        return consumerWaitStrategy;
+    }
+
+    /**
+     * Reader side, wakes up the consumer after queueing messages or deactivating the stream.
+     */
+    void signalConsumer() {
+        consumerWaitStrategy.signal();
+    }
+
+    /**
+     * Sets the callback letting the reader resume after the queue was full, it runs on the combining thread.
+     */
+    void onSpaceAvailable(Runnable listener) {
+        this.spaceListener = listener;
+    }
+
+    /**
+     * Combiner side only.
+     */
+    Message peek() {
+        var head = messageQueue.peek();
+        return head != null || spillQueue == null ? head : spillQueue.peek();
+    }
+
+    /**
+     * Combiner side only.
+     */
+    Message poll() {
+        if (spillQueue != null && messageQueue.peek() == null) {
+            // in-memory queue is drained, spilled messages come next
+            if (metrics.tracksLatency() && spillQueue.peek() != null) {
+                metrics.recordLatency(spillQueue.headStamp());
+            }
+            return spillQueue.poll();
+        }
+        if (metrics.tracksLatency() && messageQueue.peek() != null) {
+            metrics.recordLatency(messageQueue.headStamp());
+        }
+        var message = messageQueue.poll();
+        if (readerWaitingForSpace && messageQueue.size() <= messageQueue.capacity() / 2) {
+            readerWaitingForSpace = false;
+            spaceListener.run();
+        }
+        return message;
+    }
+
+    /**
+     * Combiner side only.
+     */
+    boolean isEmpty() {
+        return peek() == null;
+    }
+
+    int size() {
+        return messageQueue.size() + (spillQueue == null ? 0 : (int) Math.min(Integer.MAX_VALUE, spillQueue.size()));
+    }
+
+    /**
+     * @return spilled messages so far, 0 without a spill queue
+     */
+    long spilledCount() {
+        return spillQueue == null ? 0 : spillQueue.writtenCount();
+    }
+
+    /**
+     * @return spilled messages read back so far, 0 without a spill queue
+     */
+    long readBackCount() {
+        return spillQueue == null ? 0 : spillQueue.readCount();
+    }
+
+    /**
+     * Removes the files of the spill queue, once neither side uses the stream anymore.
+     */
+    void closeSpillQueue() {
+        if (spillQueue != null) {
+            spillQueue.close();
+        }
+    }
+
+    int capacity() {
+        return messageQueue.capacity();
+    }
+
+    /**
+     * @return how many times the reader found the queue full
+     */
+    long fullCount() {
+        return fullCount;
+    }
 }
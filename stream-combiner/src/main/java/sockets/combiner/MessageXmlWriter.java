@@ -0,0 +1,35 @@
+package sockets.combiner;
+
+import sockets.model.Message;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes messages as the XML lines stream producers send, e.g.
+ * {@code <data><timestamp>10</timestamp><amount>56.067</amount></data>}, so another combiner can read them like the
+ * output of a producer. Not thread safe.
+ */
+class MessageXmlWriter extends MessageEncoder {
+
+    private static final byte[] TIMESTAMP_PREFIX = "<data><timestamp>".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] AMOUNT_PREFIX = "</timestamp><amount>".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] SUFFIX = "</amount></data>\n".getBytes(StandardCharsets.US_ASCII);
+
+    MessageXmlWriter(int initialCapacity) {
+        super(initialCapacity);
+    }
+
+    @Override
+    void writeRecord(Message message) {
+        writeBytes(TIMESTAMP_PREFIX);
+        if (message.hasWideTimestamp()) {
+            writeAscii(message.getTimestamp().toString());
+        } else {
+            writeDecimal(message.getTimestampAsLong());
+        }
+        writeBytes(AMOUNT_PREFIX);
+        // the text of Double.toString is read back to the same value, also NaN and Infinity
+        writeDouble(message.getAmount());
+        writeBytes(SUFFIX);
+    }
+}
@@ -0,0 +1,363 @@
+package sockets.combiner;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import sockets.model.Message;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Append-only journal of merged messages in memory-mapped segment files, so a restarted combiner continues after the
+ * newest message it emitted and downstream readers can be served what they missed. Late messages emitted as
+ * corrections are journaled too, but an older correction appended last never moves the restart point back.
+ * <p>
+ * Records are binary: the timestamp as long (or its length and bytes if it is wider) and the amount, preceded by a kind
+ * byte which is written last. A record never crosses segments, a {@code NEXT_SEGMENT} marker moves on to the next file
+ * instead. Segments are forced to disk at most once per sync period, after which the checkpoint file records how far
+ * the journal is durable and the newest message up to there; recovery scans only the records written after it.
+ * <p>
+ * Writing the kind last keeps a record whole after the process dies, the page cache still holds all of it. The kernel
+ * writes dirty pages back in any order though, so after the machine crashes only records up to the checkpoint are
+ * certain to be intact, later ones may be torn or missing.
+ * <p>
+ * Segments wholly before the checkpoint are deleted once more than the retained number of them piled up, so the
+ * journal keeps a bounded history to resume after and replay from.
+ */
+class OutputJournal implements OutputSink {
+
+    private static final Logger log = LoggerFactory.getLogger(OutputJournal.class);
+    private static final String CHECKPOINT_FILE = "checkpoint";
+    private static final String SEGMENT_SUFFIX = ".journal";
+    // unwritten bytes of a mapped file are zero, so the end of the journal needs no marker of its own
+    private static final byte END = 0;
+    private static final byte LONG_RECORD = 1;
+    private static final byte WIDE_RECORD = 2;
+    private static final byte NEXT_SEGMENT = 3;
+    private static final int LONG_RECORD_BYTES = 1 + Long.BYTES + Double.BYTES;
+    private static final int MIN_SEGMENT_BYTES = 4096;
+    // the clock is read once per that many appends to decide whether a sync is due while there is no idle flush
+    private static final int SYNC_CHECK_INTERVAL = 1024;
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final long syncNanos;
+    private final int retainedSegments;
+    private final Message newestRecovered;
+
+    private long segmentIndex;
+    // oldest segment not deleted yet
+    private long firstSegmentIndex;
+    private FileChannel channel;
+    private MappedByteBuffer segment;
+    private int position;
+    // copy of the appended message with the highest timestamp, null while the journal is empty
+    private Message newestAppended;
+    private boolean unsynced;
+    private long lastSyncNanos = System.nanoTime();
+    private long appendedCount;
+    private long syncCount;
+    private long segmentsCreated;
+    private long segmentsDeleted;
+
+    private OutputJournal(Path directory, int segmentBytes, long syncMillis, int retainedSegments, Cursor recovered)
+            throws IOException {
+        this.directory = directory;
+        this.segmentBytes = Math.max(MIN_SEGMENT_BYTES, segmentBytes);
+        this.syncNanos = TimeUnit.MILLISECONDS.toNanos(syncMillis);
+        this.retainedSegments = retainedSegments;
+        this.firstSegmentIndex = firstSegmentIndex(directory, recovered.segmentIndex);
+        this.newestRecovered = recovered.newest;
+        this.newestAppended = recovered.newest;
+        openSegment(recovered.segmentIndex);
+        position = recovered.position;
+        // a record torn by a crash may have left bytes which would otherwise be taken for a kind later
+        for (int i = position; i < segment.capacity(); i++) {
+            if (segment.get(i) != END) {
+                segment.put(i, END);
+            }
+        }
+    }
+
+    /**
+     * Opens the journal in the directory, creating it if there is none, and positions it after the last complete record.
+     *
+     * @param segmentBytes size of one segment file, at least 4096 bytes
+     * @param syncMillis       how long appended records may stay in the page cache only, 0 to force on every flush
+     * @param retainedSegments completed segments kept before the one written to, negative to keep all
+     */
+    static OutputJournal open(Path directory, int segmentBytes, long syncMillis, int retainedSegments)
+            throws IOException {
+        Files.createDirectories(directory);
+        var cursor = readCheckpoint(directory);
+        while (cursor.next() != null) {
+            // skips to the end of what was written after the checkpoint
+        }
+        var journal = new OutputJournal(directory, segmentBytes, syncMillis, retainedSegments, cursor);
+        log.info("Opened journal " + directory + " at segment " + cursor.segmentIndex + ", offset " + cursor.position +
+                (cursor.newest == null ? ", it is empty" : ", newest emitted " + cursor.newest));
+        return journal;
+    }
+
+    /**
+     * @return message with the highest timestamp emitted before the journal was opened, null if it was empty
+     */
+    Message newestRecovered() {
+        return newestRecovered;
+    }
+
+    /**
+     * Emits journaled messages newer than the given one to the sink, in the order they were appended. Messages of
+     * deleted segments are gone.
+     *
+     * @return number of messages replayed
+     */
+    static long replay(Path directory, Message after, OutputSink sink) throws IOException {
+        var cursor = new Cursor(directory, firstSegmentIndex(directory, 0), 0, null);
+        long replayed = 0;
+        Message message;
+        while ((message = cursor.next()) != null) {
+            if (after == null || message.compareTimestampTo(after) > 0) {
+                sink.emit(message);
+                replayed++;
+            }
+        }
+        sink.flush();
+        return replayed;
+    }
+
+    @Override
+    public void emit(Message message) throws IOException {
+        byte[] wideTimestamp = message.hasWideTimestamp() ? message.getTimestamp().toByteArray() : null;
+        int recordBytes = wideTimestamp == null ? LONG_RECORD_BYTES :
+                LONG_RECORD_BYTES - Long.BYTES + Integer.BYTES + wideTimestamp.length;
+        // one byte stays free for the next segment marker
+        if (recordBytes >= segmentBytes) {
+            throw new IllegalArgumentException("Timestamp of " + message + " does not fit into a journal segment");
+        }
+        if (position + recordBytes >= segment.capacity()) {
+            nextSegment();
+        }
+        int offset = position + 1;
+        if (wideTimestamp == null) {
+            segment.putLong(offset, message.getTimestampAsLong());
+            offset += Long.BYTES;
+        } else {
+            segment.putInt(offset, wideTimestamp.length);
+            segment.put(offset + Integer.BYTES, wideTimestamp);
+            offset += Integer.BYTES + wideTimestamp.length;
+        }
+        segment.putDouble(offset, message.getAmount());
+        segment.put(position, wideTimestamp == null ? LONG_RECORD : WIDE_RECORD);
+        position += recordBytes;
+        if (newestAppended == null || message.compareTimestampTo(newestAppended) > 0) {
+            if (newestAppended == null || newestAppended == newestRecovered) {
+                newestAppended = new Message();
+            }
+            newestAppended.copyFrom(message);
+        }
+        unsynced = true;
+        if (++appendedCount % SYNC_CHECK_INTERVAL == 0) {
+            syncIfDue();
+        }
+    }
+
+    /**
+     * Forces the journal and writes the checkpoint if the sync period passed, the combiner flushes whenever it is idle.
+     */
+    @Override
+    public void flush() throws IOException {
+        syncIfDue();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            sync();
+        } finally {
+            channel.close();
+        }
+        log.info("Journal " + directory + " appended " + appendedCount + " messages, synced " + syncCount +
+                " times, created " + segmentsCreated + " segments, deleted " + segmentsDeleted + ", newest emitted " +
+                newestAppended);
+    }
+
+    private void syncIfDue() throws IOException {
+        if (unsynced && System.nanoTime() - lastSyncNanos >= syncNanos) {
+            sync();
+        }
+    }
+
+    private void sync() throws IOException {
+        if (!unsynced) {
+            return;
+        }
+        segment.force();
+        writeCheckpoint();
+        unsynced = false;
+        lastSyncNanos = System.nanoTime();
+        syncCount++;
+        deleteCheckpointedSegments();
+    }
+
+    /**
+     * Deletes the oldest segments beyond the retained ones, all of them are before the checkpoint just written.
+     */
+    private void deleteCheckpointedSegments() throws IOException {
+        if (retainedSegments < 0) {
+            return;
+        }
+        while (firstSegmentIndex < segmentIndex - retainedSegments) {
+            Files.deleteIfExists(segmentPath(directory, firstSegmentIndex));
+            firstSegmentIndex++;
+            segmentsDeleted++;
+        }
+    }
+
+    private void nextSegment() throws IOException {
+        var previousChannel = channel;
+        var previousSegment = segment;
+        int markerPosition = position;
+        // the next file exists before the marker pointing to it is written
+        openSegment(segmentIndex + 1);
+        position = 0;
+        previousSegment.put(markerPosition, NEXT_SEGMENT);
+        previousSegment.force();
+        previousChannel.close();
+    }
+
+    private void openSegment(long index) throws IOException {
+        var path = segmentPath(directory, index);
+        if (Files.notExists(path)) {
+            segmentsCreated++;
+        }
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(channel.size(), segmentBytes));
+        segmentIndex = index;
+    }
+
+    /**
+     * Checkpoint holds the segment and offset up to which the journal is durable followed by the newest record before
+     * it, replaced atomically so a crash leaves either the old or the new one.
+     */
+    private void writeCheckpoint() throws IOException {
+        byte[] wideTimestamp = newestAppended.hasWideTimestamp() ? newestAppended.getTimestamp().toByteArray() : null;
+        var record = ByteBuffer.allocate(Long.BYTES + Integer.BYTES + LONG_RECORD_BYTES + Integer.BYTES +
+                (wideTimestamp == null ? 0 : wideTimestamp.length));
+        record.putLong(segmentIndex).putInt(position);
+        if (wideTimestamp != null) {
+            record.put(WIDE_RECORD).putInt(wideTimestamp.length).put(wideTimestamp);
+        } else {
+            record.put(LONG_RECORD).putLong(newestAppended.getTimestampAsLong());
+        }
+        record.putDouble(newestAppended.getAmount()).flip();
+        var temporary = directory.resolve(CHECKPOINT_FILE + ".tmp");
+        try (var checkpoint = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            checkpoint.write(record);
+            checkpoint.force(false);
+        }
+        Files.move(temporary, directory.resolve(CHECKPOINT_FILE), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static Cursor readCheckpoint(Path directory) throws IOException {
+        var path = directory.resolve(CHECKPOINT_FILE);
+        if (Files.notExists(path)) {
+            return new Cursor(directory, 0, 0, null);
+        }
+        var checkpoint = ByteBuffer.wrap(Files.readAllBytes(path));
+        long segmentIndex = checkpoint.getLong();
+        int position = checkpoint.getInt();
+        var newest = Cursor.decode(checkpoint, checkpoint.position());
+        return new Cursor(directory, segmentIndex, position, newest);
+    }
+
+    /**
+     * @return index of the oldest segment in the directory, the given one if there is none
+     */
+    private static long firstSegmentIndex(Path directory, long orElse) throws IOException {
+        try (var files = Files.list(directory)) {
+            return files.map(it -> it.getFileName().toString())
+                    .filter(it -> it.endsWith(SEGMENT_SUFFIX))
+                    .mapToLong(it -> Long.parseLong(it.substring(0, it.length() - SEGMENT_SUFFIX.length())))
+                    .min()
+                    .orElse(orElse);
+        }
+    }
+
+    private static Path segmentPath(Path directory, long index) {
+        return directory.resolve(String.format("%020d", index) + SEGMENT_SUFFIX);
+    }
+
+    /**
+     * Reads records from a position on, following next segment markers, until the end of the journal, keeping the one
+     * with the highest timestamp.
+     */
+    private static class Cursor {
+        private final Path directory;
+        private long segmentIndex;
+        private int position;
+        private Message newest;
+        private MappedByteBuffer segment;
+
+        private Cursor(Path directory, long segmentIndex, int position, Message newest) {
+            this.directory = directory;
+            this.segmentIndex = segmentIndex;
+            this.position = position;
+            this.newest = newest;
+        }
+
+        /**
+         * @return next complete record, null at the end of the journal leaving the position there
+         */
+        Message next() throws IOException {
+            while (true) {
+                if (segment == null) {
+                    var path = segmentPath(directory, segmentIndex);
+                    if (Files.notExists(path)) {
+                        return null;
+                    }
+                    try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                        segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                    }
+                }
+                byte kind = position < segment.capacity() ? segment.get(position) : END;
+                if (kind == NEXT_SEGMENT && Files.exists(segmentPath(directory, segmentIndex + 1))) {
+                    segmentIndex++;
+                    position = 0;
+                    segment = null;
+                    continue;
+                }
+                if (kind != LONG_RECORD && kind != WIDE_RECORD) {
+                    return null;
+                }
+                var message = decode(segment, position);
+                position += kind == LONG_RECORD ? LONG_RECORD_BYTES :
+                        LONG_RECORD_BYTES - Long.BYTES + Integer.BYTES + segment.getInt(position + 1);
+                if (newest == null || message.compareTimestampTo(newest) > 0) {
+                    newest = message;
+                }
+                return message;
+            }
+        }
+
+        private static Message decode(ByteBuffer buffer, int position) {
+            int offset = position + 1;
+            if (buffer.get(position) == LONG_RECORD) {
+                return new Message(buffer.getLong(offset), buffer.getDouble(offset + Long.BYTES));
+            }
+            var wideTimestamp = new byte[buffer.getInt(offset)];
+            buffer.get(offset + Integer.BYTES, wideTimestamp);
+            return new Message(new BigInteger(wideTimestamp), buffer.getDouble(offset + Integer.BYTES + wideTimestamp.length));
+        }
+    }
+}
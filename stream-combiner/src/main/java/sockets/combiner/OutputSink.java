@@ -0,0 +1,18 @@
+package sockets.combiner;
+
+import sockets.model.Message;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Destination of merged messages. Called only from the combining thread, implementations may keep messages in a
+ * batch until {@link #flush()}, which the combiner calls whenever it runs out of messages to merge. The combiner
+ * reuses the emitted message for the next one, so implementations have to copy or encode it before returning.
+ */
+interface OutputSink extends Closeable {
+
+    void emit(Message message) throws IOException;
+
+    void flush() throws IOException;
+}
@@ -0,0 +1,234 @@
+package sockets.combiner;
+
+import sockets.model.Message;
+import sockets.protocol.WireFormat;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * Splits records of one wire format in place and decodes them into a message stream. Not thread safe, each connection
+ * owns its framer.
+ */
+abstract class RecordFramer {
+
+    private final MessageStream messageStream;
+    // decoded message which did not fit into the full queue of the stream
+    private Message undelivered;
+    // recycled message the next record is decoded into, kept while records decoded into it are skipped
+    private Message next;
+    // copy of the newest message taken from the wire, messages not newer than it are duplicates after reconnecting or
+    // restarting; with reordering the last one to arrive may be older than others already held or queued
+    private Message newestDecoded;
+    private Message skipUpTo;
+    private long skippedDuplicates;
+    // sorts records before they are queued, null if the stream is taken to be ordered
+    private ReorderBuffer reorderBuffer;
+
+    RecordFramer(MessageStream messageStream) {
+        this.messageStream = messageStream;
+    }
+
+    static RecordFramer create(WireFormat format, MessageStream messageStream) {
+        return switch (format) {
+            case XML -> new LineFramer(messageStream);
+            case BINARY -> new BinaryFramer(messageStream);
+        };
+    }
+
+    MessageStream messageStream() {
+        return messageStream;
+    }
+
+    abstract WireFormat wireFormat();
+
+    /**
+     * Decodes the next complete record in the readable part of the buffer into the target and advances the position
+     * of the buffer past it.
+     *
+     * @return false if there is no complete record left
+     */
+    abstract boolean decodeNext(ByteBuffer buffer, Message target) throws IOException;
+
+    abstract String throughputSummary(long elapsedNanos);
+
+    /**
+     * Forgets framing state of a partial record, its bytes are gone with the dropped connection.
+     */
+    void discardPartialRecord() {
+    }
+
+    /**
+     * Decodes complete records in the readable part of the buffer, advancing its position to the start of the first
+     * record not decoded. Stops early if the queue of the stream gets full, see {@link #isStalled()}.
+     *
+     * @return true if any message was queued
+     */
+    boolean decodeRecords(ByteBuffer buffer) throws IOException {
+        // one clock read per batch, records read together count as ingested together
+        long ingestNanos = System.nanoTime();
+        int queued = 0;
+        // read before the message is queued, the combiner may recycle it right after
+        long newestTimestamp = StreamMetrics.NO_TIMESTAMP;
+        try {
+            if (undelivered != null) {
+                long timestamp = timestampOf(undelivered);
+                if (!messageStream.offer(undelivered, ingestNanos)) {
+                    return false;
+                }
+                newestTimestamp = timestamp;
+                undelivered = null;
+                queued++;
+            }
+            while (true) {
+                if (reorderBuffer != null) {
+                    while (reorderBuffer.hasReleasable()) {
+                        var released = messageStream.obtain();
+                        reorderBuffer.releaseInto(released);
+                        long timestamp = released.getTimestampAsLong();
+                        if (!messageStream.offer(released, ingestNanos)) {
+                            undelivered = released;
+                            return queued > 0;
+                        }
+                        newestTimestamp = timestamp;
+                        queued++;
+                    }
+                }
+                if (next == null) {
+                    next = messageStream.obtain();
+                }
+                if (!decodeNext(buffer, next)) {
+                    return queued > 0;
+                }
+                var message = next;
+                if (skipUpTo != null) {
+                    if (message.compareTimestampTo(skipUpTo) <= 0) {
+                        skippedDuplicates++;
+                        continue;
+                    }
+                    skipUpTo = null;
+                }
+                if (newestDecoded == null) {
+                    newestDecoded = new Message();
+                    newestDecoded.copyFrom(message);
+                } else if (message.compareTimestampTo(newestDecoded) > 0) {
+                    newestDecoded.copyFrom(message);
+                }
+                if (reorderBuffer != null && sortIn(message)) {
+                    // taken over by the buffer, the message is decoded into again
+                    continue;
+                }
+                next = null;
+                long timestamp = timestampOf(message);
+                if (!messageStream.offer(message, ingestNanos)) {
+                    undelivered = message;
+                    return queued > 0;
+                }
+                newestTimestamp = timestamp;
+                queued++;
+            }
+        } catch (IOException e) {
+            messageStream.metrics().decodeError();
+            throw e;
+        } finally {
+            if (queued > 0) {
+                messageStream.metrics().received(queued, newestTimestamp);
+            }
+        }
+    }
+
+    /**
+     * @return false if the message is too late to be sorted in, it is queued as it is and the combiner treats it
+     * according to combiner.watermark.late.policy
+     */
+    private boolean sortIn(Message message) throws ProtocolException {
+        if (message.hasWideTimestamp()) {
+            throw new ProtocolException("Timestamp of " + message + " does not fit into a long, it cannot be reordered");
+        }
+        if (reorderBuffer.add(message)) {
+            return true;
+        }
+        messageStream.metrics().tooLate();
+        return false;
+    }
+
+    private static long timestampOf(Message message) {
+        return message.hasWideTimestamp() ? StreamMetrics.NO_TIMESTAMP : message.getTimestampAsLong();
+    }
+
+    /**
+     * @return true if the queue of the stream was full, the reader should stop reading until it has space again
+     * and then call {@link #decodeRecords(ByteBuffer)} to deliver the rest
+     */
+    boolean isStalled() {
+        return undelivered != null;
+    }
+
+    /**
+     * Called when the connection was replaced after a drop. Bytes of the old connection are gone, the producer may
+     * send again what it sent before, so messages not newer than the newest decoded one are skipped.
+     */
+    void resumeAfterReconnect() {
+        discardPartialRecord();
+        if (newestDecoded != null) {
+            skipUpTo = newestDecoded;
+        }
+    }
+
+    /**
+     * Sorts records which arrive out of order within the bound of the buffer before they are queued.
+     *
+     * @param reorderBuffer null to queue records in the order they arrive
+     */
+    void reorderWith(ReorderBuffer reorderBuffer) {
+        this.reorderBuffer = reorderBuffer;
+    }
+
+    /**
+     * Called when the stream ended, records still held for reordering are queued by the next
+     * {@link #decodeRecords(ByteBuffer)}, which may stall like any other.
+     */
+    void endOfStream() {
+        if (reorderBuffer != null) {
+            reorderBuffer.drain();
+        }
+    }
+
+    /**
+     * Skips messages not newer than the last one the combiner emitted before it was restarted, producers send their
+     * streams from the start again.
+     *
+     * @param lastEmitted null to take all messages
+     */
+    void resumeAfterRestart(Message lastEmitted) {
+        skipUpTo = lastEmitted;
+    }
+
+    /**
+     * @return framer for the format negotiated on a new connection, taking over what was decoded so far
+     */
+    RecordFramer withWireFormat(WireFormat format) {
+        if (format == wireFormat()) {
+            return this;
+        }
+        var framer = create(format, messageStream);
+        framer.undelivered = undelivered;
+        framer.newestDecoded = newestDecoded;
+        framer.skipUpTo = skipUpTo;
+        framer.skippedDuplicates = skippedDuplicates;
+        framer.reorderBuffer = reorderBuffer;
+        return framer;
+    }
+
+    long skippedDuplicates() {
+        return skippedDuplicates;
+    }
+
+    /**
+     * @return what the reorder buffer did, empty if there is none
+     */
+    String reorderSummary() {
+        return reorderBuffer == null ? "" : ", " + reorderBuffer;
+    }
+}
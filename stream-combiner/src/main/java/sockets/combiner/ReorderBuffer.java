@@ -0,0 +1,228 @@
+package sockets.combiner;
+
+import sockets.model.Message;
+
+import java.util.Arrays;
+
+/**
+ * Sorts records of one stream which arrive out of order within a bound before they reach the merge, which expects every
+ * stream ordered by timestamp. The bound is either a number of held records or a timestamp distance: a record is held
+ * until a record that much newer arrived. Records with the same timestamp are summed while they are held, so the merge
+ * sees one record per timestamp and stream. Records not newer than one already let go are too late, they are counted
+ * and left to the caller.
+ * <p>
+ * Records arriving in order are appended to a sorted run in a ring, older ones go to a binary min-heap, both parallel
+ * arrays of timestamps and amounts, so holding records allocates nothing. Ordered input never touches the heap and
+ * costs a few array accesses per record. Timestamps have to fit into a long. Not thread safe, the framer of the stream
+ * owns it.
+ */
+class ReorderBuffer {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final boolean boundByRecords;
+    private final long bound;
+    // sorted run of records which arrived in order, oldest at runHead, at most one record per timestamp
+    private long[] runTimestamps;
+    private double[] runAmounts;
+    private int runHead;
+    private int runSize;
+    // records older than the newest one of the run when they arrived, smallest timestamp at index 0
+    private long[] heapTimestamps;
+    private double[] heapAmounts;
+    private int heapSize;
+    private long newestTimestamp;
+    private long lastReleased;
+    private boolean releasedAny;
+    private boolean draining;
+    private long reorderedCount;
+    private long tooLateCount;
+
+    private ReorderBuffer(boolean boundByRecords, long bound, int capacity) {
+        if (bound < 0) {
+            throw new IllegalArgumentException("Reorder bound has to be at least 0, not " + bound);
+        }
+        this.boundByRecords = boundByRecords;
+        this.bound = bound;
+        int runCapacity = Integer.highestOneBit(Math.max(INITIAL_CAPACITY, capacity) - 1) << 1;
+        runTimestamps = new long[runCapacity];
+        runAmounts = new double[runCapacity];
+        heapTimestamps = new long[INITIAL_CAPACITY];
+        heapAmounts = new double[INITIAL_CAPACITY];
+    }
+
+    /**
+     * @param records how many records are held at most, 0 to let every record go right away
+     */
+    static ReorderBuffer ofRecords(int records) {
+        // the run grows on demand for larger bounds
+        return new ReorderBuffer(true, records, Math.min(records + 1, 1 << 16));
+    }
+
+    /**
+     * @param distance how much newer a timestamp has to arrive before older records are let go
+     */
+    static ReorderBuffer ofTimestampDistance(long distance) {
+        return new ReorderBuffer(false, distance, INITIAL_CAPACITY);
+    }
+
+    /**
+     * Takes the record over, the message can be reused afterwards.
+     *
+     * @return false if the record is too late to be sorted in and was not taken
+     */
+    boolean add(Message message) {
+        long timestamp = message.getTimestampAsLong();
+        double amount = message.getAmount();
+        if (releasedAny && timestamp <= lastReleased) {
+            tooLateCount++;
+            return false;
+        }
+        if (runSize == 0 || timestamp >= newestTimestamp) {
+            if (runSize > 0 && timestamp == newestTimestamp) {
+                runAmounts[runHead + runSize - 1 & runTimestamps.length - 1] += amount;
+            } else {
+                appendToRun(timestamp, amount);
+            }
+            newestTimestamp = timestamp;
+        } else {
+            pushToHeap(timestamp, amount);
+            reorderedCount++;
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the oldest record held can be let go, see {@link #releaseInto(Message)}
+     */
+    boolean hasReleasable() {
+        if (runSize == 0) {
+            // the run holds the newest record as long as anything is held
+            return false;
+        }
+        if (draining) {
+            return true;
+        }
+        if (boundByRecords) {
+            return runSize + heapSize > bound;
+        }
+        // the newest timestamp is never older than the oldest one, so the difference does not overflow unsigned
+        return Long.compareUnsigned(newestTimestamp - oldestTimestamp(), bound) >= 0;
+    }
+
+    /**
+     * Lets go of the oldest timestamp held, summing the amounts of all records held for it.
+     */
+    void releaseInto(Message target) {
+        long timestamp = oldestTimestamp();
+        double amount = 0.0;
+        if (runSize > 0 && runTimestamps[runHead] == timestamp) {
+            amount += runAmounts[runHead];
+            runHead = runHead + 1 & runTimestamps.length - 1;
+            runSize--;
+        }
+        while (heapSize > 0 && heapTimestamps[0] == timestamp) {
+            amount += heapAmounts[0];
+            popFromHeap();
+        }
+        target.setTimestampAsLong(timestamp);
+        target.setAmount(amount);
+        lastReleased = timestamp;
+        releasedAny = true;
+    }
+
+    /**
+     * The stream ended, everything held can be let go.
+     */
+    void drain() {
+        draining = true;
+    }
+
+    /**
+     * @return records which arrived older than the newest one held, so they had to be sorted in
+     */
+    long reorderedCount() {
+        return reorderedCount;
+    }
+
+    long tooLateCount() {
+        return tooLateCount;
+    }
+
+    @Override
+    public String toString() {
+        return "reordering within " + bound + (boundByRecords ? " records" : " timestamps") + " sorted in " +
+                reorderedCount + " messages, " + tooLateCount + " came too late";
+    }
+
+    private long oldestTimestamp() {
+        // heap records are older than the newest run record, but may be newer than the oldest one
+        return heapSize == 0 ? runTimestamps[runHead] : Math.min(runTimestamps[runHead], heapTimestamps[0]);
+    }
+
+    private void appendToRun(long timestamp, double amount) {
+        if (runSize == runTimestamps.length) {
+            growRun();
+        }
+        int tail = runHead + runSize & runTimestamps.length - 1;
+        runTimestamps[tail] = timestamp;
+        runAmounts[tail] = amount;
+        runSize++;
+    }
+
+    private void growRun() {
+        var timestamps = new long[2 * runTimestamps.length];
+        var amounts = new double[2 * runAmounts.length];
+        for (int i = 0; i < runSize; i++) {
+            int index = runHead + i & runTimestamps.length - 1;
+            timestamps[i] = runTimestamps[index];
+            amounts[i] = runAmounts[index];
+        }
+        runTimestamps = timestamps;
+        runAmounts = amounts;
+        runHead = 0;
+    }
+
+    private void pushToHeap(long timestamp, double amount) {
+        if (heapSize == heapTimestamps.length) {
+            heapTimestamps = Arrays.copyOf(heapTimestamps, 2 * heapSize);
+            heapAmounts = Arrays.copyOf(heapAmounts, 2 * heapSize);
+        }
+        int index = heapSize++;
+        while (index > 0) {
+            int parent = index - 1 >>> 1;
+            if (heapTimestamps[parent] <= timestamp) {
+                break;
+            }
+            heapTimestamps[index] = heapTimestamps[parent];
+            heapAmounts[index] = heapAmounts[parent];
+            index = parent;
+        }
+        heapTimestamps[index] = timestamp;
+        heapAmounts[index] = amount;
+    }
+
+    private void popFromHeap() {
+        int size = --heapSize;
+        long timestamp = heapTimestamps[size];
+        double amount = heapAmounts[size];
+        int index = 0;
+        while (true) {
+            int child = 2 * index + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && heapTimestamps[child + 1] < heapTimestamps[child]) {
+                child++;
+            }
+            if (timestamp <= heapTimestamps[child]) {
+                break;
+            }
+            heapTimestamps[index] = heapTimestamps[child];
+            heapAmounts[index] = heapAmounts[child];
+            index = child;
+        }
+        heapTimestamps[index] = timestamp;
+        heapAmounts[index] = amount;
+    }
+}
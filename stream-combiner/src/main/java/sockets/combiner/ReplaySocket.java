@@ -0,0 +1,202 @@
+package sockets.combiner;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Socket replaying a capture of {@link StreamCapture} instead of connecting anywhere, so the combiner merges recorded
+ * traffic without producers or TCP, the same way on every run. A chunk is handed out once its recorded arrival time,
+ * divided by the speed, passed since the first read; at infinite speed as fast as the combiner reads. It has no
+ * channel, so it can only be read by blocking ingest.
+ */
+class ReplaySocket extends Socket {
+
+    private static final Logger log = LoggerFactory.getLogger(ReplaySocket.class);
+    private static final int BUFFER_SIZE = 65536;
+
+    private final Path file;
+    private final double speed;
+    private final DataInputStream capture;
+    private final int port;
+    private final byte[] request;
+    // handshake written by the combiner, it has to be the one it sent when capturing
+    private final ByteArrayOutputStream requestWritten = new ByteArrayOutputStream();
+    private final InputStream input = new ReplayInputStream();
+    private final OutputStream output = new OutputStream() {
+        @Override
+        public void write(int b) {
+            requestWritten.write(b);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) {
+            requestWritten.write(buffer, offset, length);
+        }
+    };
+
+    private ReplaySocket(Path file, double speed, DataInputStream capture, int port, byte[] request) {
+        this.file = file;
+        this.speed = speed;
+        this.capture = capture;
+        this.port = port;
+        this.request = request;
+    }
+
+    /**
+     * @param speed factor of the original pace, {@link Double#POSITIVE_INFINITY} to replay as fast as possible
+     */
+    static ReplaySocket open(Path file, double speed) throws IOException {
+        if (!(speed > 0)) {
+            throw new IllegalArgumentException("Replay speed has to be positive, not " + speed);
+        }
+        var capture = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), BUFFER_SIZE));
+        try {
+            if (capture.readInt() != StreamCapture.MAGIC || capture.readByte() != StreamCapture.VERSION) {
+                throw new IOException(file + " is not a capture of a known version");
+            }
+            int port = capture.readInt();
+            var request = capture.readNBytes(capture.readUnsignedByte());
+            return new ReplaySocket(file, speed, capture, port, request);
+        } catch (IOException e) {
+            capture.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return sockets replaying all captures in the directory, ordered by file name
+     */
+    static List<Socket> openAll(Path directory, double speed) throws IOException {
+        List<Path> files;
+        try (var listing = Files.list(directory)) {
+            files = listing.filter(it -> it.getFileName().toString().endsWith(StreamCapture.SUFFIX)).sorted().toList();
+        }
+        List<Socket> sockets = new ArrayList<>();
+        try {
+            for (var file : files) {
+                sockets.add(open(file, speed));
+            }
+        } catch (IOException | RuntimeException e) {
+            for (var socket : sockets) {
+                socket.close();
+            }
+            throw e;
+        }
+        log.info("Replaying " + files.size() + " captures from " + directory + " at " +
+                (speed == Double.POSITIVE_INFINITY ? "maximum speed" : speed + " times the original speed"));
+        return sockets;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return input;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return output;
+    }
+
+    /**
+     * @return port of the captured producer, which names the stream like for a live connection
+     */
+    @Override
+    public int getPort() {
+        return port;
+    }
+
+    @Override
+    public SocketAddress getRemoteSocketAddress() {
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            capture.close();
+        } finally {
+            super.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Replay[" + file + "]";
+    }
+
+    private class ReplayInputStream extends InputStream {
+        private final byte[] single = new byte[1];
+        private boolean started;
+        private long startNanos;
+        // recorded arrival time of the current chunk since the capture started
+        private long arrivalNanos;
+        private int chunkRemaining;
+
+        @Override
+        public int read() throws IOException {
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (!started) {
+                if (!Arrays.equals(requestWritten.toByteArray(), request)) {
+                    throw new ProtocolException(ReplaySocket.this + " was captured with another handshake, " +
+                            "combiner.wire.format and combiner.wire.compression have to be set as when capturing");
+                }
+                started = true;
+                startNanos = System.nanoTime();
+            }
+            if (length == 0) {
+                return 0;
+            }
+            while (chunkRemaining == 0) {
+                long delay = StreamCapture.readUnsigned(capture);
+                if (delay == -1) {
+                    return -1;
+                }
+                chunkRemaining = (int) StreamCapture.readUnsigned(capture);
+                if (chunkRemaining < 0) {
+                    throw new ProtocolException(ReplaySocket.this + " ends within a chunk");
+                }
+                arrivalNanos += delay;
+                awaitArrival();
+            }
+            int read = capture.read(buffer, offset, Math.min(length, chunkRemaining));
+            if (read == -1) {
+                throw new ProtocolException(ReplaySocket.this + " ends within a chunk");
+            }
+            chunkRemaining -= read;
+            return read;
+        }
+
+        private void awaitArrival() {
+            if (speed == Double.POSITIVE_INFINITY) {
+                return;
+            }
+            long dueNanos = startNanos + (long) (arrivalNanos / speed);
+            long waitNanos;
+            while ((waitNanos = dueNanos - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(waitNanos);
+            }
+        }
+    }
+}
@@ -0,0 +1,486 @@
+package sockets.combiner;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import sockets.model.Message;
+import sockets.protocol.Handshake;
+import sockets.protocol.WireFormat;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads many sockets from one thread with a selector instead of one blocked thread per socket. Bytes are read into
+ * a shared direct buffer and framed in place, only connections left with a partial record take a pooled buffer.
+ * Connections whose stream queue is full are not read until the combiner drains it, so TCP pushes back on the producer.
+ * Dropped connections are reconnected without blocking the loop, their streams stay active meanwhile.
+ * Deflated connections are read into a pooled buffer of their own and inflated into the buffer which is framed.
+ * Runs until all registered connections are closed.
+ */
+class SelectorEventLoop {
+
+    private static final Logger log = LoggerFactory.getLogger(SelectorEventLoop.class);
+    // bounds time spent on one connection per selection, so busy connections do not starve the others
+    private static final int MAX_READS_PER_SELECTION = 16;
+    // stalled connections are re-checked at least that often, in case a notification about free space was missed
+    private static final long STALLED_RECHECK_MILLIS = 1;
+    private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0);
+
+    private final Selector selector;
+    private final DirectBufferPool bufferPool;
+    private final ByteBuffer sharedBuffer;
+    // consumers of streams which got messages during the current selection
+    private final List<WaitStrategy> pendingSignals = new ArrayList<>();
+    private final ConnectionManager connectionManager;
+    private final WireFormat wireFormat;
+    private final boolean compression;
+    private final List<Connection> stalledConnections = new ArrayList<>();
+    // resumed connections with deflated bytes left, no selection would report them
+    private final List<Connection> resumedInflatingConnections = new ArrayList<>();
+    // connections waiting for their backoff or for their connect to complete
+    private final List<Connection> reconnectingConnections = new ArrayList<>();
+    private int openConnections;
+
+    /**
+     * @param compression whether producers are asked to deflate their streams
+     */
+    SelectorEventLoop(DirectBufferPool bufferPool, ConnectionManager connectionManager, WireFormat wireFormat,
+                      boolean compression) throws IOException {
+        this.selector = Selector.open();
+        this.bufferPool = bufferPool;
+        this.sharedBuffer = ByteBuffer.allocateDirect(bufferPool.bufferSize());
+        this.connectionManager = connectionManager;
+        this.wireFormat = wireFormat;
+        this.compression = compression;
+    }
+
+    /**
+     * @param lastEmitted   messages not newer than it are skipped, see {@link RecordFramer#resumeAfterRestart(Message)}
+     * @param reorderBuffer sorts the records of the stream, null if they arrive ordered
+     */
+    void register(SocketChannel channel, MessageStream messageStream, Message lastEmitted, ReorderBuffer reorderBuffer)
+            throws IOException {
+        channel.configureBlocking(false);
+        var connection = new Connection(channel, (InetSocketAddress) channel.getRemoteAddress(), messageStream);
+        connection.framer.resumeAfterRestart(lastEmitted);
+        connection.framer.reorderWith(reorderBuffer);
+        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+        requestWireFormat(connection);
+        messageStream.onSpaceAvailable(selector::wakeup);
+        openConnections++;
+    }
+
+    void run() throws IOException {
+        try (selector) {
+            while (openConnections > 0) {
+                var timeoutMillis = selectTimeoutMillis();
+                if (timeoutMillis == 0) {
+                    selector.select();
+                } else {
+                    selector.select(timeoutMillis);
+                }
+                resumeStalledConnections();
+                continueReconnecting();
+                for (var key : selector.selectedKeys()) {
+                    var connection = (Connection) key.attachment();
+                    if (!key.isValid()) {
+                        // channel was replaced after its connect timed out
+                        continue;
+                    }
+                    if (key.isConnectable()) {
+                        finishConnect(connection);
+                    } else {
+                        read(connection);
+                    }
+                }
+                selector.selectedKeys().clear();
+                // one signal per consumer and selection instead of one per message
+                pendingSignals.forEach(WaitStrategy::signal);
+                pendingSignals.clear();
+            }
+        }
+    }
+
+    private void read(Connection connection) {
+        try {
+            // inflating what was already read does not count, it is bounded by the deflated buffer
+            for (int reads = 0; reads < MAX_READS_PER_SELECTION; ) {
+                var buffer = connection.pending != null ? connection.pending : sharedBuffer.clear();
+                int read;
+                int inflated = 0;
+                if (connection.inflater == null) {
+                    read = connection.channel.read(buffer);
+                } else {
+                    read = connection.channel.read(connection.deflated);
+                    inflated = inflate(connection, buffer);
+                }
+                if (read == -1 && inflated == 0) {
+                    if (connection.inflater != null && !connection.inflater.finished()) {
+                        log.warn("Socket " + connection.channel + " ended its deflate stream unfinished");
+                    }
+                    // records held for reordering go first, the connection is read again once they are queued
+                    connection.framer.endOfStream();
+                    if (connection.framer.decodeRecords(EMPTY_BUFFER)) {
+                        signalLater(connection);
+                    }
+                    if (connection.framer.isStalled()) {
+                        connection.key.interestOps(0);
+                        stalledConnections.add(connection);
+                        return;
+                    }
+                    log.info("Socket " + connection.channel + " reached end of stream, will stop processing stream from that socket");
+                    close(connection);
+                    return;
+                }
+                buffer.flip();
+                if (connection.handshakePending) {
+                    readHandshake(connection, buffer);
+                }
+                if (!connection.handshakePending && connection.framer.decodeRecords(buffer)) {
+                    signalLater(connection);
+                }
+                keepPartialRecord(connection, buffer);
+                if (connection.framer.isStalled()) {
+                    connection.key.interestOps(0);
+                    stalledConnections.add(connection);
+                    break;
+                }
+                if (read > 0) {
+                    reads++;
+                } else if (inflated == 0) {
+                    break;
+                }
+            }
+        } catch (JsonProcessingException | ProtocolException e) {
+            // malformed record would be sent again after reconnecting
+            log.error("Failed to decode from socket " + connection.channel + " due to " + e.getMessage() +
+                    ", will stop processing stream from that socket", e);
+            closeAfterDraining(connection);
+        } catch (IOException e) {
+            if (connectionManager.reconnects()) {
+                log.warn("Failed to read from socket " + connection.channel + " due to " + e.getMessage() + ", reconnecting");
+                startReconnecting(connection);
+            } else {
+                log.error("Failed to read from socket " + connection.channel + " due to " + e.getMessage() +
+                        ", will stop processing stream from that socket", e);
+                closeAfterDraining(connection);
+            }
+        }
+    }
+
+    /**
+     * Sends the handshake asking for a format other than XML or for compression, it is answered before the first
+     * record.
+     */
+    private void requestWireFormat(Connection connection) throws IOException {
+        if (wireFormat == WireFormat.XML && !compression) {
+            return;
+        }
+        // a few bytes into the empty send buffer of a fresh connection
+        connection.channel.write(ByteBuffer.wrap(Handshake.encode(wireFormat, compression)));
+        connection.handshakePending = true;
+    }
+
+    private void readHandshake(Connection connection, ByteBuffer buffer) {
+        if (buffer.remaining() < Handshake.LENGTH) {
+            return;
+        }
+        var accepted = Handshake.decodeOptions(buffer);
+        if (accepted == null) {
+            log.info("Socket " + connection.channel + " did not answer the handshake, reading it as XML");
+            accepted = new Handshake.Options(WireFormat.XML, false);
+        } else if (compression && !accepted.compressed()) {
+            log.info("Socket " + connection.channel + " refused compression, reading it uncompressed");
+        }
+        connection.framer = connection.framer.withWireFormat(accepted.format());
+        connection.handshakePending = false;
+        if (accepted.compressed()) {
+            // what followed the handshake is the start of the deflate stream, it is inflated in the next iteration
+            connection.inflater = new Inflater();
+            connection.deflated = bufferPool.acquire().put(buffer);
+        }
+    }
+
+    /**
+     * Inflates as much of the deflated bytes as fits into the buffer.
+     *
+     * @param buffer in write mode
+     * @return number of inflated bytes
+     */
+    private int inflate(Connection connection, ByteBuffer buffer) throws ProtocolException {
+        var deflated = connection.deflated.flip();
+        try {
+            connection.inflater.setInput(deflated);
+            int inflated = connection.inflater.inflate(buffer);
+            connection.inflatedToLimit = !buffer.hasRemaining();
+            return inflated;
+        } catch (DataFormatException e) {
+            throw new ProtocolException("Corrupt deflate stream: " + e.getMessage());
+        } finally {
+            deflated.compact();
+        }
+    }
+
+    private long selectTimeoutMillis() {
+        long timeoutMillis = stalledConnections.isEmpty() ? 0 : STALLED_RECHECK_MILLIS;
+        if (!reconnectingConnections.isEmpty()) {
+            long now = System.nanoTime();
+            for (var connection : reconnectingConnections) {
+                long dueMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(connection.reconnectDueNanos - now));
+                timeoutMillis = timeoutMillis == 0 ? dueMillis : Math.min(timeoutMillis, dueMillis);
+            }
+        }
+        return timeoutMillis;
+    }
+
+    /**
+     * Drops the broken channel together with a partial record, the stream stays active and the framer skips what the
+     * producer sends again after the reconnect.
+     */
+    private void startReconnecting(Connection connection) {
+        closeChannel(connection);
+        connection.framer.resumeAfterReconnect();
+        connection.retries = 1;
+        connection.connecting = false;
+        connection.reconnectDueNanos = System.nanoTime();
+        reconnectingConnections.add(connection);
+    }
+
+    /**
+     * Opens channels of connections whose backoff is over and gives up on connects which took too long.
+     */
+    private void continueReconnecting() {
+        long now = System.nanoTime();
+        var iterator = reconnectingConnections.iterator();
+        while (iterator.hasNext()) {
+            var connection = iterator.next();
+            if (now - connection.reconnectDueNanos < 0) {
+                continue;
+            }
+            if (connection.connecting) {
+                // due time of a pending connect is its timeout
+                closeChannel(connection);
+                if (retryOrClose(connection, "connect timed out")) {
+                    iterator.remove();
+                }
+                continue;
+            }
+            log.info("Attempting to reconnect to socket " + connection.address + ", retry " + connection.retries);
+            try {
+                var channel = SocketChannel.open();
+                connection.channel = channel;
+                channel.configureBlocking(false);
+                if (channel.connect(connection.address)) {
+                    connected(connection);
+                    iterator.remove();
+                } else {
+                    connection.connecting = true;
+                    connection.reconnectDueNanos = now + TimeUnit.MILLISECONDS.toNanos(connectionManager.connectTimeoutMillis());
+                    connection.key = channel.register(selector, SelectionKey.OP_CONNECT, connection);
+                }
+            } catch (IOException e) {
+                closeChannel(connection);
+                if (retryOrClose(connection, e.getMessage())) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    private void finishConnect(Connection connection) {
+        try {
+            connection.channel.finishConnect();
+            connection.key.interestOps(SelectionKey.OP_READ);
+            connected(connection);
+            reconnectingConnections.remove(connection);
+        } catch (IOException e) {
+            closeChannel(connection);
+            if (retryOrClose(connection, e.getMessage())) {
+                reconnectingConnections.remove(connection);
+            }
+        }
+    }
+
+    private void connected(Connection connection) throws IOException {
+        if (connection.key == null || !connection.key.isValid()) {
+            connection.key = connection.channel.register(selector, SelectionKey.OP_READ, connection);
+        }
+        connection.connecting = false;
+        requestWireFormat(connection);
+        log.info("Reconnected to socket " + connection.channel);
+    }
+
+    /**
+     * @return true if retries are used up and the connection was closed, it has to leave the reconnecting ones
+     */
+    private boolean retryOrClose(Connection connection, String reason) {
+        if (connectionManager.canRetry(connection.retries)) {
+            connection.retries++;
+            connection.connecting = false;
+            var backoffMillis = connectionManager.backoffMillis(connection.retries);
+            connection.reconnectDueNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoffMillis);
+            log.warn("Reconnect to " + connection.address + " failed due to " + reason + ", retrying in " + backoffMillis + " ms");
+            return false;
+        }
+        log.error("Reconnect to " + connection.address + " failed due to " + reason +
+                ", will stop processing stream from that socket");
+        closeAfterDraining(connection);
+        return true;
+    }
+
+    private void resumeStalledConnections() {
+        var iterator = stalledConnections.iterator();
+        while (iterator.hasNext()) {
+            var connection = iterator.next();
+            try {
+                var buffer = connection.pending != null ? connection.pending.flip() : sharedBuffer.clear().flip();
+                if (connection.framer.decodeRecords(buffer)) {
+                    signalLater(connection);
+                }
+                keepPartialRecord(connection, buffer);
+            } catch (IOException e) {
+                log.error("Failed to decode from socket " + connection.channel + " due to " + e.getMessage() +
+                        ", will stop processing stream from that socket", e);
+                // stays among the stalled ones while held records wait for space
+                closeAfterDraining(connection);
+                if (!connection.framer.isStalled()) {
+                    iterator.remove();
+                }
+                continue;
+            }
+            if (!connection.framer.isStalled() && connection.closingAfterDrain) {
+                iterator.remove();
+                close(connection);
+            } else if (!connection.framer.isStalled()) {
+                connection.key.interestOps(SelectionKey.OP_READ);
+                iterator.remove();
+                // input or output left in the inflater would otherwise wait for the producer to send more
+                if (connection.inflater != null && (connection.deflated.position() > 0 || connection.inflatedToLimit)) {
+                    resumedInflatingConnections.add(connection);
+                }
+            }
+        }
+        // read after iterating, it may stall the connection again
+        resumedInflatingConnections.forEach(this::read);
+        resumedInflatingConnections.clear();
+    }
+
+    private void signalLater(Connection connection) {
+        var consumerWaitStrategy = connection.messageStream.consumerWaitStrategy();
+        // there are only a few consumers, one per merge worker
+        if (!pendingSignals.contains(consumerWaitStrategy)) {
+            pendingSignals.add(consumerWaitStrategy);
+        }
+    }
+
+    private void keepPartialRecord(Connection connection, ByteBuffer buffer) {
+        if (!buffer.hasRemaining()) {
+            if (connection.pending != null) {
+                bufferPool.release(connection.pending);
+                connection.pending = null;
+            }
+        } else if (connection.pending == null) {
+            connection.pending = bufferPool.acquire().put(buffer);
+        } else if (buffer.position() > 0 || buffer.limit() < buffer.capacity() || connection.framer.isStalled()) {
+            buffer.compact();
+        } else {
+            // single record does not fit, keep what was read so far in a bigger buffer, the pool only takes its own size
+            connection.pending = ByteBuffer.allocateDirect(2 * buffer.capacity()).put(buffer);
+            bufferPool.release(buffer);
+        }
+    }
+
+    /**
+     * Ends the stream of a connection which failed like one which reached its end: records held for reordering are
+     * queued first. While they wait for space in the queue the channel is already closed and the connection stays
+     * among the stalled ones until they are all queued.
+     */
+    private void closeAfterDraining(Connection connection) {
+        try {
+            connection.framer.endOfStream();
+            if (connection.framer.decodeRecords(EMPTY_BUFFER)) {
+                signalLater(connection);
+            }
+        } catch (IOException e) {
+            log.warn("Failed to queue records held for socket " + connection.channel + " due to " + e.getMessage());
+        }
+        if (connection.framer.isStalled()) {
+            closeChannel(connection);
+            connection.closingAfterDrain = true;
+            if (!stalledConnections.contains(connection)) {
+                stalledConnections.add(connection);
+            }
+            return;
+        }
+        close(connection);
+    }
+
+    private void close(Connection connection) {
+        openConnections--;
+        closeChannel(connection);
+        connection.messageStream.isActive().set(false);
+        connection.messageStream.signalConsumer();
+        log.info("Socket " + connection.channel + " " + connection.framer.throughputSummary(System.nanoTime() - connection.startNanos) +
+                ", queue was full " + connection.messageStream.fullCount() + " times");
+    }
+
+    private void closeChannel(Connection connection) {
+        try {
+            connection.channel.close();
+        } catch (IOException e) {
+            log.warn("Failed to close socket " + connection.channel + " due to " + e.getMessage());
+        }
+        if (connection.pending != null) {
+            bufferPool.release(connection.pending);
+            connection.pending = null;
+        }
+        if (connection.inflater != null) {
+            // a reconnect negotiates compression again and starts a new deflate stream
+            connection.inflater.end();
+            connection.inflater = null;
+            bufferPool.release(connection.deflated);
+            connection.deflated = null;
+        }
+    }
+
+    private static class Connection {
+        private final InetSocketAddress address;
+        private final MessageStream messageStream;
+        private RecordFramer framer;
+        private final long startNanos = System.nanoTime();
+        private SocketChannel channel;
+        private SelectionKey key;
+        // bytes of a partial record waiting for the rest, in write mode
+        private ByteBuffer pending;
+        private boolean handshakePending;
+        // set once the producer accepted compression, deflated bytes not inflated yet are in write mode
+        private Inflater inflater;
+        private ByteBuffer deflated;
+        // the last inflate filled its target, the inflater may hold more output even without input left
+        private boolean inflatedToLimit;
+        // failed with records held for reordering waiting for space, closed once they are queued
+        private boolean closingAfterDrain;
+        // reconnect state, due time is the end of the backoff or the connect timeout
+        private int retries;
+        private boolean connecting;
+        private long reconnectDueNanos;
+
+        private Connection(SocketChannel channel, InetSocketAddress address, MessageStream messageStream) {
+            this.channel = channel;
+            this.address = address;
+            this.messageStream = messageStream;
+            this.framer = new LineFramer(messageStream);
+        }
+    }
+}
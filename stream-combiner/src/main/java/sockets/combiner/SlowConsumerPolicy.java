@@ -0,0 +1,20 @@
+package sockets.combiner;
+
+/**
+ * What the broadcast sink does with subscribers a whole ring of merged output behind, which keep the combiner from
+ * encoding the next message.
+ */
+enum SlowConsumerPolicy {
+    /**
+     * Slow subscribers are disconnected, they may connect again and continue with the live stream.
+     */
+    DISCONNECT,
+    /**
+     * Slow subscribers skip to the newest output, a gap line with the number of dropped bytes is sent in between.
+     */
+    DROP,
+    /**
+     * The combiner waits for the slowest subscriber, which is then also pushing back on the producers.
+     */
+    BLOCK
+}
@@ -16,8 +16,15 @@ public class SocketConnector {
 
     private static final Logger log = LoggerFactory.getLogger(SocketConnector.class);
 
+    private final ConnectionManager connectionManager;
+
+    SocketConnector(ConnectionManager connectionManager) {
+        this.connectionManager = connectionManager;
+    }
+
     public List<Socket> connect(List<Pair<String, Integer>> hostsAndPorts) {
-        try (var scope = new StructuredTaskScope.ShutdownOnSuccess<>()) {
+        // every host is retried on its own, so one connecting quickly must not cancel the others
+        try (var scope = new StructuredTaskScope<Socket>()) {
             List<StructuredTaskScope.Subtask<Socket>> subtasksForSocketConnection = new ArrayList<>();
             for (Pair<String, Integer> portAndHost : hostsAndPorts) {
                 subtasksForSocketConnection.add(scope.fork(() -> establishSocketConnection(portAndHost.getLeft(), portAndHost.getRight())));
@@ -36,15 +43,13 @@ public class SocketConnector {
         }
     }
 
-    private Socket establishSocketConnection(String hostname, int port) {
-        Socket socket = new Socket();
-        log.info("Attempting to connect to socket " + hostname + ":" + port);
+    private Socket establishSocketConnection(String hostname, int port) throws InterruptedException {
         try {
-            socket.connect(new InetSocketAddress(hostname, port));
+            return connectionManager.connect(new InetSocketAddress(hostname, port));
         } catch (IOException e) {
-            log.error("Connect failed due to " + e.getMessage(), e);
+            log.error("Connect to " + hostname + ":" + port + " failed due to " + e.getMessage() +
+                    ", will not process stream from that socket", e);
             throw new RuntimeException(e);
         }
-        return socket;
     }
 }
@@ -0,0 +1,29 @@
+package sockets.combiner;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * Sends merged messages as JSON lines to a downstream TCP server. Batches are already as large as the socket can take
+ * in one write, so Nagle's algorithm is switched off to not delay the last batch before the combiner goes idle.
+ */
+class SocketSink extends BufferedStreamSink {
+
+    private SocketSink(Socket socket, int batchBytes) throws IOException {
+        super(socket.getOutputStream(), batchBytes, true);
+    }
+
+    static SocketSink connect(InetSocketAddress address, int batchBytes) throws IOException {
+        var socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setSendBufferSize(Math.max(socket.getSendBufferSize(), batchBytes));
+            socket.connect(address);
+            return new SocketSink(socket, batchBytes);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+}
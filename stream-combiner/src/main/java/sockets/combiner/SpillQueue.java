@@ -0,0 +1,256 @@
+package sockets.combiner;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import sockets.model.Message;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.math.BigInteger;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Unbounded overflow of one message stream in memory-mapped segment files, appended by the reader of the stream and
+ * read back in order by its combiner. Records are kept in compact binary form off the heap: a kind byte, the
+ * timestamp as long (or its length and bytes if it is wider), the amount and the ingest time.
+ * <p>
+ * Both sides count bytes of one logical sequence, segment i holding bytes [i * segmentBytes, (i + 1) * segmentBytes).
+ * A record never crosses segments, the rest of a segment is padded instead. Segments read completely are reused
+ * for new records, so files are only added while the backlog grows and removed once the stream is closed.
+ */
+class SpillQueue implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(SpillQueue.class);
+    private static final VarHandle WRITTEN_BYTES;
+    private static final VarHandle READ_BYTES;
+
+    static {
+        try {
+            var lookup = MethodHandles.lookup();
+            WRITTEN_BYTES = lookup.findVarHandle(SpillQueue.class, "writtenBytes", long.class);
+            READ_BYTES = lookup.findVarHandle(SpillQueue.class, "readBytes", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static final byte LONG_RECORD = 1;
+    private static final byte WIDE_RECORD = 2;
+    private static final byte PADDING = 3;
+    private static final int LONG_RECORD_BYTES = 1 + Long.BYTES + Double.BYTES + Long.BYTES;
+    private static final int MIN_SEGMENT_BYTES = 4096;
+
+    private final Path directory;
+    private final String name;
+    private final int segmentBytes;
+    // segments in the order they were filled, the head is the next one to be read
+    private final ConcurrentLinkedQueue<Segment> filledSegments = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Segment> freeSegments = new ConcurrentLinkedQueue<>();
+    private final List<Segment> allSegments = new ArrayList<>();
+
+    // reader side
+    private Segment writeSegment;
+    private int writeOffset;
+    private volatile long writtenBytes;
+    private volatile long writtenCount;
+
+    // combiner side
+    private Segment readSegment;
+    private int readOffset;
+    private volatile long readBytes;
+    private volatile long readCount;
+    private Message head;
+    private long headStamp;
+    private int headBytes;
+
+    /**
+     * @param name         of the stream, used for the file names
+     * @param segmentBytes size of one segment file, at least 4096 bytes
+     */
+    SpillQueue(Path directory, String name, int segmentBytes) {
+        this.directory = directory;
+        this.name = name;
+        this.segmentBytes = Math.max(MIN_SEGMENT_BYTES, segmentBytes);
+    }
+
+    /**
+     * Reader side only.
+     */
+    void append(Message message, long stamp) {
+        byte[] wideTimestamp = message.hasWideTimestamp() ? message.getTimestamp().toByteArray() : null;
+        int recordBytes = wideTimestamp == null ? LONG_RECORD_BYTES :
+                LONG_RECORD_BYTES - Long.BYTES + Integer.BYTES + wideTimestamp.length;
+        if (recordBytes > segmentBytes) {
+            throw new IllegalArgumentException("Timestamp of " + message + " does not fit into a spill segment");
+        }
+        long written = writtenBytes;
+        if (writeSegment == null || writeOffset + recordBytes > segmentBytes) {
+            if (writeSegment != null) {
+                if (writeOffset < segmentBytes) {
+                    writeSegment.buffer.put(writeOffset, PADDING);
+                }
+                written += segmentBytes - writeOffset;
+            }
+            writeSegment = nextFreeSegment();
+            writeOffset = 0;
+            // enqueued before the bytes in it are published
+            filledSegments.add(writeSegment);
+        }
+        var buffer = writeSegment.buffer;
+        int position = writeOffset;
+        if (wideTimestamp == null) {
+            buffer.put(position, LONG_RECORD);
+            buffer.putLong(position + 1, message.getTimestampAsLong());
+            position += 1 + Long.BYTES;
+        } else {
+            buffer.put(position, WIDE_RECORD);
+            buffer.putInt(position + 1, wideTimestamp.length);
+            buffer.put(position + 1 + Integer.BYTES, wideTimestamp);
+            position += 1 + Integer.BYTES + wideTimestamp.length;
+        }
+        buffer.putDouble(position, message.getAmount());
+        buffer.putLong(position + Double.BYTES, stamp);
+        writeOffset += recordBytes;
+        writtenCount++;
+        // publishes the record to the reader
+        WRITTEN_BYTES.setRelease(this, written + recordBytes);
+    }
+
+    /**
+     * Reader side only.
+     *
+     * @return true if the combiner read back everything appended so far, new messages may bypass the spill again
+     */
+    boolean isDrained() {
+        return (long) READ_BYTES.getAcquire(this) == writtenBytes;
+    }
+
+    /**
+     * Combiner side only.
+     *
+     * @return oldest message not read back yet, null if there is none
+     */
+    Message peek() {
+        if (head != null) {
+            return head;
+        }
+        while (readBytes < (long) WRITTEN_BYTES.getAcquire(this)) {
+            if (readSegment == null || readOffset == segmentBytes || readSegment.buffer.get(readOffset) == PADDING) {
+                if (readSegment != null) {
+                    READ_BYTES.setRelease(this, readBytes + segmentBytes - readOffset);
+                    freeSegments.add(readSegment);
+                    filledSegments.poll();
+                }
+                readSegment = filledSegments.peek();
+                readOffset = 0;
+                continue;
+            }
+            decodeHead();
+            return head;
+        }
+        return null;
+    }
+
+    /**
+     * Combiner side only, meaningful after {@link #peek()} returned a message.
+     */
+    long headStamp() {
+        return headStamp;
+    }
+
+    /**
+     * Combiner side only.
+     */
+    Message poll() {
+        var message = peek();
+        if (message != null) {
+            head = null;
+            readOffset += headBytes;
+            readCount++;
+            READ_BYTES.setRelease(this, readBytes + headBytes);
+        }
+        return message;
+    }
+
+    /**
+     * @return messages appended but not read back yet, safe to call from any thread
+     */
+    long size() {
+        return Math.max(0, writtenCount - readCount);
+    }
+
+    long writtenCount() {
+        return writtenCount;
+    }
+
+    long readCount() {
+        return readCount;
+    }
+
+    @Override
+    public void close() {
+        if (!allSegments.isEmpty()) {
+            log.info("Stream " + name + " spilled " + writtenCount + " messages into " + allSegments.size() +
+                    " segments of " + segmentBytes + " bytes, read back " + readCount);
+        }
+        for (var segment : allSegments) {
+            try {
+                segment.channel.close();
+            } catch (IOException e) {
+                log.warn("Failed to close spill segment of stream " + name + " due to " + e.getMessage());
+            }
+        }
+    }
+
+    private void decodeHead() {
+        var buffer = readSegment.buffer;
+        int position = readOffset;
+        byte kind = buffer.get(position);
+        Message message;
+        if (kind == LONG_RECORD) {
+            message = new Message(buffer.getLong(position + 1), 0);
+            position += 1 + Long.BYTES;
+        } else {
+            var wideTimestamp = new byte[buffer.getInt(position + 1)];
+            buffer.get(position + 1 + Integer.BYTES, wideTimestamp);
+            message = new Message(new BigInteger(wideTimestamp), 0);
+            position += 1 + Integer.BYTES + wideTimestamp.length;
+        }
+        head = message.withAmount(buffer.getDouble(position));
+        headStamp = buffer.getLong(position + Double.BYTES);
+        headBytes = position + Double.BYTES + Long.BYTES - readOffset;
+    }
+
+    private Segment nextFreeSegment() {
+        var segment = freeSegments.poll();
+        if (segment != null) {
+            return segment;
+        }
+        try {
+            Files.createDirectories(directory);
+            var path = Files.createTempFile(directory, name + "-", ".spill");
+            // the file is gone once closed, the mapping stays valid until then
+            var channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.DELETE_ON_CLOSE);
+            segment = new Segment(channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes));
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to create spill segment for stream " + name, e);
+        }
+        synchronized (allSegments) {
+            allSegments.add(segment);
+        }
+        return segment;
+    }
+
+    private record Segment(FileChannel channel, MappedByteBuffer buffer) {
+    }
+}
@@ -0,0 +1,67 @@
+package sockets.combiner;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Busy spins first for the lowest wake-up latency, then yields, then parks the waiting thread until signalled.
+ * More spinning means lower latency at the cost of idle CPU, zero spins and yields park right away.
+ */
+class SpinThenParkWaitStrategy implements WaitStrategy {
+
+    private final AtomicLong signals = new AtomicLong();
+    private volatile Thread parkedThread;
+
+    private final int spinIterations;
+    private final int yieldIterations;
+    private final long maxParkNanos;
+
+    SpinThenParkWaitStrategy(int spinIterations, int yieldIterations, long maxParkMillis) {
+        this.spinIterations = spinIterations;
+        this.yieldIterations = yieldIterations;
+        this.maxParkNanos = TimeUnit.MILLISECONDS.toNanos(maxParkMillis);
+    }
+
+    @Override
+    public long signalCount() {
+        return signals.get();
+    }
+
+    @Override
+    public void await(long observedSignalCount) throws InterruptedException {
+        for (int i = 0; i < spinIterations; i++) {
+            if (signals.get() != observedSignalCount) {
+                return;
+            }
+            Thread.onSpinWait();
+        }
+        for (int i = 0; i < yieldIterations; i++) {
+            if (signals.get() != observedSignalCount) {
+                return;
+            }
+            Thread.yield();
+        }
+        parkedThread = Thread.currentThread();
+        try {
+            // re-check after publishing the parked thread, otherwise a signal in between would be lost
+            if (signals.get() == observedSignalCount) {
+                LockSupport.parkNanos(this, maxParkNanos);
+            }
+        } finally {
+            parkedThread = null;
+        }
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+    }
+
+    @Override
+    public void signal() {
+        signals.incrementAndGet();
+        var thread = parkedThread;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package sockets.combiner;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * Bounded lock-free queue for exactly one producer thread and one consumer thread. Indexes of both sides live on
+ * separate cache lines together with the cached copy of the other side's index, so producer and consumer do not
+ * invalidate each other's cache lines on every operation. Optionally every element carries a long stamp published
+ * together with it.
+ */
+class SpscRingBuffer<E> extends SpscConsumerFields {
+
+    private static final VarHandle PRODUCER_INDEX;
+    private static final VarHandle CONSUMER_INDEX;
+
+    static {
+        try {
+            var lookup = MethodHandles.lookup();
+            PRODUCER_INDEX = lookup.findVarHandle(SpscProducerFields.class, "producerIndex", long.class);
+            CONSUMER_INDEX = lookup.findVarHandle(SpscConsumerFields.class, "consumerIndex", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final Object[] elements;
+    private final long[] stamps;
+    private final int mask;
+    // keeps the last fields away from whatever is allocated next
+    long p20, p21, p22, p23, p24, p25, p26, p27;
+
+    /**
+     * @param capacity rounded up to the next power of two
+     */
+    SpscRingBuffer(int capacity) {
+        this(capacity, false);
+    }
+
+    /**
+     * @param capacity rounded up to the next power of two
+     * @param stamped  whether to keep a stamp with every element, see {@link #offer(Object, long)}
+     */
+    SpscRingBuffer(int capacity, boolean stamped) {
+        elements = new Object[capacity <= 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1];
+        stamps = stamped ? new long[elements.length] : null;
+        mask = elements.length - 1;
+    }
+
+    /**
+     * Producer side only.
+     *
+     * @return false if the buffer is full
+     */
+    boolean offer(E element) {
+        return offer(element, 0);
+    }
+
+    /**
+     * Producer side only.
+     *
+     * @param stamp kept with the element if the buffer is stamped, see {@link #headStamp()}
+     * @return false if the buffer is full
+     */
+    boolean offer(E element, long stamp) {
+        long index = producerIndex;
+        if (index - consumerIndexCache >= elements.length) {
+            consumerIndexCache = (long) CONSUMER_INDEX.getAcquire(this);
+            if (index - consumerIndexCache >= elements.length) {
+                return false;
+            }
+        }
+        // element and its stamp are published by the release store of the index
+        elements[(int) index & mask] = element;
+        if (stamps != null) {
+            stamps[(int) index & mask] = stamp;
+        }
+        PRODUCER_INDEX.setRelease(this, index + 1);
+        return true;
+    }
+
+    /**
+     * Consumer side only.
+     */
+    @SuppressWarnings("unchecked")
+    E peek() {
+        long index = consumerIndex;
+        if (index >= producerIndexCache) {
+            producerIndexCache = (long) PRODUCER_INDEX.getAcquire(this);
+            if (index >= producerIndexCache) {
+                return null;
+            }
+        }
+        return (E) elements[(int) index & mask];
+    }
+
+    /**
+     * Consumer side only.
+     */
+    E poll() {
+        E element = peek();
+        if (element != null) {
+            long index = consumerIndex;
+            elements[(int) index & mask] = null;
+            CONSUMER_INDEX.setRelease(this, index + 1);
+        }
+        return element;
+    }
+
+    /**
+     * Consumer side only, meaningful after {@link #peek()} returned an element of a stamped buffer.
+     *
+     * @return stamp of the element {@link #peek()} returned
+     */
+    long headStamp() {
+        return stamps[(int) consumerIndex & mask];
+    }
+
+    /**
+     * Consumer side only.
+     */
+    boolean isEmpty() {
+        return peek() == null;
+    }
+
+    /**
+     * @return approximate number of elements, safe to call from any thread
+     */
+    int size() {
+        long consumed = (long) CONSUMER_INDEX.getAcquire(this);
+        long produced = (long) PRODUCER_INDEX.getAcquire(this);
+        return (int) Math.max(0, Math.min(elements.length, produced - consumed));
+    }
+
+    int capacity() {
+        return elements.length;
+    }
+}
+
+abstract class SpscLeftPadding {
+    long p00, p01, p02, p03, p04, p05, p06, p07;
+}
+
+abstract class SpscProducerFields extends SpscLeftPadding {
+    volatile long producerIndex;
+    long consumerIndexCache;
+}
+
+abstract class SpscMiddlePadding extends SpscProducerFields {
+    long p10, p11, p12, p13, p14, p15, p16, p17;
+}
+
+abstract class SpscConsumerFields extends SpscMiddlePadding {
+    volatile long consumerIndex;
+    long producerIndexCache;
+}
@@ -0,0 +1,147 @@
+package sockets.combiner;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Records the raw bytes of one upstream connection together with the time each socket read returned them, so the
+ * stream can be replayed later by a {@link ReplaySocket} at its original pace or faster.
+ * <p>
+ * A capture file starts with the magic "SCAP", a version byte, the port of the producer and the handshake the combiner
+ * sent, as its length (0 if it sent none) and its bytes. Chunks follow, one per socket read: nanoseconds since the
+ * previous chunk and the length as unsigned varints, then the bytes. The answer of the producer and deflated bytes are
+ * recorded as they arrived, so a replay has to ask for the same format and compression.
+ */
+class StreamCapture implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(StreamCapture.class);
+    static final int MAGIC = 'S' << 24 | 'C' << 16 | 'A' << 8 | 'P';
+    static final byte VERSION = 1;
+    static final String SUFFIX = ".capture";
+    private static final int BUFFER_SIZE = 65536;
+
+    private final Path file;
+    private final DataOutputStream output;
+    private long lastChunkNanos = System.nanoTime();
+    private long chunks;
+    private long bytes;
+
+    private StreamCapture(Path file, DataOutputStream output) {
+        this.file = file;
+        this.output = output;
+    }
+
+    /**
+     * Creates the capture of the producer on the given port in the directory, replacing an earlier one.
+     *
+     * @param request handshake the combiner sends, empty if it sends none
+     */
+    static StreamCapture create(Path directory, int port, byte[] request) throws IOException {
+        Files.createDirectories(directory);
+        var file = directory.resolve(port + SUFFIX);
+        var output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING), BUFFER_SIZE));
+        try {
+            output.writeInt(MAGIC);
+            output.writeByte(VERSION);
+            output.writeInt(port);
+            output.writeByte(request.length);
+            output.write(request);
+        } catch (IOException e) {
+            output.close();
+            throw e;
+        }
+        log.info("Capturing the stream of port " + port + " to " + file);
+        return new StreamCapture(file, output);
+    }
+
+    /**
+     * @return input recording every read from the given one as a chunk
+     */
+    InputStream record(InputStream input) {
+        return new FilterInputStream(input) {
+            @Override
+            public int read() throws IOException {
+                int read = super.read();
+                if (read != -1) {
+                    append(new byte[]{(byte) read}, 0, 1);
+                }
+                return read;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                int read = super.read(buffer, offset, length);
+                if (read > 0) {
+                    append(buffer, offset, read);
+                }
+                return read;
+            }
+        };
+    }
+
+    @Override
+    public void close() throws IOException {
+        output.close();
+        log.info("Captured " + chunks + " reads, " + bytes + " bytes to " + file);
+    }
+
+    @Override
+    public String toString() {
+        return "Capture[" + file + "]";
+    }
+
+    private void append(byte[] buffer, int offset, int length) throws IOException {
+        long now = System.nanoTime();
+        writeUnsigned(output, now - lastChunkNanos);
+        writeUnsigned(output, length);
+        output.write(buffer, offset, length);
+        lastChunkNanos = now;
+        chunks++;
+        bytes += length;
+    }
+
+    /**
+     * Writes 7 bits per byte, least significant first, with the highest bit set on all bytes but the last.
+     */
+    static void writeUnsigned(OutputStream output, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            output.write((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        output.write((int) value);
+    }
+
+    /**
+     * @return value written by {@link #writeUnsigned(OutputStream, long)}, -1 if the input ends before it
+     */
+    static long readUnsigned(InputStream input) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < Long.SIZE; shift += 7) {
+            int b = input.read();
+            if (b == -1) {
+                if (shift == 0) {
+                    return -1;
+                }
+                throw new ProtocolException("Capture ends within a number");
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new ProtocolException("Malformed number in capture");
+    }
+}
@@ -0,0 +1,189 @@
+package sockets.combiner;
+
+import org.HdrHistogram.SingleWriterRecorder;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of one upstream. Readers update them once per decoded batch and the combiner once per wait, so they stay
+ * off the per message path except for the ingest-to-emit latency, which is only recorded if a recorder is given.
+ * Derived values are computed by {@link CombinerMetrics} on its own thread.
+ */
+class StreamMetrics implements StreamMetricsMBean {
+
+    static final long NO_TIMESTAMP = Long.MIN_VALUE;
+
+    private final String name;
+    private SingleWriterRecorder latencyRecorder;
+    private final LongAdder received = new LongAdder();
+    private final LongAdder decodeErrors = new LongAdder();
+    private final LongAdder tooLate = new LongAdder();
+    private final LongAdder mergeBlockedNanos = new LongAdder();
+    private final AtomicLong newestTimestamp = new AtomicLong(NO_TIMESTAMP);
+    private MessageStream messageStream;
+
+    private volatile double messagesPerSecond;
+    private volatile long headTimestampLag;
+    private volatile double spilledPerSecond;
+    private volatile double readBackPerSecond;
+    private long lastReceived;
+    private long lastSpilled;
+    private long lastReadBack;
+
+    /**
+     * @param latencyRecorder shared recorder of the combining thread, null not to track latency
+     */
+    StreamMetrics(String name, SingleWriterRecorder latencyRecorder) {
+        this.name = name;
+        this.latencyRecorder = latencyRecorder;
+    }
+
+    static StreamMetrics untracked() {
+        return new StreamMetrics("untracked", null);
+    }
+
+    String name() {
+        return name;
+    }
+
+    void attach(MessageStream messageStream) {
+        this.messageStream = messageStream;
+    }
+
+    /**
+     * Replaces the recorder for a stream consumed by another thread than the combining one, to be called before it
+     * is consumed. Ignored if the stream does not track latency, its queue is not stamped.
+     */
+    void recordLatencyWith(SingleWriterRecorder latencyRecorder) {
+        if (tracksLatency() && latencyRecorder != null) {
+            this.latencyRecorder = latencyRecorder;
+        }
+    }
+
+    boolean tracksLatency() {
+        return latencyRecorder != null;
+    }
+
+    /**
+     * Reader side only.
+     *
+     * @param newestTimestamp of the last message received, {@link #NO_TIMESTAMP} if it does not fit into a long
+     */
+    void received(int count, long newestTimestamp) {
+        received.add(count);
+        if (newestTimestamp != NO_TIMESTAMP) {
+            // only read by the metrics thread, it does not need to see it right away
+            this.newestTimestamp.lazySet(newestTimestamp);
+        }
+    }
+
+    void decodeError() {
+        decodeErrors.increment();
+    }
+
+    /**
+     * Reader side only.
+     */
+    void tooLate() {
+        tooLate.increment();
+    }
+
+    /**
+     * Combiner side only.
+     */
+    void recordLatency(long ingestNanos) {
+        latencyRecorder.recordValue(Math.max(0, System.nanoTime() - ingestNanos));
+    }
+
+    /**
+     * Combiner side only.
+     */
+    void mergeBlocked(long nanos) {
+        mergeBlockedNanos.add(nanos);
+    }
+
+    long newestTimestamp() {
+        return newestTimestamp.get();
+    }
+
+    /**
+     * Metrics thread only.
+     */
+    void refresh(long elapsedNanos, long newestTimestampOfAll) {
+        long total = received.sum();
+        messagesPerSecond = (total - lastReceived) * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+        lastReceived = total;
+        if (messageStream != null) {
+            long spilled = messageStream.spilledCount();
+            long readBack = messageStream.readBackCount();
+            spilledPerSecond = (spilled - lastSpilled) * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+            readBackPerSecond = (readBack - lastReadBack) * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+            lastSpilled = spilled;
+            lastReadBack = readBack;
+        }
+        long newest = newestTimestamp.get();
+        headTimestampLag = newest == NO_TIMESTAMP || newestTimestampOfAll == NO_TIMESTAMP ? 0 : newestTimestampOfAll - newest;
+    }
+
+    @Override
+    public long getMessagesReceived() {
+        return received.sum();
+    }
+
+    @Override
+    public double getMessagesPerSecond() {
+        return messagesPerSecond;
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return messageStream == null ? 0 : messageStream.size();
+    }
+
+    @Override
+    public long getHeadTimestampLag() {
+        return headTimestampLag;
+    }
+
+    @Override
+    public long getDecodeErrors() {
+        return decodeErrors.sum();
+    }
+
+    @Override
+    public long getTooLateForReordering() {
+        return tooLate.sum();
+    }
+
+    @Override
+    public long getMergeBlockedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(mergeBlockedNanos.sum());
+    }
+
+    @Override
+    public long getSpilledMessages() {
+        return messageStream == null ? 0 : messageStream.spilledCount();
+    }
+
+    @Override
+    public double getSpilledPerSecond() {
+        return spilledPerSecond;
+    }
+
+    @Override
+    public double getReadBackPerSecond() {
+        return readBackPerSecond;
+    }
+
+    @Override
+    public String toString() {
+        return name + " received " + getMessagesReceived() + " (" + Math.round(messagesPerSecond) + "/s), queue depth " +
+                getQueueDepth() + ", head lag " + headTimestampLag + ", decode errors " + getDecodeErrors() +
+                (getTooLateForReordering() == 0 ? "" : ", too late for reordering " + getTooLateForReordering()) +
+                ", blocked merging for " + getMergeBlockedMillis() + " ms" + (getSpilledMessages() == 0 ? "" :
+                ", spilled " + getSpilledMessages() + " (" + Math.round(spilledPerSecond) + "/s, read back " +
+                        Math.round(readBackPerSecond) + "/s)");
+    }
+}
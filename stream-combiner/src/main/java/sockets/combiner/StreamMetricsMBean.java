@@ -0,0 +1,40 @@
+package sockets.combiner;
+
+/**
+ * Metrics of one upstream published through JMX as {@code sockets.combiner:type=Stream,instance=<n>,name=<port>},
+ * the instance being the one of its combiner. Rates and lags are refreshed every {@code combiner.metrics.period.millis}.
+ */
+public interface StreamMetricsMBean {
+
+    long getMessagesReceived();
+
+    double getMessagesPerSecond();
+
+    int getQueueDepth();
+
+    /**
+     * @return how far the newest timestamp received from this stream is behind the newest one received from any stream
+     */
+    long getHeadTimestampLag();
+
+    long getDecodeErrors();
+
+    /**
+     * @return messages which arrived older than ones the reorder buffer of the stream already let go
+     */
+    long getTooLateForReordering();
+
+    /**
+     * @return how long the combiner waited for a message of this stream while heads of the others were ready
+     */
+    long getMergeBlockedMillis();
+
+    /**
+     * @return messages appended to the spill files because the in-memory queue was full
+     */
+    long getSpilledMessages();
+
+    double getSpilledPerSecond();
+
+    double getReadBackPerSecond();
+}
@@ -0,0 +1,270 @@
+package sockets.combiner;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import sockets.model.Message;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps heads of the streams in a tournament (winner) tree, so merging a message costs O(log N) per consumed head
+ * instead of scanning all streams. Streams without a head yet are re-checked on every merge attempt until their head
+ * arrives, they are the only ones which may block merging.
+ * <p>
+ * Streams are ordered by timestamp, so the watermark of a stream without a head is the timestamp it delivered last:
+ * such a stream blocks only heads not older than its watermark and the tree root is the global low watermark.
+ * Once heads were blocked by streams without data for maxWait, those streams are considered idle and merging goes on
+ * without them until their next message arrives, which may then be late.
+ */
+class TournamentTreeMergeStrategy implements MergeStrategy {
+
+    private static final Logger log = LoggerFactory.getLogger(TournamentTreeMergeStrategy.class);
+
+    // leaf states ordered by their rank in the tournament: the lower wins, WAITING and HEAD are ranked by their keys
+    private static final byte WAITING = 0;
+    private static final byte HEAD = 1;
+    private static final byte IDLE = 2;
+    private static final byte RETIRED = 3;
+    private static final byte EXHAUSTED = 4;
+
+    private static final int NO_LEAF = -1;
+    private static final long WAIT_FOREVER = -1;
+
+    private final List<MessageStream> messageStreams;
+    private final int leavesOffset;
+    // tree[1] is the root, tree[leavesOffset + i] is leaf of stream i, each node keeps index of its winning stream
+    private final int[] tree;
+    private final byte[] states;
+    private final Message[] heads;
+    // copy of the last merged head of each stream, null while a stream delivered nothing
+    private final Message[] watermarks;
+    private int headCount;
+
+    // waiting and idle leaves, both have to be re-checked for new heads
+    private final int[] waitingLeaves;
+    private int waitingCount;
+    private final int[] retiredLeaves;
+    private int retiredCount;
+    private boolean exhausted;
+
+    private final long maxWaitNanos;
+    private boolean blocked;
+    private long blockedSinceNanos;
+
+    TournamentTreeMergeStrategy(List<MessageStream> messageStreams) {
+        this(messageStreams, WAIT_FOREVER);
+    }
+
+    /**
+     * @param maxWaitMillis how long heads may be blocked by streams without data, negative to wait forever
+     */
+    TournamentTreeMergeStrategy(List<MessageStream> messageStreams, long maxWaitMillis) {
+        this.messageStreams = messageStreams;
+        this.maxWaitNanos = maxWaitMillis < 0 ? WAIT_FOREVER : TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+        int streamCount = messageStreams.size();
+        int offset = 1;
+        while (offset < streamCount) {
+            offset <<= 1;
+        }
+        leavesOffset = offset;
+        tree = new int[2 * offset];
+        states = new byte[streamCount];
+        heads = new Message[streamCount];
+        watermarks = new Message[streamCount];
+        waitingLeaves = new int[streamCount];
+        retiredLeaves = new int[streamCount];
+
+        for (int i = 0; i < offset; i++) {
+            tree[offset + i] = i < streamCount ? i : NO_LEAF;
+        }
+        for (int i = 0; i < streamCount; i++) {
+            refreshLeaf(i);
+            if (states[i] == WAITING) {
+                waitingLeaves[waitingCount++] = i;
+            }
+        }
+        for (int node = offset - 1; node >= 1; node--) {
+            tree[node] = winner(tree[2 * node], tree[2 * node + 1]);
+        }
+    }
+
+    @Override
+    public boolean mergeNextInto(Message target) {
+        recheckWaitingLeaves();
+
+        int winner = tree[1];
+        if (winner != NO_LEAF && states[winner] == WAITING) {
+            if (!skipIdleStreams()) {
+                return false;
+            }
+            winner = tree[1];
+        }
+        if (winner == NO_LEAF || states[winner] == EXHAUSTED) {
+            exhausted = true;
+            return false;
+        }
+        if (states[winner] != HEAD) {
+            return false;
+        }
+        blocked = false;
+
+        // heads are recycled as soon as they are consumed, so the minimal timestamp is compared on the target
+        target.copyFrom(heads[winner]);
+        double mergedAmounts = 0.0;
+        retiredCount = 0;
+        // each stream contributes at most one head per merged message, so consumed leaves retire until the merge is done
+        while (winner != NO_LEAF && states[winner] == HEAD && heads[winner].compareTimestampTo(target) == 0) {
+            var head = heads[winner];
+            mergedAmounts += head.getAmount();
+            var messageStream = messageStreams.get(winner);
+            messageStream.poll();
+            if (watermarks[winner] == null) {
+                watermarks[winner] = new Message();
+            }
+            watermarks[winner].copyFrom(head);
+            messageStream.recycle(head);
+            setState(winner, RETIRED);
+            heads[winner] = null;
+            replay(winner);
+            retiredLeaves[retiredCount++] = winner;
+            winner = tree[1];
+        }
+        for (int i = 0; i < retiredCount; i++) {
+            int leaf = retiredLeaves[i];
+            refreshLeaf(leaf);
+            if (states[leaf] == WAITING) {
+                waitingLeaves[waitingCount++] = leaf;
+            }
+            replay(leaf);
+        }
+        target.setAmount(mergedAmounts);
+        return true;
+    }
+
+    @Override
+    public boolean isExhausted() {
+        return exhausted;
+    }
+
+    @Override
+    public int mergedHeadCount() {
+        return retiredCount;
+    }
+
+    @Override
+    public MessageStream blockingStream() {
+        int root = tree[1];
+        return headCount > 0 && root != NO_LEAF && states[root] == WAITING ? messageStreams.get(root) : null;
+    }
+
+    private void recheckWaitingLeaves() {
+        int i = 0;
+        while (i < waitingCount) {
+            int leaf = waitingLeaves[i];
+            boolean idle = states[leaf] == IDLE;
+            refreshLeaf(leaf);
+            if (states[leaf] == WAITING || states[leaf] == IDLE) {
+                i++;
+            } else {
+                if (idle) {
+                    log.info("Stream " + leaf + " is back after being idle, its head is " + heads[leaf]);
+                }
+                waitingLeaves[i] = waitingLeaves[--waitingCount];
+                replay(leaf);
+            }
+        }
+    }
+
+    /**
+     * Called while the root is waiting for a stream without data. Starts the clock once some heads are blocked and
+     * after maxWait takes all streams without data which still block the heads out of the tournament.
+     *
+     * @return true if streams were taken out and merging may go on
+     */
+    private boolean skipIdleStreams() {
+        if (maxWaitNanos == WAIT_FOREVER || headCount == 0) {
+            blocked = false;
+            return false;
+        }
+        long now = System.nanoTime();
+        if (!blocked) {
+            blocked = true;
+            blockedSinceNanos = now;
+            return false;
+        }
+        if (now - blockedSinceNanos < maxWaitNanos) {
+            return false;
+        }
+        int leaf;
+        while ((leaf = tree[1]) != NO_LEAF && states[leaf] == WAITING) {
+            log.info("Stream " + leaf + " delivered nothing after " + watermarks[leaf] + " for " +
+                    TimeUnit.NANOSECONDS.toMillis(now - blockedSinceNanos) + " ms, merging without it until it is back");
+            setState(leaf, IDLE);
+            replay(leaf);
+        }
+        blocked = false;
+        return true;
+    }
+
+    private void refreshLeaf(int leaf) {
+        var messageStream = messageStreams.get(leaf);
+        var head = messageStream.peek();
+        if (head == null) {
+            // stream is deactivated only after its last message is queued, so peeking again after the flag is reliable
+            if (messageStream.isActive().get()) {
+                // idle streams stay out of the tournament until their next message
+                if (states[leaf] != IDLE) {
+                    setState(leaf, WAITING);
+                }
+                return;
+            }
+            head = messageStream.peek();
+        }
+        heads[leaf] = head;
+        setState(leaf, head != null ? HEAD : EXHAUSTED);
+    }
+
+    private void setState(int leaf, byte state) {
+        if (states[leaf] == HEAD) {
+            headCount--;
+        }
+        if (state == HEAD) {
+            headCount++;
+        }
+        states[leaf] = state;
+    }
+
+    private void replay(int leaf) {
+        for (int node = (leavesOffset + leaf) >>> 1; node >= 1; node >>>= 1) {
+            tree[node] = winner(tree[2 * node], tree[2 * node + 1]);
+        }
+    }
+
+    private int winner(int left, int right) {
+        if (left == NO_LEAF) {
+            return right;
+        }
+        if (right == NO_LEAF) {
+            return left;
+        }
+        if (states[left] <= HEAD && states[right] <= HEAD) {
+            int comparison = compareKeys(left, right);
+            if (comparison != 0) {
+                return comparison < 0 ? left : right;
+            }
+        }
+        // on equal keys a waiting stream wins, it may still deliver a message to merge with the head
+        return states[right] < states[left] ? right : left;
+    }
+
+    private int compareKeys(int left, int right) {
+        var leftKey = states[left] == HEAD ? heads[left] : watermarks[left];
+        var rightKey = states[right] == HEAD ? heads[right] : watermarks[right];
+        // stream which delivered nothing yet may deliver anything
+        if (leftKey == null || rightKey == null) {
+            return leftKey == rightKey ? 0 : leftKey == null ? -1 : 1;
+        }
+        return leftKey.compareTimestampTo(rightKey);
+    }
+}
@@ -0,0 +1,23 @@
+package sockets.combiner;
+
+/**
+ * Lets a consumer of message streams sleep until producers signal a change instead of re-checking streams in a loop.
+ * Waiting side is single threaded, signalling side may be called from any thread.
+ */
+interface WaitStrategy {
+
+    /**
+     * @return counter of signals so far, to be read before checking the streams and passed to {@link #await(long)}
+     */
+    long signalCount();
+
+    /**
+     * Waits until a signal newer than the observed count arrives, may also return spuriously.
+     */
+    void await(long observedSignalCount) throws InterruptedException;
+
+    /**
+     * Notifies the waiting side that a head became available or a stream went inactive.
+     */
+    void signal();
+}
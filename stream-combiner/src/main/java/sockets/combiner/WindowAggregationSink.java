@@ -0,0 +1,76 @@
+package sockets.combiner;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import sockets.model.Message;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Rolls merged messages up into windows of several sizes in one pass, see {@link WindowAggregator}, and writes every
+ * closed window as a JSON line to an output stream, batched like {@link BufferedStreamSink}. Windows still open when
+ * combining ends are written on close.
+ */
+class WindowAggregationSink implements OutputSink {
+
+    private static final Logger log = LoggerFactory.getLogger(WindowAggregationSink.class);
+
+    private final OutputStream output;
+    private final int batchBytes;
+    private final WindowJsonWriter writer;
+    private final List<WindowAggregator> windows = new ArrayList<>();
+
+    WindowAggregationSink(OutputStream output, int batchBytes) {
+        this.output = output;
+        this.batchBytes = batchBytes;
+        writer = new WindowJsonWriter(batchBytes + 256);
+    }
+
+    /**
+     * Adds windows of size timestamps starting every slide timestamps, slide equal to size for tumbling windows.
+     */
+    WindowAggregationSink window(long size, long slide) {
+        windows.add(new WindowAggregator(size, slide, writer));
+        return this;
+    }
+
+    @Override
+    public void emit(Message message) throws IOException {
+        for (int i = 0; i < windows.size(); i++) {
+            windows.get(i).add(message);
+        }
+        if (writer.length() >= batchBytes) {
+            writeBatch();
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        writeBatch();
+        output.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            for (var window : windows) {
+                window.finish();
+                log.info("Wrote " + window.windowCount() + " windows of the " + window + ", " + window.lateCount() +
+                        " late messages and " + window.wideCount() + " with wide timestamps were not aggregated");
+            }
+            flush();
+        } finally {
+            output.close();
+        }
+    }
+
+    private void writeBatch() throws IOException {
+        if (writer.length() > 0) {
+            writer.writeTo(output);
+            writer.clear();
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package sockets.combiner;
+
+import sockets.model.Message;
+
+/**
+ * Sum, count, min, max and mean of amounts in windows of size timestamps, starting every slide timestamps: tumbling
+ * windows if both are equal, sliding ones otherwise. Timestamps are split into panes of slide timestamps, each
+ * aggregated incrementally in a ring of primitive arrays holding the panes of one window, so a message costs O(1) and
+ * nothing is allocated. A window is written once a message of a later pane shows the merge moved past its end, by
+ * combining its panes.
+ * <p>
+ * Messages come in merged order, so one older than the current pane is late: it is counted but not aggregated, the
+ * windows it belongs to may already be written. Timestamps wider than long are counted and skipped as well.
+ */
+class WindowAggregator {
+
+    // every closed window combines all panes, which bounds the work per slide
+    private static final int MAX_PANES = 1 << 16;
+
+    private final long size;
+    private final long slide;
+    private final int paneCount;
+    private final WindowJsonWriter writer;
+    // pane p is kept in slot p mod paneCount, a slot with count 0 is empty
+    private final long[] counts;
+    private final double[] sums;
+    private final double[] mins;
+    private final double[] maxs;
+    private long currentPane;
+    private boolean started;
+
+    private long windowCount;
+    private long lateCount;
+    private long wideCount;
+
+    /**
+     * @param size  timestamps in one window, a multiple of slide
+     * @param slide timestamps between starts of consecutive windows
+     */
+    WindowAggregator(long size, long slide, WindowJsonWriter writer) {
+        if (slide <= 0 || size < slide || size % slide != 0) {
+            throw new IllegalArgumentException("Window size " + size + " has to be a positive multiple of its slide " + slide);
+        }
+        if (size / slide > MAX_PANES) {
+            throw new IllegalArgumentException("Window size " + size + " spans more than " + MAX_PANES + " slides of " + slide);
+        }
+        this.size = size;
+        this.slide = slide;
+        this.paneCount = (int) (size / slide);
+        this.writer = writer;
+        counts = new long[paneCount];
+        sums = new double[paneCount];
+        mins = new double[paneCount];
+        maxs = new double[paneCount];
+    }
+
+    void add(Message message) {
+        if (message.hasWideTimestamp()) {
+            wideCount++;
+            return;
+        }
+        long pane = Math.floorDiv(message.getTimestampAsLong(), slide);
+        if (!started) {
+            started = true;
+            currentPane = pane;
+        } else if (pane > currentPane) {
+            advanceTo(pane);
+        } else if (pane < currentPane) {
+            lateCount++;
+            return;
+        }
+        int slot = slot(pane);
+        double amount = message.getAmount();
+        if (counts[slot] == 0) {
+            sums[slot] = amount;
+            mins[slot] = amount;
+            maxs[slot] = amount;
+        } else {
+            sums[slot] += amount;
+            mins[slot] = Math.min(mins[slot], amount);
+            maxs[slot] = Math.max(maxs[slot], amount);
+        }
+        counts[slot]++;
+    }
+
+    /**
+     * Writes the windows still holding messages, once no more messages come.
+     */
+    void finish() {
+        if (started) {
+            advanceTo(currentPane + paneCount);
+            started = false;
+        }
+    }
+
+    long windowCount() {
+        return windowCount;
+    }
+
+    long lateCount() {
+        return lateCount;
+    }
+
+    long wideCount() {
+        return wideCount;
+    }
+
+    @Override
+    public String toString() {
+        return size == slide ? "tumbling window of " + size : "sliding window of " + size + " every " + slide;
+    }
+
+    /**
+     * Closes windows ending up to the start of the given pane, each pane leaving the ring once the last window holding
+     * it is written. After more than paneCount empty panes the windows are empty as well.
+     */
+    private void advanceTo(long pane) {
+        long steps = Math.min(pane - currentPane, paneCount);
+        for (long i = 1; i <= steps; i++) {
+            long end = currentPane + i;
+            writeWindowEndingAt(end);
+            counts[slot(end)] = 0;
+        }
+        currentPane = pane;
+    }
+
+    /**
+     * Writes the window of panes [end - paneCount, end), which are all panes in the ring at that point.
+     */
+    private void writeWindowEndingAt(long end) {
+        long count = 0;
+        double sum = 0.0;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        for (int slot = 0; slot < paneCount; slot++) {
+            if (counts[slot] > 0) {
+                count += counts[slot];
+                sum += sums[slot];
+                min = Math.min(min, mins[slot]);
+                max = Math.max(max, maxs[slot]);
+            }
+        }
+        if (count == 0) {
+            return;
+        }
+        writer.write(size, slide, (end - paneCount) * slide, end * slide, count, sum, min, max);
+        windowCount++;
+    }
+
+    private int slot(long pane) {
+        return (int) Math.floorMod(pane, (long) paneCount);
+    }
+}
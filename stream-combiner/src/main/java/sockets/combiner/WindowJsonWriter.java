@@ -0,0 +1,62 @@
+package sockets.combiner;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes closed windows as JSON lines straight into a reusable byte array, e.g.
+ * {"window":{"size":60,"slide":10,"start":0,"end":60,"count":3,"sum":6.0,"min":1.0,"max":3.0,"mean":2.0}}.
+ * Not thread safe.
+ */
+class WindowJsonWriter extends ByteArrayEncoder {
+
+    private static final byte[] SIZE_PREFIX = "{\"window\":{\"size\":".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] SLIDE_PREFIX = ",\"slide\":".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] START_PREFIX = ",\"start\":".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] END_PREFIX = ",\"end\":".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] COUNT_PREFIX = ",\"count\":".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] SUM_PREFIX = ",\"sum\":".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] MIN_PREFIX = ",\"min\":".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] MAX_PREFIX = ",\"max\":".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] MEAN_PREFIX = ",\"mean\":".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] SUFFIX = "}}\n".getBytes(StandardCharsets.US_ASCII);
+
+    WindowJsonWriter(int initialCapacity) {
+        super(initialCapacity);
+    }
+
+    /**
+     * Window of timestamps [start, end) as one JSON line.
+     */
+    void write(long size, long slide, long start, long end, long count, double sum, double min, double max) {
+        writeBytes(SIZE_PREFIX);
+        writeDecimal(size);
+        writeBytes(SLIDE_PREFIX);
+        writeDecimal(slide);
+        writeBytes(START_PREFIX);
+        writeDecimal(start);
+        writeBytes(END_PREFIX);
+        writeDecimal(end);
+        writeBytes(COUNT_PREFIX);
+        writeDecimal(count);
+        writeBytes(SUM_PREFIX);
+        writeNumber(sum);
+        writeBytes(MIN_PREFIX);
+        writeNumber(min);
+        writeBytes(MAX_PREFIX);
+        writeNumber(max);
+        writeBytes(MEAN_PREFIX);
+        writeNumber(sum / count);
+        writeBytes(SUFFIX);
+    }
+
+    private void writeNumber(double value) {
+        if (Double.isFinite(value)) {
+            writeDouble(value);
+        } else {
+            // quoted like Jackson does, JSON has no literal for them
+            writeByte((byte) '"');
+            writeDouble(value);
+            writeByte((byte) '"');
+        }
+    }
+}
@@ -11,4 +11,10 @@ public class MemoryLogAppender extends ListAppender<ILoggingEvent> {
         return list.stream()
                 .anyMatch(it -> it.getLoggerName().equals(loggerName) && it.getMessage().contains(message));
     }
+
+    public long countMessagesWithSubstringInLogger(String loggerName, String message) {
+        return list.stream()
+                .filter(it -> it.getLoggerName().equals(loggerName) && it.getMessage().contains(message))
+                .count();
+    }
 }
@@ -4,10 +4,12 @@ import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.dataformat.xml.XmlMapper;
 import sockets.model.Message;
 
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
@@ -23,15 +25,20 @@ public class TestSockets {
 
     public List<Socket> openSockets(List<Integer> ports) {
         try (var scope = new StructuredTaskScope.ShutdownOnFailure()) {
-            ports.stream().forEach(port -> scope.fork(() -> {
+            // bind before any client connects, otherwise connection could be refused
+            for (Integer port : ports) {
                 var serverSocket = new ServerSocket(port);
-                Socket accept = serverSocket.accept();
-                portToServerWriter.put(port, new PrintWriter(accept.getOutputStream(), true));
-                return null;
-            }));
+                scope.fork(() -> {
+                    try (serverSocket) {
+                        Socket accept = serverSocket.accept();
+                        portToServerWriter.put(port, new PrintWriter(accept.getOutputStream(), true));
+                    }
+                    return null;
+                });
+            }
 
             var openedSocketTasks = ports.stream().map(port -> scope.fork(() -> {
-                var socket = new Socket();
+                var socket = SocketChannel.open().socket();
                 socket.setSoTimeout(timeoutMillis);
                 socket.connect(new InetSocketAddress(hostname, port));
                 return socket;
@@ -40,7 +47,7 @@ public class TestSockets {
             scope.join();
 
             return openedSocketTasks.stream().map(StructuredTaskScope.Subtask::get).toList();
-        } catch (InterruptedException e) {
+        } catch (InterruptedException | IOException e) {
             throw new RuntimeException(e);
         }
     }
@@ -49,4 +56,8 @@ public class TestSockets {
         portToServerWriter.get(port)
                 .println(mapper.writeValueAsString(message));
     }
+
+    public void closeServerSide(int port) {
+        portToServerWriter.get(port).close();
+    }
 }
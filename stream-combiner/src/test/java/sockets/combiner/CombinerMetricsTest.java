@@ -0,0 +1,92 @@
+package sockets.combiner;
+
+import com.fasterxml.jackson.dataformat.xml.XmlMapper;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import sockets.model.Message;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class CombinerMetricsTest {
+
+    private final XmlMapper mapper = new XmlMapper();
+
+    @Test
+    @DisplayName("Tracks received messages, fan-in, latency, lag and the stream blocking the merge, published via JMX")
+    public void tracksPipelineAndStreamMetrics() throws IOException, JMException {
+        var metrics = new CombinerMetrics(true, TimeUnit.MINUTES.toMillis(1), false);
+        var fast = new MessageStream(8, metrics.newStream("fast"));
+        var slow = new MessageStream(8, metrics.newStream("slow"));
+        var mergeStrategy = new TournamentTreeMergeStrategy(List.of(fast, slow));
+
+        new LineFramer(fast).decodeRecords(lines(new Message(1, 1.0), new Message(2, 2.0)));
+        var slowFramer = new LineFramer(slow);
+        slowFramer.decodeRecords(lines(new Message(1, 3.0)));
+        assertThrows(IOException.class, () -> slowFramer.decodeRecords(ByteBuffer.wrap("garbage\n".getBytes())));
+
+        metrics.start();
+        var server = ManagementFactory.getPlatformMBeanServer();
+        var slowName = new ObjectName("sockets.combiner:type=Stream,instance=" + metrics.instance() + ",name=slow");
+        assertEquals(1L, server.getAttribute(slowName, "MessagesReceived"));
+        assertEquals(1L, server.getAttribute(slowName, "DecodeErrors"));
+
+        assertEquals(4.0, mergeStrategy.mergeNext().getAmount());
+        metrics.merged(mergeStrategy.mergedHeadCount());
+        assertNull(mergeStrategy.mergeNext());
+        assertEquals(slow, mergeStrategy.blockingStream());
+        metrics.mergeWaited(mergeStrategy.blockingStream(), TimeUnit.MILLISECONDS.toNanos(5));
+
+        metrics.close();
+        assertFalse(server.isRegistered(slowName));
+        assertFalse(server.isRegistered(new ObjectName("sockets.combiner:type=Combiner,instance=" + metrics.instance())));
+        assertEquals(1, metrics.getMessagesMerged());
+        assertEquals(2, metrics.getMaxFanIn());
+        assertTrue(metrics.getLatencyMaxMicros() > 0);
+        assertEquals(5, metrics.getMergeWaitMillis());
+        assertEquals(0, fast.metrics().getHeadTimestampLag());
+        assertEquals(1, slow.metrics().getHeadTimestampLag());
+        assertEquals(5, slow.metrics().getMergeBlockedMillis());
+        assertTrue(metrics.getSlowestStream().startsWith("slow"));
+    }
+
+    @Test
+    @DisplayName("Publishes the metrics of several combiners in one JVM side by side")
+    public void publishesSeveralCombiners() throws JMException {
+        var server = ManagementFactory.getPlatformMBeanServer();
+        var first = new CombinerMetrics(true, TimeUnit.MINUTES.toMillis(1), false);
+        var second = new CombinerMetrics(true, TimeUnit.MINUTES.toMillis(1), false);
+        first.newStream("12345");
+        second.newStream("12345");
+        first.start();
+        second.start();
+
+        for (var metrics : List.of(first, second)) {
+            assertTrue(server.isRegistered(new ObjectName("sockets.combiner:type=Combiner,instance=" + metrics.instance())));
+            assertTrue(server.isRegistered(
+                    new ObjectName("sockets.combiner:type=Stream,instance=" + metrics.instance() + ",name=12345")));
+        }
+        first.close();
+        second.close();
+    }
+
+    private ByteBuffer lines(Message... messages) throws IOException {
+        var lines = new StringBuilder();
+        for (var message : messages) {
+            lines.append(mapper.writeValueAsString(message)).append('\n');
+        }
+        return ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+    }
+}
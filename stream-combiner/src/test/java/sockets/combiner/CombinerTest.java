@@ -5,19 +5,40 @@ import ch.qos.logback.classic.LoggerContext;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.dataformat.xml.XmlMapper;
 import helper.MemoryLogAppender;
 import helper.TestSockets;
+import org.apache.commons.lang3.tuple.Pair;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
 import org.slf4j.LoggerFactory;
 import sockets.model.Message;
+import sockets.protocol.BinaryFrames;
+import sockets.protocol.Handshake;
+import sockets.protocol.WireFormat;
 
+import java.io.DataInputStream;
+import java.io.IOException;
 import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.StructuredTaskScope;
+import java.util.zip.DeflaterOutputStream;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class CombinerTest {
@@ -112,4 +133,571 @@ public class CombinerTest {
                 combinerLogger.getName(), objectMapper.writeValueAsString(
                         new Message(BigInteger.ONE, messageOf12345.getAmount() + messageOf12346.getAmount() + messageOf12347.getAmount()))));
     }
+
+    @Test
+    @DisplayName("Reads/combines messages from several sockets with a selector event loop until all sockets are closed")
+    public void ableToReadFromSeveralSocketsWithSelector() throws JsonProcessingException, InterruptedException {
+        TestSockets testSockets = new TestSockets();
+        var ports = List.of(12348, 12349);
+        var listOfSockets = testSockets.openSockets(ports);
+        var properties = new Properties();
+        properties.setProperty("combiner.ingest.mode", "selector");
+
+        try (var scope = new StructuredTaskScope.ShutdownOnFailure()) {
+            scope.fork(() -> {
+                new Combiner(listOfSockets, new CombinerConfig(properties)).readAndCombineMessageStreams();
+                return null;
+            });
+            for (Integer port : ports) {
+                scope.fork(() -> {
+                    testSockets.sendMessage(port, new Message(BigInteger.TWO, 1.5));
+                    testSockets.sendMessage(port, new Message(BigInteger.valueOf(port), 2.5));
+                    testSockets.closeServerSide(port);
+                    return null;
+                });
+            }
+            scope.join();
+        }
+
+        assertTrue(memoryLogAppender.isMessageSubstringPresentInLogger(
+                combinerLogger.getName(), objectMapper.writeValueAsString(new Message(BigInteger.TWO, 3.0))));
+        assertTrue(memoryLogAppender.isMessageSubstringPresentInLogger(
+                combinerLogger.getName(), objectMapper.writeValueAsString(new Message(BigInteger.valueOf(12349), 2.5))));
+        assertTrue(memoryLogAppender.isMessageSubstringPresentInLogger(
+                combinerLogger.getName(), "There are no active message streams anymore"));
+    }
+
+    @Test
+    @DisplayName("Reconnects after a dropped connection and skips messages sent again by the producer")
+    public void resumesAfterDroppedConnection() throws IOException, InterruptedException {
+        var xmlMapper = new XmlMapper();
+        var ports = List.of(12350, 12351);
+        var modes = List.of("blocking", "selector");
+        for (int i = 0; i < ports.size(); i++) {
+            int port = ports.get(i);
+            var properties = new Properties();
+            properties.setProperty("combiner.ingest.mode", modes.get(i));
+            properties.setProperty("combiner.reconnect.max.retries", "5");
+            properties.setProperty("combiner.reconnect.backoff.initial.millis", "10");
+
+            try (var scope = new StructuredTaskScope.ShutdownOnFailure();
+                 var serverSocket = new ServerSocket(port)) {
+                scope.fork(() -> {
+                    try (var dropped = serverSocket.accept()) {
+                        dropped.getOutputStream().write((xmlMapper.writeValueAsString(new Message(1, 1.5)) + "\n").getBytes());
+                        Thread.sleep(200);
+                        // reset instead of a graceful close, which would end the stream
+                        dropped.setSoLinger(true, 0);
+                    }
+                    try (var resumed = serverSocket.accept()) {
+                        for (var message : List.of(new Message(1, 1.5), new Message(2, 2.5))) {
+                            resumed.getOutputStream().write((xmlMapper.writeValueAsString(message) + "\n").getBytes());
+                        }
+                    }
+                    return null;
+                });
+                var socket = SocketChannel.open().socket();
+                socket.connect(new InetSocketAddress("127.0.0.1", port));
+                scope.fork(() -> {
+                    new Combiner(List.of(socket), new CombinerConfig(properties)).readAndCombineMessageStreams();
+                    return null;
+                });
+                scope.join().throwIfFailed();
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e);
+            }
+
+            assertEquals(i + 1, memoryLogAppender.countMessagesWithSubstringInLogger(
+                    combinerLogger.getName(), objectMapper.writeValueAsString(new Message(1, 1.5))));
+            assertEquals(i + 1, memoryLogAppender.countMessagesWithSubstringInLogger(
+                    combinerLogger.getName(), objectMapper.writeValueAsString(new Message(2, 2.5))));
+        }
+    }
+
+    @Test
+    @DisplayName("Negotiates the binary wire format with producers supporting it and reads XML from the others")
+    public void readsBinaryAndXmlProducers() throws IOException, InterruptedException {
+        var xmlMapper = new XmlMapper();
+        var modes = List.of("blocking", "selector");
+        for (int i = 0; i < modes.size(); i++) {
+            int binaryPort = 12352 + 2 * i;
+            int xmlPort = binaryPort + 1;
+            var properties = new Properties();
+            properties.setProperty("combiner.ingest.mode", modes.get(i));
+            properties.setProperty("combiner.wire.format", "binary");
+
+            try (var scope = new StructuredTaskScope.ShutdownOnFailure();
+                 var binaryServer = new ServerSocket(binaryPort);
+                 var xmlServer = new ServerSocket(xmlPort)) {
+                scope.fork(() -> {
+                    try (var socket = binaryServer.accept()) {
+                        var handshake = new DataInputStream(socket.getInputStream()).readNBytes(Handshake.LENGTH);
+                        assertEquals(WireFormat.BINARY, Handshake.decode(ByteBuffer.wrap(handshake)));
+                        var frames = ByteBuffer.allocate(Handshake.LENGTH + 2 * BinaryFrames.LENGTH_BYTES + 4 * BinaryFrames.RECORD_BYTES)
+                                .put(Handshake.encode(WireFormat.BINARY))
+                                .putInt(3 * BinaryFrames.RECORD_BYTES)
+                                .putLong(1).putDouble(1.5)
+                                .putLong(2).putDouble(2.5)
+                                .putLong(3).putDouble(3.5)
+                                .putInt(BinaryFrames.RECORD_BYTES)
+                                .putLong(4).putDouble(4.5);
+                        // split inside a record, it has to wait for the rest
+                        socket.getOutputStream().write(frames.array(), 0, 30);
+                        socket.getOutputStream().flush();
+                        Thread.sleep(50);
+                        socket.getOutputStream().write(frames.array(), 30, frames.position() - 30);
+                    }
+                    return null;
+                });
+                scope.fork(() -> {
+                    // producer knowing nothing about handshakes
+                    try (var socket = xmlServer.accept()) {
+                        socket.getOutputStream().write((xmlMapper.writeValueAsString(new Message(2, 10.0)) + "\n").getBytes());
+                    }
+                    return null;
+                });
+                List<Socket> sockets = new ArrayList<>();
+                for (int port : List.of(binaryPort, xmlPort)) {
+                    var socket = SocketChannel.open().socket();
+                    socket.connect(new InetSocketAddress("127.0.0.1", port));
+                    sockets.add(socket);
+                }
+                scope.fork(() -> {
+                    new Combiner(sockets, new CombinerConfig(properties)).readAndCombineMessageStreams();
+                    return null;
+                });
+                scope.join().throwIfFailed();
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e);
+            }
+
+            for (var message : List.of(new Message(1, 1.5), new Message(2, 12.5), new Message(3, 3.5), new Message(4, 4.5))) {
+                assertEquals(i + 1, memoryLogAppender.countMessagesWithSubstringInLogger(
+                        combinerLogger.getName(), objectMapper.writeValueAsString(message)));
+            }
+        }
+    }
+
+    @Test
+    @DisplayName("Inflates producers which accepted compression and reads the ones refusing it uncompressed")
+    public void readsCompressedAndUncompressedProducers() throws IOException, InterruptedException {
+        var xmlMapper = new XmlMapper();
+        int messages = 3000;
+        var modes = List.of("blocking", "selector");
+        for (int i = 0; i < modes.size(); i++) {
+            int compressedPort = 12358 + 2 * i;
+            int plainPort = compressedPort + 1;
+            var properties = new Properties();
+            properties.setProperty("combiner.ingest.mode", modes.get(i));
+            properties.setProperty("combiner.wire.compression", "deflate");
+            // small queue stalls the reader while deflated bytes are left
+            properties.setProperty("combiner.stream.queue.capacity", "16");
+
+            try (var scope = new StructuredTaskScope.ShutdownOnFailure();
+                 var compressedServer = new ServerSocket(compressedPort);
+                 var plainServer = new ServerSocket(plainPort)) {
+                scope.fork(() -> {
+                    try (var socket = compressedServer.accept()) {
+                        var handshake = new DataInputStream(socket.getInputStream()).readNBytes(Handshake.LENGTH);
+                        assertEquals(new Handshake.Options(WireFormat.XML, true),
+                                Handshake.decodeOptions(ByteBuffer.wrap(handshake)));
+                        socket.getOutputStream().write(Handshake.encode(WireFormat.XML, true));
+                        var output = new DeflaterOutputStream(socket.getOutputStream(), true);
+                        for (int timestamp = 1; timestamp <= messages; timestamp++) {
+                            output.write((xmlMapper.writeValueAsString(new Message(timestamp, 1.0)) + "\n").getBytes());
+                            if (timestamp % 100 == 0) {
+                                output.flush();
+                            }
+                        }
+                        output.finish();
+                    }
+                    return null;
+                });
+                scope.fork(() -> {
+                    // producer knowing nothing about handshakes
+                    try (var socket = plainServer.accept()) {
+                        socket.getOutputStream().write((xmlMapper.writeValueAsString(new Message(2, 10.0)) + "\n").getBytes());
+                    }
+                    return null;
+                });
+                List<Socket> sockets = new ArrayList<>();
+                for (int port : List.of(compressedPort, plainPort)) {
+                    var socket = SocketChannel.open().socket();
+                    socket.connect(new InetSocketAddress("127.0.0.1", port));
+                    sockets.add(socket);
+                }
+                scope.fork(() -> {
+                    new Combiner(sockets, new CombinerConfig(properties)).readAndCombineMessageStreams();
+                    return null;
+                });
+                scope.join().throwIfFailed();
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e);
+            }
+
+            for (var message : List.of(new Message(1, 1.0), new Message(2, 11.0), new Message(messages, 1.0))) {
+                assertEquals(i + 1, memoryLogAppender.countMessagesWithSubstringInLogger(
+                        combinerLogger.getName(), objectMapper.writeValueAsString(message)));
+            }
+        }
+    }
+
+    @Test
+    @DisplayName("Combiners serving their output like producers can be merged by another combiner, giving the flat merge")
+    public void chainedCombinersMatchFlatMerge() throws IOException, InterruptedException {
+        var xmlMapper = new XmlMapper();
+        int producers = 6;
+        int messagesPerProducer = 2000;
+        List<byte[]> payloads = new ArrayList<>();
+        for (int producer = 0; producer < producers; producer++) {
+            var payload = new StringBuilder();
+            for (int i = 0; i < messagesPerProducer; i++) {
+                // producers p and p + 3 share timestamps, so both levels sum amounts
+                payload.append(xmlMapper.writeValueAsString(new Message(3L * i + producer % 3, (producer + 1) * 0.25 * i)))
+                        .append('\n');
+            }
+            payloads.add(payload.toString().getBytes(StandardCharsets.UTF_8));
+        }
+
+        var flatOutput = Files.createTempFile("flat", ".jsonl");
+        new Combiner(serve(payloads), new CombinerConfig(fileOutput(flatOutput))).readAndCombineMessageStreams();
+
+        var chainedOutput = Files.createTempFile("chained", ".jsonl");
+        var leafPorts = List.of(12356, 12357);
+        var leafFormats = List.of("xml", "binary");
+        try (var scope = new StructuredTaskScope.ShutdownOnFailure("chain", Thread.ofPlatform().factory())) {
+            for (int leaf = 0; leaf < leafPorts.size(); leaf++) {
+                var properties = new Properties();
+                properties.setProperty("combiner.output.sinks", "producer");
+                properties.setProperty("combiner.output.producer.port", String.valueOf(leafPorts.get(leaf)));
+                properties.setProperty("combiner.output.producer.format", leafFormats.get(leaf));
+                var sockets = serve(payloads.subList(leaf * producers / 2, (leaf + 1) * producers / 2));
+                scope.fork(() -> {
+                    new Combiner(sockets, new CombinerConfig(properties)).readAndCombineMessageStreams();
+                    return null;
+                });
+            }
+            var rootProperties = fileOutput(chainedOutput);
+            rootProperties.setProperty("combiner.wire.format", "binary");
+            rootProperties.setProperty("combiner.reconnect.max.retries", "50");
+            rootProperties.setProperty("combiner.reconnect.backoff.initial.millis", "20");
+            var config = new CombinerConfig(rootProperties);
+            var rootSockets = new SocketConnector(config.createConnectionManager())
+                    .connect(leafPorts.stream().map(it -> Pair.of("127.0.0.1", it)).toList());
+            assertEquals(leafPorts.size(), rootSockets.size());
+            new Combiner(rootSockets, config).readAndCombineMessageStreams();
+            scope.join().throwIfFailed();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e);
+        }
+
+        var flatLines = Files.readAllLines(flatOutput);
+        assertEquals(producers / 2 * messagesPerProducer, flatLines.size());
+        assertEquals(flatLines, Files.readAllLines(chainedOutput));
+        Files.delete(flatOutput);
+        Files.delete(chainedOutput);
+    }
+
+    @Test
+    @DisplayName("Replays captured streams without sockets, merging them like the live ones at any speed")
+    public void replaysCapturedStreams() throws IOException {
+        var xmlMapper = new XmlMapper();
+        List<byte[]> payloads = new ArrayList<>();
+        for (int producer = 0; producer < 3; producer++) {
+            var payload = new StringBuilder();
+            for (int i = 0; i < 500; i++) {
+                payload.append(xmlMapper.writeValueAsString(new Message(2L * i + producer % 2, producer + 0.5 * i)))
+                        .append('\n');
+            }
+            payloads.add(payload.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        var captureDirectory = Files.createTempDirectory("capture");
+        var liveOutput = Files.createTempFile("live", ".jsonl");
+        var liveProperties = fileOutput(liveOutput);
+        liveProperties.setProperty("combiner.capture.dir", captureDirectory.toString());
+        new Combiner(serve(payloads), new CombinerConfig(liveProperties)).readAndCombineMessageStreams();
+        var liveLines = Files.readAllLines(liveOutput);
+        assertEquals(1000, liveLines.size());
+
+        for (var speed : List.of("max", "4")) {
+            var replayOutput = Files.createTempFile("replay", ".jsonl");
+            var replayProperties = fileOutput(replayOutput);
+            replayProperties.setProperty("combiner.replay.dir", captureDirectory.toString());
+            replayProperties.setProperty("combiner.replay.speed", speed);
+            var config = new CombinerConfig(replayProperties);
+            var replaySockets = config.openReplaySockets();
+            assertEquals(payloads.size(), replaySockets.size());
+            new Combiner(replaySockets, config).readAndCombineMessageStreams();
+            assertEquals(liveLines, Files.readAllLines(replayOutput));
+            Files.delete(replayOutput);
+        }
+        var recaptureProperties = fileOutput(liveOutput);
+        recaptureProperties.setProperty("combiner.replay.dir", captureDirectory.toString());
+        recaptureProperties.setProperty("combiner.capture.dir", captureDirectory.resolve(".").toString());
+        assertThrows(IllegalArgumentException.class, () -> new CombinerConfig(recaptureProperties).openReplaySockets());
+        try (var captures = Files.list(captureDirectory)) {
+            for (var capture : captures.toList()) {
+                Files.delete(capture);
+            }
+        }
+        Files.delete(captureDirectory);
+        Files.delete(liveOutput);
+    }
+
+    @Test
+    @DisplayName("Sorts records arriving out of order within the reorder bound, merging like producers sending them ordered")
+    public void reordersStreamsWithinBound() throws IOException {
+        var xmlMapper = new XmlMapper();
+        List<byte[]> orderedPayloads = new ArrayList<>();
+        List<byte[]> shuffledPayloads = new ArrayList<>();
+        for (int producer = 0; producer < 3; producer++) {
+            List<Message> messages = new ArrayList<>();
+            for (int i = 0; i < 400; i++) {
+                messages.add(new Message(2L * i + producer % 2, producer + 0.5 * i));
+            }
+            var ordered = new StringBuilder();
+            for (var message : messages) {
+                ordered.append(xmlMapper.writeValueAsString(message)).append('\n');
+            }
+            orderedPayloads.add(ordered.toString().getBytes(StandardCharsets.UTF_8));
+            // reversed in blocks of 8, so no record arrives more than 7 records late
+            var shuffled = new StringBuilder();
+            for (int block = 0; block < messages.size(); block += 8) {
+                for (int i = block + 7; i >= block; i--) {
+                    shuffled.append(xmlMapper.writeValueAsString(messages.get(i))).append('\n');
+                }
+            }
+            shuffledPayloads.add(shuffled.toString().getBytes(StandardCharsets.UTF_8));
+        }
+
+        var orderedOutput = Files.createTempFile("ordered", ".jsonl");
+        new Combiner(serve(orderedPayloads), new CombinerConfig(fileOutput(orderedOutput))).readAndCombineMessageStreams();
+        var reorderedOutput = Files.createTempFile("reordered", ".jsonl");
+        var properties = fileOutput(reorderedOutput);
+        properties.setProperty("combiner.stream.reorder", "records");
+        properties.setProperty("combiner.stream.reorder.bound", "7");
+        new Combiner(serve(shuffledPayloads), new CombinerConfig(properties)).readAndCombineMessageStreams();
+
+        var orderedLines = Files.readAllLines(orderedOutput);
+        assertEquals(800, orderedLines.size());
+        assertEquals(orderedLines, Files.readAllLines(reorderedOutput));
+        Files.delete(orderedOutput);
+        Files.delete(reorderedOutput);
+    }
+
+    @Test
+    @DisplayName("Merges records held for reordering once after a reconnect, and also when the stream fails for good")
+    public void keepsHeldRecordsOfDroppedConnections() throws IOException, InterruptedException {
+        var xmlMapper = new XmlMapper();
+        var ports = List.of(12362, 12363, 12364, 12365);
+        var modes = List.of("blocking", "selector", "blocking", "selector");
+        // the newest record arrives first, all of them are held when the connection drops
+        var beforeDrop = List.of(new Message(3, 3.5), new Message(1, 1.5), new Message(2, 2.5));
+        for (int i = 0; i < ports.size(); i++) {
+            int port = ports.get(i);
+            boolean reconnects = i < 2;
+            var output = Files.createTempFile("held", ".jsonl");
+            var properties = fileOutput(output);
+            properties.setProperty("combiner.ingest.mode", modes.get(i));
+            properties.setProperty("combiner.stream.reorder", "records");
+            properties.setProperty("combiner.stream.reorder.bound", "7");
+            if (reconnects) {
+                properties.setProperty("combiner.reconnect.max.retries", "5");
+                properties.setProperty("combiner.reconnect.backoff.initial.millis", "10");
+            }
+
+            try (var scope = new StructuredTaskScope.ShutdownOnFailure();
+                 var serverSocket = new ServerSocket(port)) {
+                scope.fork(() -> {
+                    try (var dropped = serverSocket.accept()) {
+                        for (var message : beforeDrop) {
+                            dropped.getOutputStream().write((xmlMapper.writeValueAsString(message) + "\n").getBytes());
+                        }
+                        Thread.sleep(200);
+                        // reset instead of a graceful close, which would end the stream
+                        dropped.setSoLinger(true, 0);
+                    }
+                    if (reconnects) {
+                        try (var resumed = serverSocket.accept()) {
+                            // sent again from the start, only the record newer than all held ones is new
+                            var messages = new ArrayList<>(beforeDrop);
+                            messages.add(new Message(4, 4.5));
+                            for (var message : messages) {
+                                resumed.getOutputStream().write((xmlMapper.writeValueAsString(message) + "\n").getBytes());
+                            }
+                        }
+                    }
+                    return null;
+                });
+                var socket = SocketChannel.open().socket();
+                socket.connect(new InetSocketAddress("127.0.0.1", port));
+                scope.fork(() -> {
+                    new Combiner(List.of(socket), new CombinerConfig(properties)).readAndCombineMessageStreams();
+                    return null;
+                });
+                scope.join().throwIfFailed();
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e);
+            }
+
+            List<String> expected = new ArrayList<>();
+            for (long timestamp = 1; timestamp <= (reconnects ? 4 : 3); timestamp++) {
+                expected.add(objectMapper.writeValueAsString(new Message(timestamp, timestamp + 0.5)));
+            }
+            assertEquals(expected, Files.readAllLines(output), modes.get(i) + (reconnects ? " reconnecting" : ""));
+            Files.delete(output);
+        }
+    }
+
+    @Test
+    @DisplayName("Drops or emits as corrections only messages older than the last emitted one and counts them")
+    public void handlesLateMessagesByPolicy() throws IOException, InterruptedException {
+        var xmlMapper = new XmlMapper();
+        var ports = List.of(12366, 12367, 12368, 12369);
+        var policies = List.of("drop", "correction");
+        for (int i = 0; i < policies.size(); i++) {
+            var output = Files.createTempFile("late", ".jsonl");
+            var properties = fileOutput(output);
+            properties.setProperty("combiner.merge.strategy", "tournament");
+            properties.setProperty("combiner.watermark.max.wait.millis", "50");
+            properties.setProperty("combiner.watermark.late.policy", policies.get(i));
+            int earlyPort = ports.get(2 * i);
+            int latePort = ports.get(2 * i + 1);
+
+            Combiner combiner;
+            try (var scope = new StructuredTaskScope.ShutdownOnFailure();
+                 var earlyServer = new ServerSocket(earlyPort);
+                 var lateServer = new ServerSocket(latePort)) {
+                List<Socket> sockets = new ArrayList<>();
+                for (var port : List.of(earlyPort, latePort)) {
+                    var socket = SocketChannel.open().socket();
+                    socket.connect(new InetSocketAddress("127.0.0.1", port));
+                    sockets.add(socket);
+                }
+                combiner = new Combiner(sockets, new CombinerConfig(properties));
+                var metrics = combiner.metrics();
+                scope.fork(() -> {
+                    try (var early = earlyServer.accept()) {
+                        // two records of one timestamp follow each other, neither of them is late
+                        for (var message : List.of(new Message(1, 1.0), new Message(1, 2.0), new Message(3, 3.0))) {
+                            early.getOutputStream().write((xmlMapper.writeValueAsString(message) + "\n").getBytes());
+                        }
+                        // sent once merging went on without this stream for the records of the other one
+                        awaitMerged(metrics, 6);
+                        early.getOutputStream().write((xmlMapper.writeValueAsString(new Message(6, 6.0)) + "\n").getBytes());
+                    }
+                    return null;
+                });
+                scope.fork(() -> {
+                    try (var late = lateServer.accept()) {
+                        // merging went on without this stream meanwhile, 2 is late while 3 is not
+                        awaitMerged(metrics, 3);
+                        for (var message : List.of(new Message(2, 20.0), new Message(3, 30.0), new Message(5, 50.0))) {
+                            late.getOutputStream().write((xmlMapper.writeValueAsString(message) + "\n").getBytes());
+                        }
+                    }
+                    return null;
+                });
+                scope.fork(() -> {
+                    combiner.readAndCombineMessageStreams();
+                    return null;
+                });
+                scope.join().throwIfFailed();
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e);
+            }
+
+            List<String> expected = new ArrayList<>();
+            for (var message : List.of(new Message(1, 1.0), new Message(1, 2.0), new Message(3, 3.0))) {
+                expected.add(objectMapper.writeValueAsString(message));
+            }
+            if (policies.get(i).equals("correction")) {
+                expected.add(objectMapper.writeValueAsString(new Message(2, 20.0)));
+            }
+            for (var message : List.of(new Message(3, 30.0), new Message(5, 50.0), new Message(6, 6.0))) {
+                expected.add(objectMapper.writeValueAsString(message));
+            }
+            assertEquals(expected, Files.readAllLines(output), policies.get(i));
+            assertEquals(1, combiner.metrics().getLateMessages(), policies.get(i));
+            Files.delete(output);
+        }
+    }
+
+    @Test
+    @DisplayName("Continues after the newest journaled message on restart, even if an older correction was journaled last")
+    public void resumesAfterJournalOnRestart() throws IOException {
+        var xmlMapper = new XmlMapper();
+        var journalDirectory = Files.createTempDirectory("journal");
+        List<byte[]> payloads = new ArrayList<>();
+        for (var count : List.of(5, 8)) {
+            var payload = new StringBuilder();
+            for (int i = 1; i <= count; i++) {
+                payload.append(xmlMapper.writeValueAsString(new Message(i, i + 0.5))).append('\n');
+            }
+            payloads.add(payload.toString().getBytes(StandardCharsets.UTF_8));
+        }
+
+        var firstOutput = Files.createTempFile("before-restart", ".jsonl");
+        var firstProperties = fileOutput(firstOutput);
+        firstProperties.setProperty("combiner.journal.dir", journalDirectory.toString());
+        new Combiner(serve(payloads.subList(0, 1)), new CombinerConfig(firstProperties)).readAndCombineMessageStreams();
+        assertEquals(5, Files.readAllLines(firstOutput).size());
+        try (var journal = OutputJournal.open(journalDirectory, 64 << 20, 0, -1)) {
+            assertEquals(5, journal.newestRecovered().getTimestampAsLong());
+            journal.emit(new Message(2, 9.0));
+        }
+
+        // producers send their streams from the start again, everything up to the newest journaled message is skipped
+        var secondOutput = Files.createTempFile("after-restart", ".jsonl");
+        var secondProperties = fileOutput(secondOutput);
+        secondProperties.setProperty("combiner.journal.dir", journalDirectory.toString());
+        new Combiner(serve(payloads.subList(1, 2)), new CombinerConfig(secondProperties)).readAndCombineMessageStreams();
+        List<String> expected = new ArrayList<>();
+        for (int i = 6; i <= 8; i++) {
+            expected.add(objectMapper.writeValueAsString(new Message(i, i + 0.5)));
+        }
+        assertEquals(expected, Files.readAllLines(secondOutput));
+
+        try (var files = Files.list(journalDirectory)) {
+            for (var file : files.toList()) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(journalDirectory);
+        Files.delete(firstOutput);
+        Files.delete(secondOutput);
+    }
+
+    private static void awaitMerged(CombinerMetrics metrics, long messages) throws InterruptedException {
+        while (metrics.getMessagesMerged() < messages) {
+            Thread.sleep(5);
+        }
+    }
+
+    private static Properties fileOutput(Path file) {
+        var properties = new Properties();
+        properties.setProperty("combiner.output.sinks", "file");
+        properties.setProperty("combiner.output.file", file.toString());
+        return properties;
+    }
+
+    /**
+     * @return sockets connected to producers sending one payload each and closing afterwards
+     */
+    private static List<Socket> serve(List<byte[]> payloads) throws IOException {
+        var loopback = InetAddress.getLoopbackAddress();
+        List<Socket> sockets = new ArrayList<>();
+        for (var payload : payloads) {
+            var serverSocket = new ServerSocket(0, 1, loopback);
+            Thread.ofVirtual().start(() -> {
+                try (serverSocket; var socket = serverSocket.accept()) {
+                    socket.getOutputStream().write(payload);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            sockets.add(new Socket(loopback, serverSocket.getLocalPort()));
+        }
+        return sockets;
+    }
 }
@@ -0,0 +1,217 @@
+package sockets.combiner;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import sockets.model.Message;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class MergeStrategyTest {
+
+    @Test
+    @DisplayName("Tournament tree merges streams exactly like the linear scan reference")
+    public void tournamentTreeMatchesLinearScan() {
+        for (int streamCount : List.of(1, 2, 3, 7, 16, 33)) {
+            var expected = mergeAll(randomStreams(streamCount, 42), LinearScanMergeStrategy::new);
+            var actual = mergeAll(randomStreams(streamCount, 42), TournamentTreeMergeStrategy::new);
+            assertEquals(expected, actual, "Different merge result for " + streamCount + " streams");
+        }
+    }
+
+    @Test
+    @DisplayName("Sums amounts of heads with equal timestamps into one message")
+    public void mergesEqualTimestamps() {
+        var streams = List.of(
+                inactiveStream(new Message(BigInteger.ONE, 1.0), new Message(BigInteger.TWO, 2.0)),
+                inactiveStream(new Message(BigInteger.ONE, 3.0)),
+                inactiveStream(new Message(BigInteger.TWO, 4.0)));
+
+        assertEquals(List.of("1=4.0", "2=6.0"), mergeAll(streams, TournamentTreeMergeStrategy::new));
+    }
+
+    @Test
+    @DisplayName("Orders and merges timestamps not fitting into long together with primitive ones")
+    public void mergesWideTimestamps() {
+        var wideTimestamp = BigInteger.valueOf(Long.MAX_VALUE).add(BigInteger.ONE);
+        var streams = List.of(
+                inactiveStream(new Message(Long.MAX_VALUE, 1.0), new Message(wideTimestamp, 2.0)),
+                inactiveStream(new Message(wideTimestamp, 3.0)),
+                inactiveStream(new Message(BigInteger.valueOf(Long.MIN_VALUE).subtract(BigInteger.ONE), 4.0)));
+
+        assertEquals(List.of("-9223372036854775809=4.0", "9223372036854775807=1.0", "9223372036854775808=5.0"),
+                mergeAll(streams, TournamentTreeMergeStrategy::new));
+    }
+
+    @Test
+    @DisplayName("Does not merge while an active stream has no head yet")
+    public void waitsForActiveStreamWithoutHead() {
+        var activeStream = new MessageStream(16);
+        var streams = List.of(inactiveStream(new Message(BigInteger.TWO, 1.0)), activeStream);
+        var mergeStrategy = new TournamentTreeMergeStrategy(streams);
+
+        assertNull(mergeStrategy.mergeNext());
+        assertFalse(mergeStrategy.isExhausted());
+
+        activeStream.offer(new Message(BigInteger.ONE, 5.0));
+        activeStream.isActive().set(false);
+
+        assertEquals(BigInteger.ONE, mergeStrategy.mergeNext().getTimestamp());
+        assertEquals(BigInteger.TWO, mergeStrategy.mergeNext().getTimestamp());
+        assertNull(mergeStrategy.mergeNext());
+        assertTrue(mergeStrategy.isExhausted());
+    }
+
+    @Test
+    @DisplayName("Merges without a stream which delivered nothing for max wait until it is back")
+    public void skipsIdleStreamAfterMaxWait() {
+        var quietStream = new MessageStream(16);
+        var busyStream = new MessageStream(16);
+        var mergeStrategy = new TournamentTreeMergeStrategy(List.of(quietStream, busyStream), 0);
+        quietStream.offer(new Message(1, 1.0));
+        busyStream.offer(new Message(1, 2.0));
+        assertEquals(3.0, mergeStrategy.mergeNext().getAmount());
+
+        busyStream.offer(new Message(2, 2.0));
+        busyStream.offer(new Message(3, 3.0));
+        // quiet stream may still deliver timestamp 2, blocked heads start the clock
+        assertNull(mergeStrategy.mergeNext());
+        assertEquals(2, mergeStrategy.mergeNext().getTimestampAsLong());
+        assertEquals(3, mergeStrategy.mergeNext().getTimestampAsLong());
+
+        quietStream.offer(new Message(2, 5.0));
+        quietStream.offer(new Message(4, 4.0));
+        // late head is handed out, busy stream delivered 3 last, so 4 has to wait for it again
+        assertEquals(5.0, mergeStrategy.mergeNext().getAmount());
+        assertNull(mergeStrategy.mergeNext());
+        assertFalse(mergeStrategy.isExhausted());
+
+        busyStream.isActive().set(false);
+        assertEquals(4, mergeStrategy.mergeNext().getTimestampAsLong());
+        quietStream.isActive().set(false);
+        assertNull(mergeStrategy.mergeNext());
+        assertTrue(mergeStrategy.isExhausted());
+    }
+
+    @Test
+    @DisplayName("Merging groups of streams on worker threads level by level gives the same result as a single level")
+    public void hierarchicalMergeMatchesSingleLevel() throws InterruptedException {
+        var config = CombinerConfig.defaults();
+        var expected = mergeAll(randomStreams(33, 42), LinearScanMergeStrategy::new);
+
+        var topology = MergeTopology.build(randomStreams(33, 42), 3, config, config.createMetrics());
+        assertEquals(2, topology.finalStreams().size());
+        topology.finalStreams().forEach(it -> it.consumedWith(config.createWaitStrategy()));
+        topology.run(Thread.ofPlatform().factory());
+
+        assertEquals(expected, mergeAll(topology.finalStreams(), TournamentTreeMergeStrategy::new));
+    }
+
+    @Test
+    @DisplayName("Decoding, merging and encoding recycled messages allocates nothing per record once warmed up")
+    public void steadyStateAllocatesNothingPerRecord() throws IOException {
+        var random = new Random(7);
+        List<MessageStream> streams = new ArrayList<>();
+        List<RecordFramer> framers = new ArrayList<>();
+        List<ByteBuffer> batches = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            var messageStream = new MessageStream(256);
+            streams.add(messageStream);
+            framers.add(new LineFramer(messageStream));
+            var batch = new StringBuilder();
+            // every batch ends with a timestamp all streams share, so it is merged completely
+            for (int timestamp = i % 2; timestamp <= 256; timestamp += timestamp == 255 ? 1 : 2) {
+                batch.append("<data><timestamp>").append(timestamp).append("</timestamp><amount>")
+                        .append(random.nextDouble() * 1000).append("</amount></data>\n");
+            }
+            batches.add(ByteBuffer.wrap(batch.toString().getBytes(StandardCharsets.US_ASCII)));
+        }
+        var mergeStrategy = new TournamentTreeMergeStrategy(streams);
+        var writer = new MessageJsonWriter(256);
+        var merged = new Message();
+        var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+        for (int round = 0; round < 2000; round++) {
+            decodeMergeAndEncode(framers, batches, mergeStrategy, merged, writer);
+        }
+        long records = 0;
+        long allocatedBefore = threads.getCurrentThreadAllocatedBytes();
+        for (int round = 0; round < 500; round++) {
+            records += decodeMergeAndEncode(framers, batches, mergeStrategy, merged, writer);
+        }
+        long allocated = threads.getCurrentThreadAllocatedBytes() - allocatedBefore;
+
+        assertEquals(500 * 8 * 129, records);
+        // measured 0 bytes, the bound only leaves room for a stray allocation of the JVM on the test thread; one byte
+        // per record would already be 500 times more
+        assertTrue(allocated <= 1024, allocated + " bytes allocated for " + records + " records");
+    }
+
+    /**
+     * @return number of records decoded
+     */
+    private static int decodeMergeAndEncode(List<RecordFramer> framers, List<ByteBuffer> batches,
+                                            MergeStrategy mergeStrategy, Message merged, MessageJsonWriter writer)
+            throws IOException {
+        int records = 0;
+        for (int i = 0; i < framers.size(); i++) {
+            var batch = batches.get(i).rewind();
+            assertTrue(framers.get(i).decodeRecords(batch));
+            records += framers.get(i).messageStream().size();
+        }
+        while (mergeStrategy.mergeNextInto(merged)) {
+            writer.writeRecord(merged);
+            writer.clear();
+        }
+        assertEquals(256, merged.getTimestampAsLong());
+        return records;
+    }
+
+    private static List<String> mergeAll(List<MessageStream> streams, Function<List<MessageStream>, MergeStrategy> factory) {
+        var mergeStrategy = factory.apply(streams);
+        List<String> merged = new ArrayList<>();
+        Message message;
+        while ((message = mergeStrategy.mergeNext()) != null) {
+            merged.add(message.getTimestamp() + "=" + message.getAmount());
+        }
+        assertTrue(mergeStrategy.isExhausted());
+        return merged;
+    }
+
+    private static List<MessageStream> randomStreams(int streamCount, long seed) {
+        var random = new Random(seed);
+        List<MessageStream> streams = new ArrayList<>();
+        for (int i = 0; i < streamCount; i++) {
+            var messages = new ArrayList<Message>();
+            long timestamp = 0;
+            int length = random.nextInt(50);
+            for (int j = 0; j < length; j++) {
+                timestamp += 1 + random.nextInt(3);
+                messages.add(new Message(BigInteger.valueOf(timestamp), random.nextInt(100)));
+            }
+            streams.add(inactiveStream(messages.toArray(Message[]::new)));
+        }
+        return streams;
+    }
+
+    private static MessageStream inactiveStream(Message... messages) {
+        var messageStream = new MessageStream(64);
+        for (Message message : messages) {
+            assertTrue(messageStream.offer(message));
+        }
+        messageStream.isActive().set(false);
+        return messageStream;
+    }
+}
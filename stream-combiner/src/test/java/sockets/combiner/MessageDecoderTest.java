@@ -0,0 +1,94 @@
+package sockets.combiner;
+
+import com.fasterxml.jackson.dataformat.xml.XmlMapper;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import sockets.model.Message;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class MessageDecoderTest {
+
+    private final XmlMapper xmlMapper = new XmlMapper();
+
+    @Test
+    @DisplayName("Decodes records written by Jackson to the same values without fallback")
+    public void decodesProducerRecords() throws IOException {
+        var decoder = new MessageDecoder();
+        var random = new Random(7);
+        for (int i = 0; i < 100_000; i++) {
+            var message = new Message(random.nextLong(), random.nextDouble() * Math.pow(10, random.nextInt(40) - 20));
+            assertDecodedEqually(decoder, message);
+        }
+        assertDecodedEqually(decoder, new Message(0, -0.0));
+        assertDecodedEqually(decoder, new Message(Long.MIN_VALUE, Double.MAX_VALUE));
+        assertDecodedEqually(decoder, new Message(Long.MAX_VALUE, Double.MIN_NORMAL));
+        assertEquals(0, decoder.fallbackCount());
+    }
+
+    @Test
+    @DisplayName("Converts decimals to the closest double exactly like the JDK")
+    public void convertsDecimalsLikeJdk() {
+        var random = new Random(11);
+        for (int i = 0; i < 300_000; i++) {
+            long significand = random.nextLong() >>> random.nextInt(64);
+            int exponent = random.nextInt(640) - 320;
+            assertConvertedLikeJdk(significand, exponent);
+        }
+        for (int i = 0; i < 300_000; i++) {
+            var value = Double.longBitsToDouble(random.nextLong());
+            if (Double.isFinite(value)) {
+                var decimal = new BigDecimal(Double.toString(Math.abs(value)));
+                assertConvertedLikeJdk(decimal.unscaledValue().longValueExact(), -decimal.scale());
+            }
+        }
+        // half way between 1 and the next double, has to round to even
+        assertConvertedLikeJdk(9007199254740993L, -16);
+    }
+
+    @Test
+    @DisplayName("Falls back to Jackson for records of unexpected shape and decodes wide timestamps")
+    public void fallsBackForUnexpectedShapes() throws IOException {
+        var decoder = new MessageDecoder();
+
+        var reordered = decode(decoder, "<data><amount>1.5</amount><timestamp>3</timestamp></data>");
+        assertEquals(3, reordered.getTimestampAsLong());
+        assertEquals(1.5, reordered.getAmount());
+        assertEquals(1, decoder.fallbackCount());
+
+        var wide = decode(decoder, " <data><timestamp>123456789012345678901234</timestamp><amount>-2E-3</amount></data>\r");
+        assertEquals(new BigInteger("123456789012345678901234"), wide.getTimestamp());
+        assertEquals(-0.002, wide.getAmount());
+        assertEquals(1, decoder.fallbackCount());
+        assertEquals(2, decoder.decodedCount());
+    }
+
+    private void assertDecodedEqually(MessageDecoder decoder, Message message) throws IOException {
+        var decoded = decode(decoder, xmlMapper.writeValueAsString(message));
+        assertEquals(message.getTimestampAsLong(), decoded.getTimestampAsLong());
+        assertEquals(Double.doubleToRawLongBits(message.getAmount()), Double.doubleToRawLongBits(decoded.getAmount()),
+                () -> "Wrong amount for " + message);
+    }
+
+    private static void assertConvertedLikeJdk(long significand, int exponent) {
+        var converted = DecimalToDouble.toDouble(significand, exponent, false);
+        if (!Double.isNaN(converted)) {
+            var expected = Double.parseDouble(Long.toUnsignedString(significand) + "E" + exponent);
+            assertEquals(expected, converted, () -> "Wrong conversion of " + Long.toUnsignedString(significand) + "E" + exponent);
+        }
+    }
+
+    private static Message decode(MessageDecoder decoder, String record) throws IOException {
+        var bytes = record.getBytes(StandardCharsets.US_ASCII);
+        // decode from the middle of a bigger buffer, as readers do
+        var buffer = ByteBuffer.allocate(bytes.length + 10).position(5).put(bytes).flip().position(5);
+        return decoder.decode(buffer, 5, 5 + bytes.length);
+    }
+}
@@ -0,0 +1,121 @@
+package sockets.combiner;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import sockets.model.Message;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.util.concurrent.StructuredTaskScope;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class MessageStreamTest {
+
+    @Test
+    @DisplayName("Rejects messages when full and notifies the reader once drained to half of the capacity")
+    public void rejectsWhenFullAndNotifiesWhenDrained() {
+        var messageStream = new MessageStream(3);
+        var notifications = new AtomicInteger();
+        messageStream.onSpaceAvailable(notifications::incrementAndGet);
+
+        assertEquals(4, messageStream.capacity());
+        for (int i = 0; i < 4; i++) {
+            assertTrue(messageStream.offer(new Message(i, i)));
+        }
+        assertFalse(messageStream.offer(new Message(4, 4)));
+        assertEquals(1, messageStream.fullCount());
+        assertEquals(4, messageStream.size());
+
+        assertEquals(0, messageStream.poll().getTimestampAsLong());
+        assertEquals(0, notifications.get());
+        assertEquals(1, messageStream.poll().getTimestampAsLong());
+        assertEquals(1, notifications.get());
+
+        assertTrue(messageStream.offer(new Message(4, 4)));
+        assertEquals(2, messageStream.poll().getTimestampAsLong());
+        assertEquals(1, notifications.get());
+    }
+
+    @Test
+    @DisplayName("Hands over all messages in order from a reader thread to a combiner thread")
+    public void handsOverMessagesInOrderBetweenThreads() throws InterruptedException {
+        var messageStream = new MessageStream(64);
+        int count = 200_000;
+        // platform threads, so that busy waiting of one side cannot starve the other on a single carrier
+        try (var scope = new StructuredTaskScope.ShutdownOnFailure("spsc", Thread.ofPlatform().factory())) {
+            scope.fork(() -> {
+                for (int i = 0; i < count; i++) {
+                    var message = new Message(i, i);
+                    while (!messageStream.offer(message)) {
+                        yieldUnlessInterrupted();
+                    }
+                }
+                return null;
+            });
+            var consumer = scope.fork(() -> {
+                for (int i = 0; i < count; i++) {
+                    Message message;
+                    while ((message = messageStream.poll()) == null) {
+                        yieldUnlessInterrupted();
+                    }
+                    assertEquals(i, message.getTimestampAsLong());
+                }
+                return messageStream.poll();
+            });
+            scope.join();
+            assertNull(consumer.get());
+        }
+    }
+
+    @Test
+    @DisplayName("Spills messages not fitting into the queue to segment files and reads them back in order")
+    public void spillsOverflowAndReadsItBackInOrder() throws IOException {
+        var directory = Files.createTempDirectory("spill");
+        var spillQueue = new SpillQueue(directory, "test", 4096);
+        var messageStream = new MessageStream(4, StreamMetrics.untracked(), spillQueue);
+        var wideTimestamp = BigInteger.valueOf(Long.MAX_VALUE).pow(3);
+        int count = 1000;
+        long expected = 0;
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < count; i++) {
+                assertTrue(messageStream.offer(new Message(round * count + i, i)));
+            }
+            assertTrue(messageStream.offer(new Message(wideTimestamp, round)));
+            assertEquals(count + 1, messageStream.size());
+            for (int i = 0; i < count; i++) {
+                var message = messageStream.poll();
+                assertEquals(expected++, message.getTimestampAsLong());
+                assertEquals(i, message.getAmount());
+            }
+            var wide = messageStream.poll();
+            assertEquals(wideTimestamp, wide.getTimestamp());
+            assertEquals(round, wide.getAmount());
+            assertTrue(messageStream.isEmpty());
+            assertNull(messageStream.poll());
+        }
+        assertEquals(3 * (count - 4 + 1), messageStream.spilledCount());
+        assertEquals(messageStream.spilledCount(), messageStream.readBackCount());
+        try (var files = Files.list(directory)) {
+            // every round spills about 25 KB, the segments read back in the first one are reused
+            assertTrue(files.count() <= 8);
+        }
+
+        messageStream.closeSpillQueue();
+        try (var files = Files.list(directory)) {
+            assertEquals(0, files.count());
+        }
+    }
+
+    private static void yieldUnlessInterrupted() throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        Thread.yield();
+    }
+}
@@ -0,0 +1,257 @@
+package sockets.combiner;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import sockets.model.Message;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.StructuredTaskScope;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class OutputSinkTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper().configure(SerializationFeature.WRAP_ROOT_VALUE, true);
+
+    @Test
+    @DisplayName("Writes the same JSON as Jackson")
+    public void writesJsonLikeJackson() throws JsonProcessingException {
+        var writer = new MessageJsonWriter(16);
+        var random = new Random(13);
+        for (int i = 0; i < 100_000; i++) {
+            var message = new Message(random.nextLong() >> random.nextInt(64),
+                    random.nextDouble() * Math.pow(10, random.nextInt(40) - 20));
+            assertWrittenLikeJackson(writer, message);
+        }
+        assertWrittenLikeJackson(writer, new Message(0, -0.0));
+        assertWrittenLikeJackson(writer, new Message(0, Double.MIN_VALUE));
+        assertWrittenLikeJackson(writer, new Message(0, Double.MIN_NORMAL));
+        assertWrittenLikeJackson(writer, new Message(0, 0.001));
+        assertWrittenLikeJackson(writer, new Message(0, 1e7));
+        assertWrittenLikeJackson(writer, new Message(Long.MIN_VALUE, Double.MAX_VALUE));
+        assertWrittenLikeJackson(writer, new Message(Long.MAX_VALUE, Double.NaN));
+        assertWrittenLikeJackson(writer, new Message(BigInteger.TWO.pow(100).negate(), Double.NEGATIVE_INFINITY));
+    }
+
+    @Test
+    @DisplayName("Buffered sink writes messages as JSON lines only once the batch is full or flushed")
+    public void bufferedSinkWritesBatches() throws IOException {
+        var output = new ByteArrayOutputStream();
+        var expected = new StringBuilder();
+        try (var sink = new BufferedStreamSink(output, 1024, true)) {
+            int i = 0;
+            while (expected.length() < 1024) {
+                var message = new Message(i, i + 0.5);
+                assertEquals(0, output.size());
+                sink.emit(message);
+                expected.append(objectMapper.writeValueAsString(message)).append('\n');
+                i++;
+            }
+            assertEquals(expected.toString(), output.toString(StandardCharsets.US_ASCII));
+
+            var last = new Message(i, 1.0);
+            sink.emit(last);
+            expected.append(objectMapper.writeValueAsString(last)).append('\n');
+            sink.flush();
+            assertEquals(expected.toString(), output.toString(StandardCharsets.US_ASCII));
+        }
+    }
+
+    @Test
+    @DisplayName("Journal recovers the newest emitted message after reopening and replays what was appended after a timestamp")
+    public void journalRecoversAndReplays() throws IOException {
+        var directory = Files.createTempDirectory("journal");
+        var wideTimestamp = BigInteger.valueOf(Long.MAX_VALUE).pow(2);
+        try (var journal = OutputJournal.open(directory, 4096, 0, -1)) {
+            assertNull(journal.newestRecovered());
+            for (int i = 0; i < 1000; i++) {
+                journal.emit(new Message(i, i + 0.5));
+            }
+            journal.flush();
+            journal.emit(new Message(wideTimestamp, 1.0));
+        }
+
+        try (var journal = OutputJournal.open(directory, 4096, 0, -1)) {
+            assertEquals(wideTimestamp, journal.newestRecovered().getTimestamp());
+            journal.emit(new Message(wideTimestamp.add(BigInteger.ONE), 2.0));
+            // a late message emitted as correction does not move the restart point back
+            journal.emit(new Message(5, 7.0));
+        }
+        try (var journal = OutputJournal.open(directory, 4096, 0, -1)) {
+            assertEquals(wideTimestamp.add(BigInteger.ONE), journal.newestRecovered().getTimestamp());
+        }
+
+        var replayed = new ArrayList<Message>();
+        assertEquals(102, OutputJournal.replay(directory, new Message(899, 0), collectingSink(replayed)));
+        assertEquals(900, replayed.get(0).getTimestampAsLong());
+        assertEquals(999.5, replayed.get(99).getAmount());
+        assertEquals(wideTimestamp, replayed.get(100).getTimestamp());
+        assertEquals(2.0, replayed.get(101).getAmount());
+    }
+
+    @Test
+    @DisplayName("Journal deletes checkpointed segments beyond the retained ones and still recovers and replays the rest")
+    public void journalDeletesOldSegments() throws IOException {
+        var directory = Files.createTempDirectory("journal");
+        // 17 bytes per record, so 1000 records fill five segments
+        try (var journal = OutputJournal.open(directory, 4096, 0, 1)) {
+            for (int i = 0; i < 1000; i++) {
+                journal.emit(new Message(i, 1.0));
+                if (i % 100 == 99) {
+                    journal.flush();
+                }
+            }
+        }
+        try (var files = Files.list(directory)) {
+            assertEquals(2, files.filter(it -> it.toString().endsWith(".journal")).count());
+        }
+        try (var journal = OutputJournal.open(directory, 4096, 0, 1)) {
+            assertEquals(999, journal.newestRecovered().getTimestampAsLong());
+        }
+
+        var replayed = new ArrayList<Message>();
+        long count = OutputJournal.replay(directory, null, collectingSink(replayed));
+        assertTrue(count > 0 && count < 1000, "replayed " + count);
+        for (int i = 0; i < replayed.size(); i++) {
+            assertEquals(1000 - count + i, replayed.get(i).getTimestampAsLong());
+        }
+    }
+
+    @Test
+    @DisplayName("Broadcast sends every message to a subscriber keeping up and a gap line to one falling a ring behind")
+    public void broadcastSinkDropsForSlowSubscribers() throws IOException, InterruptedException, ExecutionException {
+        var loopback = InetAddress.getLoopbackAddress();
+        var sink = BroadcastSink.open(new InetSocketAddress(loopback, 0), 1 << 16, 4096, SlowConsumerPolicy.DROP,
+                new SpinThenParkWaitStrategy(0, 1, 1));
+        var fast = new Socket(loopback, sink.localPort());
+        var slow = new Socket();
+        slow.setReceiveBufferSize(4096);
+        slow.connect(new InetSocketAddress(loopback, sink.localPort()));
+        while (sink.subscriberCount() < 2) {
+            Thread.sleep(1);
+        }
+
+        int count = 200_000;
+        try (var scope = new StructuredTaskScope.ShutdownOnFailure("subscribers", Thread.ofPlatform().factory())) {
+            var fastLines = scope.fork(() -> readLines(fast));
+            for (int i = 0; i < count; i++) {
+                sink.emit(new Message(i, i + 0.5));
+            }
+            var slowLines = scope.fork(() -> readLines(slow));
+            sink.close();
+            scope.join().throwIfFailed();
+
+            assertEquals(count, fastLines.get().size());
+            for (int i = 0; i < count; i += 997) {
+                assertEquals(objectMapper.writeValueAsString(new Message(i, i + 0.5)), fastLines.get().get(i));
+            }
+            assertTrue(slowLines.get().size() < count);
+            // every line is whole, either a message or a gap line, and the gaps account for every byte not received
+            long publishedBytes = fastLines.get().stream().mapToLong(it -> it.length() + 1).sum();
+            long receivedBytes = 0;
+            long droppedBytes = 0;
+            long gaps = 0;
+            long previousTimestamp = -1;
+            for (var line : slowLines.get()) {
+                var json = objectMapper.readTree(line);
+                if (json.has("gap")) {
+                    droppedBytes += json.get("gap").get("droppedBytes").asLong();
+                    gaps++;
+                } else {
+                    long timestamp = json.get("data").get("timestamp").asLong();
+                    assertTrue(timestamp > previousTimestamp, line);
+                    assertEquals(objectMapper.writeValueAsString(new Message(timestamp, timestamp + 0.5)), line);
+                    previousTimestamp = timestamp;
+                    receivedBytes += line.length() + 1;
+                }
+            }
+            assertTrue(gaps > 0);
+            assertEquals(publishedBytes, receivedBytes + droppedBytes);
+            assertEquals(objectMapper.writeValueAsString(new Message(count - 1, count - 0.5)), slowLines.get().getLast());
+        }
+    }
+
+    @Test
+    @DisplayName("Window sink writes tumbling and sliding windows once the merge moved past them and the open ones on close")
+    public void windowSinkAggregatesTumblingAndSlidingWindows() throws IOException {
+        var output = new ByteArrayOutputStream();
+        try (var sink = new WindowAggregationSink(output, 1024).window(5, 5).window(10, 5)) {
+            sink.emit(new Message(0, 1.0));
+            sink.emit(new Message(3, 2.0));
+            sink.emit(new Message(5, 4.0));
+            sink.emit(new Message(9, 3.0));
+            sink.emit(new Message(12, 5.0));
+            // late, its windows were written already
+            sink.emit(new Message(4, 100.0));
+            sink.emit(new Message(25, 1.0));
+            sink.emit(new Message(BigInteger.TWO.pow(70), 1.0));
+        }
+
+        assertEquals(List.of(
+                window(5, 5, 0, 2, 3.0, 1.0, 2.0, 1.5),
+                window(10, 5, -5, 2, 3.0, 1.0, 2.0, 1.5),
+                window(5, 5, 5, 2, 7.0, 3.0, 4.0, 3.5),
+                window(10, 5, 0, 4, 10.0, 1.0, 4.0, 2.5),
+                window(5, 5, 10, 1, 5.0, 5.0, 5.0, 5.0),
+                window(10, 5, 5, 3, 12.0, 3.0, 5.0, 4.0),
+                window(10, 5, 10, 1, 5.0, 5.0, 5.0, 5.0),
+                window(5, 5, 25, 1, 1.0, 1.0, 1.0, 1.0),
+                window(10, 5, 20, 1, 1.0, 1.0, 1.0, 1.0),
+                window(10, 5, 25, 1, 1.0, 1.0, 1.0, 1.0)
+        ), output.toString(StandardCharsets.US_ASCII).lines().toList());
+    }
+
+    private static String window(long size, long slide, long start, long count, double sum, double min, double max,
+                                 double mean) {
+        return "{\"window\":{\"size\":" + size + ",\"slide\":" + slide + ",\"start\":" + start + ",\"end\":" +
+                (start + size) + ",\"count\":" + count + ",\"sum\":" + sum + ",\"min\":" + min + ",\"max\":" + max +
+                ",\"mean\":" + mean + "}}";
+    }
+
+    private static List<String> readLines(Socket socket) throws IOException {
+        try (socket; var reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII))) {
+            return reader.lines().toList();
+        }
+    }
+
+    private static OutputSink collectingSink(List<Message> messages) {
+        return new OutputSink() {
+            @Override
+            public void emit(Message message) {
+                messages.add(message);
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    private void assertWrittenLikeJackson(MessageJsonWriter writer, Message message) throws JsonProcessingException {
+        writer.clear();
+        writer.write(message);
+        assertEquals(objectMapper.writeValueAsString(message), writer.toString());
+    }
+}
@@ -0,0 +1,92 @@
+package sockets.combiner;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import sockets.model.Message;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ReorderBufferTest {
+
+    @Test
+    @DisplayName("Releases records sorted once more records than the bound are held, summing duplicate timestamps")
+    public void sortsWithinRecordBound() {
+        var reorderBuffer = ReorderBuffer.ofRecords(3);
+        var released = new ArrayList<String>();
+        for (long timestamp : new long[]{2, 1, 4, 4, 3, 7, 5, 6, 9, 8}) {
+            assertTrue(reorderBuffer.add(new Message(timestamp, 1.0)));
+            releaseAll(reorderBuffer, released);
+        }
+        assertEquals(List.of("1:1.0", "2:1.0", "3:1.0", "4:2.0", "5:1.0", "6:1.0"),
+                released);
+
+        reorderBuffer.drain();
+        releaseAll(reorderBuffer, released);
+        assertEquals(9, released.size());
+        for (int i = 0; i < released.size(); i++) {
+            assertTrue(released.get(i).startsWith(i + 1 + ":"));
+        }
+        assertEquals(5, reorderBuffer.reorderedCount());
+        assertEquals(0, reorderBuffer.tooLateCount());
+    }
+
+    @Test
+    @DisplayName("Does not take records older than one already released and counts them as too late")
+    public void countsTooLateRecords() {
+        var reorderBuffer = ReorderBuffer.ofRecords(1);
+        var released = new ArrayList<String>();
+        assertTrue(reorderBuffer.add(new Message(5, 1.0)));
+        assertTrue(reorderBuffer.add(new Message(6, 1.0)));
+        releaseAll(reorderBuffer, released);
+        assertEquals(List.of("5:1.0"), released);
+
+        assertFalse(reorderBuffer.add(new Message(5, 1.0)));
+        assertFalse(reorderBuffer.add(new Message(3, 1.0)));
+        assertTrue(reorderBuffer.add(new Message(7, 1.0)));
+        assertEquals(2, reorderBuffer.tooLateCount());
+    }
+
+    @Test
+    @DisplayName("Holds records until one as far as the timestamp distance newer arrived")
+    public void sortsWithinTimestampDistance() {
+        var reorderBuffer = ReorderBuffer.ofTimestampDistance(10);
+        var released = new ArrayList<String>();
+        for (long timestamp : new long[]{100, 95, 103, 109}) {
+            assertTrue(reorderBuffer.add(new Message(timestamp, 1.0)));
+        }
+        releaseAll(reorderBuffer, released);
+        assertEquals(List.of("95:1.0"), released);
+
+        assertTrue(reorderBuffer.add(new Message(115, 1.0)));
+        releaseAll(reorderBuffer, released);
+        assertEquals(List.of("95:1.0", "100:1.0", "103:1.0"), released);
+    }
+
+    @Test
+    @DisplayName("Ordered records pass through without being sorted in")
+    public void passesOrderedRecordsThrough() {
+        var reorderBuffer = ReorderBuffer.ofRecords(0);
+        var message = new Message();
+        for (long timestamp = 0; timestamp < 100_000; timestamp++) {
+            assertTrue(reorderBuffer.add(new Message(timestamp, 0.5)));
+            assertTrue(reorderBuffer.hasReleasable());
+            reorderBuffer.releaseInto(message);
+            assertEquals(timestamp, message.getTimestampAsLong());
+            assertFalse(reorderBuffer.hasReleasable());
+        }
+        assertEquals(0, reorderBuffer.reorderedCount());
+    }
+
+    private static void releaseAll(ReorderBuffer reorderBuffer, List<String> released) {
+        var message = new Message();
+        while (reorderBuffer.hasReleasable()) {
+            reorderBuffer.releaseInto(message);
+            released.add(message.getTimestampAsLong() + ":" + message.getAmount());
+        }
+    }
+}
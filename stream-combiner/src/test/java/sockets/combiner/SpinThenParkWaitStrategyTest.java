@@ -0,0 +1,111 @@
+package sockets.combiner;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+public class SpinThenParkWaitStrategyTest {
+
+    // parks far longer than any test waits, so returning in time means the waiter was woken up
+    private static final long PARK_MILLIS = 60_000;
+    private static final Duration TIMEOUT = Duration.ofSeconds(10);
+
+    @Test
+    @DisplayName("Counts signals and returns right away when a signal arrived after the count was observed")
+    public void returnsForSignalBeforeAwait() {
+        var waitStrategy = new SpinThenParkWaitStrategy(0, 0, PARK_MILLIS);
+        var observed = waitStrategy.signalCount();
+        waitStrategy.signal();
+        assertEquals(observed + 1, waitStrategy.signalCount());
+
+        assertTimeoutPreemptively(TIMEOUT, () -> waitStrategy.await(observed));
+    }
+
+    @Test
+    @DisplayName("Wakes up a parked waiter when signalled from another thread")
+    public void wakesParkedWaiter() throws InterruptedException {
+        var waitStrategy = new SpinThenParkWaitStrategy(0, 0, PARK_MILLIS);
+        var observed = waitStrategy.signalCount();
+        var waiter = Thread.ofPlatform().start(() -> {
+            try {
+                waitStrategy.await(observed);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        // wait until it parked, a signal before that would be taken by the re-check instead
+        while (waiter.getState() != Thread.State.TIMED_WAITING) {
+            Thread.yield();
+        }
+        waitStrategy.signal();
+        assertTimeoutPreemptively(TIMEOUT, () -> waiter.join());
+    }
+
+    @Test
+    @DisplayName("Never misses a signal racing with the waiter going to park")
+    public void neverMissesRacingSignal() {
+        var waitStrategy = new SpinThenParkWaitStrategy(0, 0, PARK_MILLIS);
+        var rounds = 10_000;
+        assertTimeoutPreemptively(Duration.ofSeconds(60), () -> {
+            var failure = new AtomicReference<Throwable>();
+            var consumed = new AtomicLong();
+            // waiter observes the count of each round and waits until the signaller has signalled it
+            var waiter = Thread.ofPlatform().start(() -> {
+                try {
+                    for (long round = 0; round < rounds; round++) {
+                        while (waitStrategy.signalCount() == round) {
+                            waitStrategy.await(round);
+                        }
+                        consumed.set(round + 1);
+                    }
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            });
+            for (int round = 0; round < rounds; round++) {
+                // signals land before, during or after the waiter parks, a missed one leaves it parked
+                waitStrategy.signal();
+                while (waiter.isAlive() && consumed.get() <= round) {
+                    Thread.yield();
+                }
+            }
+            waiter.join();
+            if (failure.get() != null) {
+                throw failure.get();
+            }
+        });
+        assertEquals(rounds, waitStrategy.signalCount());
+    }
+
+    @Test
+    @DisplayName("Throws when the waiting thread is interrupted")
+    public void throwsWhenInterrupted() throws InterruptedException {
+        var waitStrategy = new SpinThenParkWaitStrategy(0, 0, PARK_MILLIS);
+        var thrown = new AtomicReference<Throwable>();
+        var waiter = Thread.ofPlatform().start(() -> {
+            try {
+                waitStrategy.await(waitStrategy.signalCount());
+            } catch (Throwable e) {
+                thrown.set(e);
+            }
+        });
+        while (waiter.getState() != Thread.State.TIMED_WAITING) {
+            Thread.yield();
+        }
+        waiter.interrupt();
+        assertTimeoutPreemptively(TIMEOUT, () -> waiter.join());
+        assertInstanceOf(InterruptedException.class, thrown.get());
+        assertThrows(InterruptedException.class, () -> {
+            Thread.currentThread().interrupt();
+            waitStrategy.await(waitStrategy.signalCount());
+        });
+    }
+}
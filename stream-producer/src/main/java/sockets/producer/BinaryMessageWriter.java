@@ -0,0 +1,58 @@
+package sockets.producer;
+
+import sockets.model.Message;
+import sockets.protocol.BinaryFrames;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Batches up to batchRecords messages into one length prefixed frame of the binary wire format, see
+ * {@link BinaryFrames}. Full frames are buffered, a partial frame is only written on {@link #flush()}.
+ */
+class BinaryMessageWriter implements MessageWriter {
+
+    private final OutputStream output;
+    private final ByteBuffer frame;
+
+    BinaryMessageWriter(OutputStream output, int batchRecords, int bufferSize) {
+        this.output = new BufferedOutputStream(output, bufferSize);
+        var records = Math.max(1, Math.min(batchRecords, BinaryFrames.MAX_FRAME_BYTES / BinaryFrames.RECORD_BYTES));
+        frame = ByteBuffer.allocate(BinaryFrames.LENGTH_BYTES + records * BinaryFrames.RECORD_BYTES);
+        frame.position(BinaryFrames.LENGTH_BYTES);
+    }
+
+    @Override
+    public void write(Message message) throws IOException {
+        if (message.hasWideTimestamp()) {
+            throw new IllegalArgumentException("Timestamp of " + message + " does not fit into the binary wire format");
+        }
+        frame.putLong(message.getTimestampAsLong()).putDouble(message.getAmount());
+        if (!frame.hasRemaining()) {
+            writeFrame();
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        writeFrame();
+        output.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        writeFrame();
+        output.close();
+    }
+
+    private void writeFrame() throws IOException {
+        int payload = frame.position() - BinaryFrames.LENGTH_BYTES;
+        if (payload > 0) {
+            frame.putInt(0, payload);
+            output.write(frame.array(), 0, frame.position());
+            frame.position(BinaryFrames.LENGTH_BYTES);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package sockets.producer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import sockets.protocol.WireFormat;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends messages as fast as the load profile allows, writing them in batches without logging each of them. Runs on
+ * the thread which started it until the message limit is reached or the combiner goes away.
+ */
+class LoadGeneratingProducer extends StreamProducer {
+
+    private static final Logger log = LoggerFactory.getLogger(LoadGeneratingProducer.class);
+    private static final long SHARED_SEED = 42;
+
+    private final LoadProfile profile;
+    private final LongAdder sentMessages;
+
+    /**
+     * @param sentMessages counter shared by all connections of the process for reporting the throughput
+     */
+    LoadGeneratingProducer(int port, int socketTimeoutMillis, WireFormat supportedFormat, int batchRecords,
+                           int compressionLevel, LoadProfile profile, LongAdder sentMessages) {
+        super(port, socketTimeoutMillis, supportedFormat, batchRecords, compressionLevel);
+        this.profile = profile;
+        this.sentMessages = sentMessages;
+    }
+
+    @Override
+    protected void scheduleDispatching() throws IOException {
+        var random = new Random(profile.sharedSeed() ? SHARED_SEED : getPort());
+        var nanosPerMessage = profile.messagesPerSecond() > 0 ? 1e9 / profile.messagesPerSecond() : 0;
+        long timestamp = 0;
+        long sent = 0;
+        var startNanos = System.nanoTime();
+        while (profile.messageLimit() == 0 || sent < profile.messageLimit()) {
+            var batchSize = profile.messageLimit() == 0
+                    ? profile.batchSize()
+                    : (int) Math.min(profile.batchSize(), profile.messageLimit() - sent);
+            for (int i = 0; i < batchSize; i++) {
+                timestamp = profile.pattern().next(timestamp, random, profile.maxGap());
+                send(timestamp, random.nextDouble());
+            }
+            flush();
+            sent += batchSize;
+            sentMessages.add(batchSize);
+            if (nanosPerMessage > 0) {
+                // schedule is kept from the start, so pauses after slow batches are shorter
+                var waitNanos = startNanos + (long) (sent * nanosPerMessage) - System.nanoTime();
+                if (waitNanos > 0) {
+                    LockSupport.parkNanos(waitNanos);
+                }
+            }
+        }
+        close();
+        log.info("Sent " + sent + " messages on port " + getPort() + " in " +
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos) + " ms, closed the connection");
+    }
+}
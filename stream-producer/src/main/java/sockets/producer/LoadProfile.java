@@ -0,0 +1,17 @@
+package sockets.producer;
+
+/**
+ * Settings of the load generating producer.
+ *
+ * @param messagesPerSecond target rate of one connection, 0 for as fast as the combiner reads
+ * @param batchSize         messages written back to back and flushed together, with a rate the producer pauses
+ *                          between batches, so big batches arrive as bursts
+ * @param messageLimit      messages after which the connection is closed, 0 for no limit
+ * @param pattern           how timestamps advance
+ * @param maxGap            largest step between timestamps for {@link TimestampPattern#GAPS}
+ * @param sharedSeed        all connections produce the same timestamps, so they are duplicated across producers and
+ *                          merged by the combiner, otherwise each connection is seeded by its port
+ */
+record LoadProfile(long messagesPerSecond, int batchSize, long messageLimit, TimestampPattern pattern, int maxGap,
+                   boolean sharedSeed) {
+}
@@ -2,30 +2,75 @@ package sockets.producer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import sockets.protocol.WireFormat;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.atomic.LongAdder;
 
 public class Main {
 
     private static final Logger log = LoggerFactory.getLogger(Main.class);
 
     public static void main(String[] args) {
-        var port = getPort(args);
+        var ports = getPorts(args);
         var properties = readProperties();
         var socketTimeoutMillis = Integer.valueOf((String) properties.get("socket.connect.timeout.millis"));
         var producerPeriodMillis = Integer.valueOf((String) properties.get("producer.emission.period.millis"));
-        var producer = new StreamProducerImpl(port, socketTimeoutMillis, producerPeriodMillis);
-        producer.start();
+        var flushRecords = Integer.parseInt(properties.getProperty("producer.flush.records", "1").trim());
+        var wireFormat = WireFormat.parse(properties.getProperty("producer.wire.format", "xml"));
+        var batchRecords = Integer.parseInt(properties.getProperty("producer.binary.batch.records", "1").trim());
+        var compressionLevel = readCompressionLevel(properties);
+        var mode = properties.getProperty("producer.mode", "timer").trim();
+        var sentMessages = new LongAdder();
+        if (mode.equals("load")) {
+            var reportPeriodMillis = Long.parseLong(properties.getProperty("producer.load.stats.period.millis", "1000").trim());
+            Thread.ofPlatform().daemon().name("throughput-reporter").start(new ThroughputReporter(sentMessages, reportPeriodMillis));
+        } else if (!mode.equals("timer")) {
+            throw new IllegalArgumentException("Unknown producer mode " + mode);
+        }
+        // one connection per port, each producer waits for its combiner on its own thread
+        for (int port : ports) {
+            StreamProducer producer = mode.equals("load")
+                    ? new LoadGeneratingProducer(port, socketTimeoutMillis, wireFormat, batchRecords, compressionLevel,
+                    readLoadProfile(properties), sentMessages)
+                    : new StreamProducerImpl(port, socketTimeoutMillis, producerPeriodMillis, wireFormat, batchRecords,
+                    compressionLevel, flushRecords);
+            Thread.ofPlatform().name("producer-" + port).start(producer::start);
+        }
     }
 
-    private static int getPort(String[] args) {
-        if (args.length != 1) {
-            log.error("Please specify port as a program argument next time, terminating");
+    private static List<Integer> getPorts(String[] args) {
+        if (args.length == 0) {
+            log.error("Please specify one or more ports as program arguments next time, terminating");
             System.exit(-1);
         }
-        return Integer.parseInt(args[0]);
+        return Arrays.stream(args).map(Integer::parseInt).toList();
+    }
+
+    /**
+     * @return deflate level offered to combiners asking for compression, -1 to refuse it
+     */
+    private static int readCompressionLevel(Properties properties) {
+        var compression = properties.getProperty("producer.compression", "none").trim();
+        return switch (compression) {
+            case "none" -> -1;
+            case "deflate" -> Integer.parseInt(properties.getProperty("producer.compression.level", "1").trim());
+            default -> throw new IllegalArgumentException("Unknown compression " + compression);
+        };
+    }
+
+    private static LoadProfile readLoadProfile(Properties properties) {
+        return new LoadProfile(
+                Long.parseLong(properties.getProperty("producer.load.messages.per.second", "0").trim()),
+                Integer.parseInt(properties.getProperty("producer.load.batch.size", "1000").trim()),
+                Long.parseLong(properties.getProperty("producer.load.message.limit", "0").trim()),
+                TimestampPattern.parse(properties.getProperty("producer.load.timestamp.pattern", "sequential")),
+                Integer.parseInt(properties.getProperty("producer.load.timestamp.max.gap", "3").trim()),
+                Boolean.parseBoolean(properties.getProperty("producer.load.timestamp.shared", "true").trim()));
     }
 
     private static Properties readProperties() {
@@ -0,0 +1,30 @@
+package sockets.producer;
+
+import sockets.model.Message;
+
+import java.io.IOException;
+
+/**
+ * Writes messages to the combiner in the wire format negotiated for the connection.
+ */
+interface MessageWriter {
+
+    /**
+     * Writes the message, possibly keeping it in a batch until {@link #flush()}.
+     */
+    void write(Message message) throws IOException;
+
+    /**
+     * @return how the message is logged, the record as it goes on the wire where that is readable
+     */
+    default String describe(Message message) throws IOException {
+        return message.toString();
+    }
+
+    void flush() throws IOException;
+
+    /**
+     * Flushes what is left and closes the output, ending a compressed stream properly.
+     */
+    void close() throws IOException;
+}
@@ -1,31 +1,59 @@
 package sockets.producer;
 
-import com.fasterxml.jackson.dataformat.xml.XmlMapper;
 import sockets.model.Message;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import sockets.protocol.Handshake;
+import sockets.protocol.WireFormat;
 
+import java.io.DataInputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.OutputStream;
 import java.math.BigInteger;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
-import java.util.Random;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
 
 public abstract class StreamProducer {
+    // combiners which want another format than XML or compression send their handshake right after connecting
+    private static final int HANDSHAKE_TIMEOUT_MILLIS = 1000;
+    private static final int WRITE_BUFFER_SIZE = 65536;
+
     private final int port;
 
     private final int socketTimeoutMillis;
-    private PrintWriter stream;
-    private final XmlMapper mapper = new XmlMapper();
+    private final WireFormat supportedFormat;
+    private final int batchRecords;
+    private final int compressionLevel;
+    private Socket clientSocket;
+    private MessageWriter writer;
+    // null unless the stream is compressed, closing the stream it was handed to does not end it
+    private Deflater deflater;
 
     private static final Logger log = LoggerFactory.getLogger(StreamProducer.class);
 
     public StreamProducer(int port, int socketTimeoutMillis) {
+        this(port, socketTimeoutMillis, WireFormat.XML, 1, -1);
+    }
+
+    /**
+     * @param supportedFormat  format offered to combiners asking for it, XML is used for all the others
+     * @param batchRecords     messages per frame of the binary format
+     * @param compressionLevel deflate level from 0 to 9 for combiners asking for compression, negative to refuse it
+     */
+    public StreamProducer(int port, int socketTimeoutMillis, WireFormat supportedFormat, int batchRecords,
+                          int compressionLevel) {
         this.port = port;
         this.socketTimeoutMillis = socketTimeoutMillis;
+        this.supportedFormat = supportedFormat;
+        this.batchRecords = batchRecords;
+        this.compressionLevel = compressionLevel;
     }
 
     public void start() {
@@ -45,27 +73,106 @@ public abstract class StreamProducer {
 
     protected abstract void scheduleDispatching() throws IOException;
 
+    protected int getPort() {
+        return port;
+    }
+
     protected void pushMessageToStream(BigInteger timestamp) {
+        pushMessageToStream(timestamp, true);
+    }
+
+    /**
+     * Writes and logs the message, flushing it when asked to; with compression every flush is a sync flush of the
+     * deflater, which costs a few bytes of output.
+     */
+    protected void pushMessageToStream(BigInteger timestamp, boolean flush) {
         try {
-            if (stream.checkError()) {
-                throw new IOException("Connectivity error");
+            var data = new Message(timestamp, ThreadLocalRandom.current().nextDouble());
+            writer.write(data);
+            if (flush) {
+                writer.flush();
             }
-            var data = new Message(timestamp, new Random().nextDouble());
-            String message = mapper.writeValueAsString(data);
-            stream.println(message);
-            log.info(message);
+            log.info(writer.describe(data));
         } catch (IOException e) {
             log.error("Couldn't send message due to " + e.getMessage(), e);
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * Writes the message without flushing and logging it, for producing at high rates.
+     */
+    protected void send(long timestamp, double amount) throws IOException {
+        writer.write(new Message(timestamp, amount));
+    }
+
+    protected void flush() throws IOException {
+        writer.flush();
+    }
+
+    /**
+     * Flushes what is left and closes the connection, the combiner sees the end of the stream.
+     */
+    protected void close() throws IOException {
+        try {
+            writer.close();
+        } finally {
+            if (deflater != null) {
+                deflater.end();
+            }
+            clientSocket.close();
+        }
+    }
+
     private void establishConnection() throws IOException {
         try (ServerSocket serverSocket = new ServerSocket(port)) {
             serverSocket.setSoTimeout(socketTimeoutMillis);
-            Socket clientSocket = serverSocket.accept();
-            stream = new PrintWriter(clientSocket.getOutputStream(), true);
-            log.info("Connection established on port " + port);
+            clientSocket = serverSocket.accept();
+            var options = negotiate(clientSocket);
+            OutputStream output = clientSocket.getOutputStream();
+            if (options.compressed()) {
+                // writers flush at batch boundaries, which makes the deflater sync flush everything written so far
+                deflater = new Deflater(compressionLevel);
+                output = new DeflaterOutputStream(output, deflater, WRITE_BUFFER_SIZE, true);
+            }
+            writer = options.format() == WireFormat.BINARY
+                    ? new BinaryMessageWriter(output, batchRecords, WRITE_BUFFER_SIZE)
+                    : new XmlMessageWriter(output, WRITE_BUFFER_SIZE);
+            log.info("Connection established on port " + port + ", sending " + options.format() +
+                    (options.compressed() ? " deflated at level " + compressionLevel : ""));
+        }
+    }
+
+    private Handshake.Options negotiate(Socket clientSocket) throws IOException {
+        var plainXml = new Handshake.Options(WireFormat.XML, false);
+        if (supportedFormat == WireFormat.XML && compressionLevel < 0) {
+            return plainXml;
+        }
+        var handshake = new byte[Handshake.LENGTH];
+        clientSocket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+        try {
+            new DataInputStream(clientSocket.getInputStream()).readFully(handshake);
+        } catch (SocketTimeoutException e) {
+            log.info("No handshake from the combiner, it only understands XML");
+            return plainXml;
+        } finally {
+            clientSocket.setSoTimeout(0);
+        }
+        var requested = Handshake.decodeOptions(ByteBuffer.wrap(handshake));
+        if (requested == null) {
+            log.info("Combiner sent an unknown handshake, falling back to XML");
+            return plainXml;
+        }
+        var format = requested.format();
+        if (format != supportedFormat && format != WireFormat.XML) {
+            log.info("Combiner asked for " + format + ", falling back to XML");
+            format = WireFormat.XML;
+        }
+        var accepted = new Handshake.Options(format, requested.compressed() && compressionLevel >= 0);
+        // like before compression, plain XML goes without an answer
+        if (!accepted.equals(plainXml)) {
+            clientSocket.getOutputStream().write(Handshake.encode(accepted.format(), accepted.compressed()));
         }
+        return accepted;
     }
 }
@@ -1,5 +1,7 @@
 package sockets.producer;
 
+import sockets.protocol.WireFormat;
+
 import java.math.BigInteger;
 import java.util.Timer;
 import java.util.TimerTask;
@@ -7,10 +9,23 @@ import java.util.TimerTask;
 public class StreamProducerImpl extends StreamProducer {
 
     final int producerPeriodMillis;
+    final int flushRecords;
 
     public StreamProducerImpl(int port, int socketTimeoutMillis, int producerPeriodMillis) {
-        super(port, socketTimeoutMillis);
+        this(port, socketTimeoutMillis, producerPeriodMillis, WireFormat.XML, 1, -1, 1);
+    }
+
+    /**
+     * @param flushRecords messages written before they are flushed together, 1 to flush every message
+     */
+    public StreamProducerImpl(int port, int socketTimeoutMillis, int producerPeriodMillis, WireFormat supportedFormat,
+                              int batchRecords, int compressionLevel, int flushRecords) {
+        super(port, socketTimeoutMillis, supportedFormat, batchRecords, compressionLevel);
+        if (flushRecords < 1) {
+            throw new IllegalArgumentException("Flush records must be at least 1, got " + flushRecords);
+        }
         this.producerPeriodMillis = producerPeriodMillis;
+        this.flushRecords = flushRecords;
     }
 
     @Override
@@ -22,7 +37,7 @@ public class StreamProducerImpl extends StreamProducer {
             @Override
             public void run() {
                 timestamp[0] += 1;
-                pushMessageToStream(BigInteger.valueOf(timestamp[0]));
+                pushMessageToStream(BigInteger.valueOf(timestamp[0]), timestamp[0] % flushRecords == 0);
             }
         };
         timer.scheduleAtFixedRate(task, 0, producerPeriodMillis);
@@ -0,0 +1,43 @@
+package sockets.producer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Periodically logs how many messages all connections of the process sent, instead of logging every message.
+ */
+class ThroughputReporter implements Runnable {
+
+    private static final Logger log = LoggerFactory.getLogger(ThroughputReporter.class);
+
+    private final LongAdder sentMessages;
+    private final long periodMillis;
+
+    ThroughputReporter(LongAdder sentMessages, long periodMillis) {
+        this.sentMessages = sentMessages;
+        this.periodMillis = periodMillis;
+    }
+
+    @Override
+    public void run() {
+        long previousSent = 0;
+        long previousNanos = System.nanoTime();
+        try {
+            while (true) {
+                Thread.sleep(periodMillis);
+                long sent = sentMessages.sum();
+                long now = System.nanoTime();
+                var elapsedMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(now - previousNanos));
+                log.info("Sent " + (sent - previousSent) + " messages in the last " + elapsedMillis + " ms (" +
+                        (sent - previousSent) * 1000 / elapsedMillis + " messages/s), " + sent + " in total");
+                previousSent = sent;
+                previousNanos = now;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
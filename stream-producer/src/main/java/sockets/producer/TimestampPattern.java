@@ -0,0 +1,37 @@
+package sockets.producer;
+
+import java.util.Random;
+
+/**
+ * How the load generator advances timestamps of consecutive messages of one connection.
+ */
+enum TimestampPattern {
+    /**
+     * Every timestamp follows the previous one.
+     */
+    SEQUENTIAL {
+        @Override
+        long next(long previous, Random random, int maxGap) {
+            return previous + 1;
+        }
+    },
+    /**
+     * Timestamps advance by a random step of up to maxGap, so connections share only some of them.
+     */
+    GAPS {
+        @Override
+        long next(long previous, Random random, int maxGap) {
+            return previous + 1 + random.nextInt(Math.max(1, maxGap));
+        }
+    };
+
+    abstract long next(long previous, Random random, int maxGap);
+
+    static TimestampPattern parse(String name) {
+        return switch (name.trim()) {
+            case "sequential" -> SEQUENTIAL;
+            case "gaps" -> GAPS;
+            default -> throw new IllegalArgumentException("Unknown timestamp pattern " + name);
+        };
+    }
+}
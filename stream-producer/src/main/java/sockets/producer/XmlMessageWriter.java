@@ -0,0 +1,48 @@
+package sockets.producer;
+
+import com.fasterxml.jackson.dataformat.xml.XmlMapper;
+import sockets.model.Message;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * One XML document per line, what every combiner understands. Lines are buffered until {@link #flush()}.
+ */
+class XmlMessageWriter implements MessageWriter {
+
+    private final PrintWriter stream;
+    private final XmlMapper mapper = new XmlMapper();
+
+    XmlMessageWriter(OutputStream output, int bufferSize) {
+        this.stream = new PrintWriter(new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8), bufferSize));
+    }
+
+    @Override
+    public void write(Message message) throws IOException {
+        stream.println(mapper.writeValueAsString(message));
+    }
+
+    @Override
+    public String describe(Message message) throws IOException {
+        return mapper.writeValueAsString(message);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        // also flushes, so it is only checked here to keep the lines buffered until then
+        if (stream.checkError()) {
+            throw new IOException("Connectivity error");
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        stream.close();
+    }
+}
@@ -0,0 +1,123 @@
+package sockets.producer;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import sockets.protocol.WireFormat;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class LoadGeneratingProducerTest {
+
+    // batches arrive this far apart at the tested rate, records of one batch arrive together
+    private static final long BATCH_GAP_MILLIS = 100;
+
+    @Test
+    @DisplayName("Sends the message limit in bursts of the batch size, paced to the configured rate")
+    public void honorsRateAndBatchSize() throws IOException, InterruptedException {
+        int batchSize = 50;
+        int batches = 5;
+        var profile = new LoadProfile(batchSize * 1000 / BATCH_GAP_MILLIS, batchSize, (long) batchSize * batches,
+                TimestampPattern.SEQUENTIAL, 1, true);
+        var sentMessages = new LongAdder();
+        var producer = new LoadGeneratingProducer(12450, 10_000, WireFormat.XML, 1, -1, profile, sentMessages);
+        var producerThread = Thread.ofPlatform().start(producer::start);
+
+        List<Long> arrivalNanos = new ArrayList<>();
+        List<String> records = new ArrayList<>();
+        long connectedNanos;
+        try (var socket = connect(12450);
+             var reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+            connectedNanos = System.nanoTime();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                arrivalNanos.add(System.nanoTime());
+                records.add(line);
+            }
+        }
+        producerThread.join();
+
+        assertEquals(batchSize * batches, records.size());
+        assertEquals(batchSize * batches, sentMessages.sum());
+        assertTrue(records.get(0).contains("<timestamp>1</timestamp>"), records.get(0));
+        assertTrue(records.get(records.size() - 1).contains("<timestamp>" + batchSize * batches + "</timestamp>"));
+
+        // a pause of half the gap separates batches, a batch is never split; batches late after a slow start go out
+        // back to back while the producer catches up with its schedule
+        List<Integer> burstSizes = new ArrayList<>();
+        int burstSize = 1;
+        for (int i = 1; i < arrivalNanos.size(); i++) {
+            if (arrivalNanos.get(i) - arrivalNanos.get(i - 1) > TimeUnit.MILLISECONDS.toNanos(BATCH_GAP_MILLIS / 2)) {
+                burstSizes.add(burstSize);
+                burstSize = 0;
+            }
+            burstSize++;
+        }
+        burstSizes.add(burstSize);
+        assertTrue(burstSizes.size() > 1, "no pause between batches " + burstSizes);
+        for (var size : burstSizes) {
+            assertEquals(0, size % batchSize, "split batch in " + burstSizes);
+        }
+
+        // the last batch is due after four gaps at the rate of the profile, counted from the connection
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(arrivalNanos.get(arrivalNanos.size() - 1) - connectedNanos);
+        assertTrue(elapsedMillis >= (batches - 1) * BATCH_GAP_MILLIS, "took only " + elapsedMillis + " ms");
+        assertTrue(elapsedMillis < 10 * batches * BATCH_GAP_MILLIS, "took " + elapsedMillis + " ms");
+    }
+
+    @Test
+    @DisplayName("Without a rate sends as fast as read, connections with a shared seed send the same timestamps")
+    public void sharesTimestampsWithSharedSeed() throws IOException, InterruptedException {
+        var profile = new LoadProfile(0, 100, 1000, TimestampPattern.GAPS, 5, true);
+        List<List<Long>> timestamps = new ArrayList<>();
+        for (var port : List.of(12451, 12452)) {
+            var producer = new LoadGeneratingProducer(port, 10_000, WireFormat.XML, 1, -1, profile, new LongAdder());
+            var producerThread = Thread.ofPlatform().start(producer::start);
+            List<Long> received = new ArrayList<>();
+            try (var socket = connect(port);
+                 var reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    var start = line.indexOf("<timestamp>") + "<timestamp>".length();
+                    received.add(Long.parseLong(line.substring(start, line.indexOf("</timestamp>"))));
+                }
+            }
+            producerThread.join();
+            timestamps.add(received);
+        }
+
+        assertEquals(1000, timestamps.get(0).size());
+        assertEquals(timestamps.get(0), timestamps.get(1));
+        long previous = 0;
+        for (var timestamp : timestamps.get(0)) {
+            assertTrue(timestamp > previous && timestamp <= previous + 5, timestamp + " after " + previous);
+            previous = timestamp;
+        }
+    }
+
+    private static Socket connect(int port) throws IOException, InterruptedException {
+        // the producer opens its server socket on its own thread
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return new Socket(InetAddress.getLoopbackAddress(), port);
+            } catch (ConnectException e) {
+                if (attempt == 100) {
+                    throw e;
+                }
+                Thread.sleep(20);
+            }
+        }
+    }
+}